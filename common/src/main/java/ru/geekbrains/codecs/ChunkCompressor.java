@@ -0,0 +1,140 @@
+package ru.geekbrains.codecs;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import ru.geekbrains.configs.ServerConfig;
+import ru.geekbrains.messages.PackageBody;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Compression of the transfer chunks. Every chunk is deflated independently, so the receiver inflates it
+ * by the body type without any state of the transfer.
+ * Compression is negotiated by the start of the transfer: the sender is compressing only if the receiver
+ * accepted it and both peers have ServerConfig.COMPRESSION set.
+ * Files of the compressed formats are not deflated at all, other files are sampled by the first
+ * ServerConfig.COMPRESSION_SAMPLE_CHUNKS chunks and compression is disabled if they do not shrink
+ * below ServerConfig.COMPRESSION_MAX_RATIO. The chunk that does not shrink is sent as is.
+ */
+public class ChunkCompressor {
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "lz4", "jar", "apk",
+            "jpg", "jpeg", "png", "gif", "webp", "heic",
+            "mp3", "aac", "ogg", "flac", "mp4", "mkv", "avi", "mov", "webm",
+            "pdf", "docx", "xlsx", "pptx", "odt"));
+
+    private Deflater deflater;
+    private byte[] input = new byte[0];
+    private byte[] output = new byte[0];
+
+    private int sampled;
+    private long rawBytes;
+    private long wireBytes;
+
+    /**
+     * @param fileName - name of the transferred file, its extension disables compression of the compressed formats
+     * @param compression - true if the peers of the transfer agreed on the compression
+     */
+    public ChunkCompressor(String fileName, boolean compression) {
+        if (compression && !isCompressedFormat(fileName)) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+    }
+
+    private static boolean isCompressedFormat(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot >= 0 && COMPRESSED_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @return true while the chunks are deflated
+     */
+    public boolean isEnabled() {
+        return deflater != null;
+    }
+
+    /**
+     * Creates body of the chunk, deflated if the compression is enabled and the chunk shrinks.
+     * The chunk is released if it is replaced by the deflated bytes.
+     * @param alloc - buffer allocator
+     * @param chunk - bytes of the file
+     * @return body of the package
+     */
+    public PackageBody compress(ByteBufAllocator alloc, ByteBuf chunk) {
+        int length = chunk.readableBytes();
+        rawBytes += length;
+        if (deflater == null || length == 0) {
+            wireBytes += length;
+            return new PackageBody(chunk);
+        }
+
+        if (input.length < length) {
+            input = new byte[length];
+            // Deflated bytes are shorter than the chunk or the chunk is sent as is
+            output = new byte[length];
+        }
+        chunk.getBytes(chunk.readerIndex(), input, 0, length);
+        deflater.reset();
+        deflater.setInput(input, 0, length);
+        deflater.finish();
+        int deflated = deflater.deflate(output, 0, length);
+        boolean shrunk = deflater.finished() && deflated < length;
+
+        PackageBody body;
+        if (shrunk) {
+            ByteBuf buffer = alloc.ioBuffer(deflated);
+            buffer.writeBytes(output, 0, deflated);
+            chunk.release();
+            wireBytes += deflated;
+            body = new PackageBody(buffer, length);
+        } else {
+            wireBytes += length;
+            body = new PackageBody(chunk);
+        }
+
+        if (++sampled == ServerConfig.COMPRESSION_SAMPLE_CHUNKS && getRatio() > ServerConfig.COMPRESSION_MAX_RATIO) {
+            close();
+        }
+        return body;
+    }
+
+    /**
+     * Counts the chunk sent as is by the caller, e.g. by FileRegion when the compression is disabled
+     * @param length - length of the chunk
+     */
+    public void countRaw(int length) {
+        rawBytes += length;
+        wireBytes += length;
+    }
+
+    public long getRawBytes() {
+        return rawBytes;
+    }
+
+    public long getWireBytes() {
+        return wireBytes;
+    }
+
+    /**
+     * @return ratio of the sent bytes to the bytes of the file
+     */
+    public double getRatio() {
+        return rawBytes == 0 ? 1.0 : (double) wireBytes / rawBytes;
+    }
+
+    /**
+     * Frees the deflater, next chunks are sent as is
+     */
+    public void close() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+            input = new byte[0];
+            output = new byte[0];
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package ru.geekbrains.codecs;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.EncoderException;
+import ru.geekbrains.commands.NetworkCommand;
+import ru.geekbrains.configs.ServerConfig;
+import ru.geekbrains.messages.FileView;
+import ru.geekbrains.messages.NetworkPackage;
+import ru.geekbrains.messages.PackageBody;
+import ru.geekbrains.messages.PackageHeader;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Binary wire format of the NetworkPackage.
+ * Frame layout (the frame length prefix is written by the encoder):
+ *      - command: 1 byte, ordinal of the NetworkCommand
+ *      - stream ID: varint, 0 if the package is not a part of the transfer
+ *      - params: varint count, then every param as varint (length + 1) and UTF-8 bytes, 0 - null param
+ *      - body type: 1 byte (BODY_NONE, BODY_BYTES, BODY_FILE_VIEWS or BODY_DEFLATED)
+ *      - body: varint length and raw bytes, varint count and FileView columns
+ *        or varint inflated length, varint length and deflated bytes
+ * FileView columns, every column holds the field of all FileView objects in turn:
+ *      - types: bitmap of (count + 7) / 8 bytes, bit is set for a directory
+ *      - directories: varint dictionary size, distinct directories, then varint dictionary index of every object
+ *      - filenames
+ *      - sizes: varlong, size + 1 for a directory, so the unknown size -1 of the directory is 0
+ *      - creating and last modified times: zigzag varlong delta from the previous time, epoch milliseconds
+ */
+public final class NetworkPackageCodec {
+    public static final int LENGTH_FIELD_SIZE = 4;
+
+    static final byte BODY_NONE = 0;
+    static final byte BODY_BYTES = 1;
+    static final byte BODY_FILE_VIEWS = 2;
+    static final byte BODY_DEFLATED = 3;
+
+    // Commands are sent by ordinal, so new commands must be added to the end of NetworkCommand
+    private static final NetworkCommand[] COMMANDS = NetworkCommand.values();
+
+    private NetworkPackageCodec() {
+    }
+
+    /**
+     * Writes package into the buffer without frame length prefix.
+     * Bytes of file are not copied: only their length is written, the content of the package
+     * must follow the buffer in the channel.
+     * @param pack - encoded package
+     * @param out - target buffer
+     */
+    public static void encode(NetworkPackage pack, ByteBuf out) {
+        encodeHeader(pack.getHeader(), out);
+
+        PackageBody body = pack.getBody();
+        if (body == null || (body.getByteBody() == null && body.getObjectBody() == null)) {
+            out.writeByte(BODY_NONE);
+        } else if (body.isDeflated()) {
+            out.writeByte(BODY_DEFLATED);
+            writeVarInt(out, body.getInflatedLength());
+            writeVarInt(out, body.getByteBody().readableBytes());
+        } else if (body.getByteBody() != null) {
+            out.writeByte(BODY_BYTES);
+            writeVarInt(out, body.getByteBody().readableBytes());
+        } else {
+            out.writeByte(BODY_FILE_VIEWS);
+            writeFileViews(out, body.getObjectBody());
+        }
+    }
+
+    /**
+     * Creates the frame prefix of the package with byte body of bodyLength bytes.
+     * The body bytes are not copied: they must be written into the channel right after the prefix,
+     * for example by FileRegion.
+     * @param alloc - buffer allocator of the channel
+     * @param header - header of the package
+     * @param bodyLength - number of the body bytes following the prefix
+     * @return buffer with frame length, header and body length
+     */
+    public static ByteBuf encodeBytesPrefix(ByteBufAllocator alloc, PackageHeader header, int bodyLength) {
+        ByteBuf out = alloc.ioBuffer();
+        out.writeInt(0);
+        encodeHeader(header, out);
+        out.writeByte(BODY_BYTES);
+        writeVarInt(out, bodyLength);
+        out.setInt(0, out.writerIndex() - LENGTH_FIELD_SIZE + bodyLength);
+        return out;
+    }
+
+    private static void encodeHeader(PackageHeader header, ByteBuf out) {
+        out.writeByte(header.getCommand().ordinal());
+        writeVarInt(out, header.getStreamId());
+
+        writeVarInt(out, header.getParamCount());
+        for (int i = 1; i <= header.getParamCount(); i++) {
+            writeString(out, header.getParam(i));
+        }
+    }
+
+    /**
+     * Reads package from the frame without frame length prefix.
+     * Bytes of file are returned as retained slice of the frame, so the frame can be released
+     * while the package is in use.
+     * @param in - frame buffer
+     * @return decoded package
+     */
+    public static NetworkPackage decode(ByteBuf in) {
+        return decode(in, null);
+    }
+
+    /**
+     * Reads package from the frame without frame length prefix.
+     * Bytes of file are returned as retained slice of the frame, so the frame can be released
+     * while the package is in use. Deflated bytes are inflated into the new buffer.
+     * @param in - frame buffer
+     * @param inflater - inflater of the channel or null to create the new one for the deflated body
+     * @return decoded package
+     */
+    public static NetworkPackage decode(ByteBuf in, Inflater inflater) {
+        int ordinal = in.readUnsignedByte();
+        if (ordinal >= COMMANDS.length) {
+            throw new CorruptedFrameException("Unknown command: " + ordinal);
+        }
+
+        PackageHeader.HeaderBuilder builder = new PackageHeader.HeaderBuilder(COMMANDS[ordinal])
+                .setStreamId(readVarInt(in));
+        int paramCount = readVarInt(in);
+        for (int i = 0; i < paramCount; i++) {
+            builder.addParam(readString(in));
+        }
+
+        PackageBody body;
+        byte bodyType = in.readByte();
+        if (bodyType == BODY_NONE) {
+            body = null;
+        } else if (bodyType == BODY_BYTES) {
+            body = new PackageBody(in.readRetainedSlice(readVarInt(in)));
+        } else if (bodyType == BODY_FILE_VIEWS) {
+            body = new PackageBody(readFileViews(in));
+        } else if (bodyType == BODY_DEFLATED) {
+            int inflatedLength = readVarInt(in);
+            ByteBuf deflated = in.readSlice(readVarInt(in));
+            if (inflater != null) {
+                body = new PackageBody(inflate(in.alloc(), deflated, inflatedLength, inflater));
+            } else {
+                Inflater temp = new Inflater();
+                try {
+                    body = new PackageBody(inflate(in.alloc(), deflated, inflatedLength, temp));
+                } finally {
+                    temp.end();
+                }
+            }
+        } else {
+            throw new CorruptedFrameException("Unknown body type: " + bodyType);
+        }
+
+        return new NetworkPackage(builder.build(), body);
+    }
+
+    /**
+     * Inflates the deflated bytes into the heap buffer, its array is the target of the inflater
+     * @param alloc - buffer allocator
+     * @param deflated - deflated bytes
+     * @param inflatedLength - length of the bytes before compression
+     * @param inflater - inflater
+     * @return inflated bytes
+     */
+    private static ByteBuf inflate(ByteBufAllocator alloc, ByteBuf deflated, int inflatedLength, Inflater inflater) {
+        if (inflatedLength < 0 || inflatedLength > ServerConfig.MAX_FRAME_SIZE) {
+            throw new CorruptedFrameException("Invalid inflated length: " + inflatedLength);
+        }
+
+        byte[] input;
+        int offset;
+        if (deflated.hasArray()) {
+            input = deflated.array();
+            offset = deflated.arrayOffset() + deflated.readerIndex();
+        } else {
+            input = new byte[deflated.readableBytes()];
+            deflated.getBytes(deflated.readerIndex(), input);
+            offset = 0;
+        }
+
+        ByteBuf out = alloc.heapBuffer(inflatedLength, inflatedLength);
+        try {
+            inflater.reset();
+            inflater.setInput(input, offset, deflated.readableBytes());
+            int length = inflater.inflate(out.array(), out.arrayOffset(), inflatedLength);
+            if (length != inflatedLength || !inflater.finished()) {
+                throw new CorruptedFrameException("Deflated body does not match its length");
+            }
+            out.writerIndex(length);
+            return out;
+        } catch (DataFormatException | RuntimeException e) {
+            out.release();
+            throw e instanceof CorruptedFrameException ? (CorruptedFrameException) e : new CorruptedFrameException(e);
+        }
+    }
+
+    /**
+     * Writes FileView objects by columns, the directories are written once into the dictionary
+     * @param out - target buffer
+     * @param objects - FileView objects
+     */
+    static void writeFileViews(ByteBuf out, Object[] objects) {
+        FileView[] views = new FileView[objects.length];
+        Map<String, Integer> directories = new LinkedHashMap<>();
+        for (int i = 0; i < objects.length; i++) {
+            if (!(objects[i] instanceof FileView)) {
+                throw new EncoderException("Unsupported body object: " + objects[i]);
+            }
+            views[i] = (FileView) objects[i];
+            directories.putIfAbsent(views[i].getDirectory(), directories.size());
+        }
+        writeVarInt(out, views.length);
+
+        for (int i = 0; i < views.length; i += 8) {
+            int bits = 0;
+            for (int j = i; j < Math.min(i + 8, views.length); j++) {
+                if (views[j].isDirectory()) {
+                    bits |= 1 << (j - i);
+                }
+            }
+            out.writeByte(bits);
+        }
+
+        writeVarInt(out, directories.size());
+        for (String directory : directories.keySet()) {
+            writeString(out, directory);
+        }
+        for (FileView view : views) {
+            writeVarInt(out, directories.get(view.getDirectory()));
+        }
+
+        for (FileView view : views) {
+            writeString(out, view.getFilename());
+        }
+        for (FileView view : views) {
+            writeVarLong(out, view.isDirectory() ? view.getSize() + 1 : view.getSize());
+        }
+
+        long previous = 0;
+        for (FileView view : views) {
+            writeZigZagLong(out, view.getCreatingMillis() - previous);
+            previous = view.getCreatingMillis();
+        }
+        previous = 0;
+        for (FileView view : views) {
+            writeZigZagLong(out, view.getLastModifiedMillis() - previous);
+            previous = view.getLastModifiedMillis();
+        }
+    }
+
+    /**
+     * Reads FileView objects written by columns, objects of the same directory share its string
+     * @param in - frame buffer
+     * @return FileView objects
+     */
+    static Object[] readFileViews(ByteBuf in) {
+        int count = readCount(in);
+
+        boolean[] isDirectory = new boolean[count];
+        for (int i = 0; i < count; i += 8) {
+            int bits = in.readUnsignedByte();
+            for (int j = i; j < Math.min(i + 8, count); j++) {
+                isDirectory[j] = (bits & (1 << (j - i))) != 0;
+            }
+        }
+
+        String[] dictionary = new String[readCount(in)];
+        for (int i = 0; i < dictionary.length; i++) {
+            dictionary[i] = readString(in);
+        }
+        String[] directories = new String[count];
+        for (int i = 0; i < count; i++) {
+            int index = readVarInt(in);
+            if (index < 0 || index >= dictionary.length) {
+                throw new CorruptedFrameException("Invalid directory index: " + index);
+            }
+            directories[i] = dictionary[index];
+        }
+
+        String[] filenames = new String[count];
+        for (int i = 0; i < count; i++) {
+            filenames[i] = readString(in);
+        }
+        long[] sizes = new long[count];
+        for (int i = 0; i < count; i++) {
+            sizes[i] = isDirectory[i] ? readVarLong(in) - 1 : readVarLong(in);
+        }
+
+        long[] creatingTimes = new long[count];
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            previous += readZigZagLong(in);
+            creatingTimes[i] = previous;
+        }
+        Object[] views = new Object[count];
+        previous = 0;
+        for (int i = 0; i < count; i++) {
+            previous += readZigZagLong(in);
+            views[i] = new FileView(isDirectory[i], filenames[i], sizes[i], directories[i], creatingTimes[i], previous);
+        }
+        return views;
+    }
+
+    /**
+     * Reads the number of the following items, every item takes at least one byte of the frame
+     * @param in - frame buffer
+     * @return number of the items
+     */
+    private static int readCount(ByteBuf in) {
+        int count = readVarInt(in);
+        if (count < 0 || count > in.readableBytes()) {
+            throw new CorruptedFrameException("Invalid count: " + count);
+        }
+        return count;
+    }
+
+    static void writeZigZagLong(ByteBuf out, long value) {
+        writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    static long readZigZagLong(ByteBuf in) {
+        long value = readVarLong(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static void writeString(ByteBuf out, String value) {
+        if (value == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length + 1);
+        out.writeBytes(bytes);
+    }
+
+    static String readString(ByteBuf in) {
+        int length = readVarInt(in) - 1;
+        if (length < 0) {
+            return null;
+        }
+        String value = in.toString(in.readerIndex(), length, StandardCharsets.UTF_8);
+        in.skipBytes(length);
+        return value;
+    }
+
+    public static void writeVarInt(ByteBuf out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    public static int readVarInt(ByteBuf in) {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.readByte();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new CorruptedFrameException("Malformed varint");
+    }
+
+    public static void writeVarLong(ByteBuf out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    public static long readVarLong(ByteBuf in) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new CorruptedFrameException("Malformed varlong");
+    }
+}
@@ -0,0 +1,38 @@
+package ru.geekbrains.codecs;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+
+import java.util.zip.Inflater;
+
+/**
+ * Splits inbound bytes into length-prefixed frames and decodes every frame into NetworkPackage
+ * (see NetworkPackageCodec). Deflated bodies are inflated by the inflater of the channel.
+ */
+public class NetworkPackageDecoder extends LengthFieldBasedFrameDecoder {
+    private final Inflater inflater = new Inflater();
+
+    public NetworkPackageDecoder(int maxFrameLength) {
+        super(maxFrameLength, 0, NetworkPackageCodec.LENGTH_FIELD_SIZE, 0, NetworkPackageCodec.LENGTH_FIELD_SIZE);
+    }
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, ByteBuf in) throws Exception {
+        ByteBuf frame = (ByteBuf) super.decode(ctx, in);
+        if (frame == null) {
+            return null;
+        }
+
+        try {
+            return NetworkPackageCodec.decode(frame, inflater);
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Override
+    protected void handlerRemoved0(ChannelHandlerContext ctx) throws Exception {
+        inflater.end();
+    }
+}
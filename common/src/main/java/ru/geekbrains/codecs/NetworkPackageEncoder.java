@@ -0,0 +1,36 @@
+package ru.geekbrains.codecs;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import ru.geekbrains.messages.NetworkPackage;
+
+import java.util.List;
+
+/**
+ * Encodes NetworkPackage into the length-prefixed binary frame (see NetworkPackageCodec).
+ * Bytes of file are not copied into the frame: the retained content of the package is written
+ * into the channel after the frame prefix.
+ */
+public class NetworkPackageEncoder extends MessageToMessageEncoder<NetworkPackage> {
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, NetworkPackage msg, List<Object> out) throws Exception {
+        ByteBuf prefix = ctx.alloc().ioBuffer();
+        ByteBuf content = msg.content();
+        try {
+            prefix.writeInt(0);
+            NetworkPackageCodec.encode(msg, prefix);
+            int contentLength = content == null ? 0 : content.readableBytes();
+            prefix.setInt(0, prefix.writerIndex() - NetworkPackageCodec.LENGTH_FIELD_SIZE + contentLength);
+        } catch (Throwable e) {
+            prefix.release();
+            throw e;
+        }
+
+        out.add(prefix);
+        if (content != null) {
+            out.add(content.retain());
+        }
+    }
+}
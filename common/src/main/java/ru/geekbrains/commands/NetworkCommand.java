@@ -24,4 +24,14 @@ public enum NetworkCommand {
     AUTH,
     AUTH_OK,
     AUTH_FAIL,
+    UPLOAD_RESUME,
+    DOWNLOAD_RESUME,
+    LS_CANCEL,
+    COPY,
+    MOVE,
+    AUTH_RETRY,
+    AUTH_RESUME,
+    COPY_FAIL,
+    LOGOUT,
+    RM_FAIL,
 }
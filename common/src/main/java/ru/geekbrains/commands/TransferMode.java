@@ -0,0 +1,13 @@
+package ru.geekbrains.commands;
+
+/**
+ * Mode of the transfer sent by its name in the start command, the params of the mode follow it
+ */
+public enum TransferMode {
+    // Whole file, no params
+    WHOLE,
+    // Byte range of the file: offset and length of the range
+    RANGE,
+    // Continued transfer: confirmed offset and CRC32 of the bytes before it
+    RESUME,
+}
@@ -4,4 +4,12 @@ public class DBConfig {
     public static final String URL = "jdbc:mysql://localhost/network_file_storage?useUnicode=true&serverTimezone=UTC";
     public static final String user = "nfs_user";
     public static final String password = "Test1234";
+    // Connections of the pool shared by the logins, the login waits for the free connection up to the timeout
+    public static final int POOL_SIZE = 10;
+    public static final long POOL_CONNECTION_TIMEOUT = 5_000;
+    // Idle connections are checked every interval and replaced before the DB server drops them, milliseconds
+    public static final long POOL_KEEPALIVE_TIME = 5 * 60 * 1000L;
+    public static final long POOL_MAX_LIFETIME = 30 * 60 * 1000L;
+    // Prepared statements cached by every connection
+    public static final int STATEMENT_CACHE_SIZE = 64;
 }
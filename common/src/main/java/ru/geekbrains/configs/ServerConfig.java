@@ -10,4 +10,89 @@ public class ServerConfig {
     public static final String SERVER_IP_ADDRESS = "localhost";
     public static final String ROOT_DIRECTORY = "file-server" + File.separator + "share";
     public static final int BUFFER_SIZE = 64 * 1024;
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    // Sends download chunks from the file straight to the socket (sendfile) instead of copying them to the heap
+    public static final boolean ZERO_COPY_DOWNLOAD = true;
+    // Number of upload chunks the client keeps in flight and the largest window the server grants
+    public static final int UPLOAD_WINDOW = 8;
+    public static final int MAX_UPLOAD_WINDOW = 64;
+    // Server pushes the whole file after DOWNLOAD_START instead of waiting DOWNLOAD_READY for every part
+    public static final boolean STREAMING_DOWNLOAD = true;
+    // Files from the threshold size are split into byte ranges moved concurrently over the transfer connections
+    public static final long PARALLEL_TRANSFER_THRESHOLD = 64L * 1024 * 1024;
+    public static final int TRANSFER_CONNECTIONS = 4;
+    // Single connection transfers write the part file with the journal and continue from the confirmed offset
+    public static final boolean RESUMABLE_TRANSFERS = true;
+    // Number of chunks between the journal records
+    public static final int JOURNAL_INTERVAL = 16;
+    // Part files and journals of the interrupted uploads not written for the time are deleted,
+    // ROOT_DIRECTORY is swept every interval, seconds
+    public static final long PART_FILE_TTL = 7 * 24 * 60 * 60;
+    public static final long PART_FILE_SWEEP_INTERVAL = 6 * 60 * 60;
+    // Transfer chunks are deflated unless the first sampled chunks do not shrink below the ratio
+    public static final boolean COMPRESSION = true;
+    public static final int COMPRESSION_SAMPLE_CHUNKS = 4;
+    public static final double COMPRESSION_MAX_RATIO = 0.9;
+    // Uploads send SHA-256 of the chunks first, the server copies the chunks it stores instead of receiving them.
+    // Uploaded files are hard linked to the blobs of the chunk store, identical files share one blob,
+    // the number of links is the reference count, the blobs without the files are removed every GC interval
+    public static final boolean DEDUP_UPLOADS = true;
+    public static final String CHUNK_STORE_DIRECTORY = "file-server" + File.separator + "chunks";
+    public static final int DEDUP_MAX_CHUNKS = 64 * 1024;
+    public static final int CHUNK_STORE_GC_INTERVAL = 60 * 60;
+    // Removed files are renamed into the trash of the user and deleted in the background,
+    // the cleaner pauses for TRASH_DELETE_PAUSE milliseconds after every batch of the deleted files
+    public static final String TRASH_DIRECTORY = "file-server" + File.separator + "trash";
+    public static final int TRASH_DELETE_BATCH = 1000;
+    public static final long TRASH_DELETE_PAUSE = 20;
+    // Commands COPY and MOVE copy the files on the server, the files from the threshold size are cloned
+    // by "cp --reflink=always" on Linux if the file system supports it, timeout of the clone in seconds
+    public static final boolean COPY_REFLINK = true;
+    public static final long COPY_REFLINK_THRESHOLD = 1024 * 1024;
+    public static final int COPY_REFLINK_TIMEOUT = 60;
+    // Copy progress is reported to the client every number of bytes
+    public static final long COPY_PROGRESS_BYTES = 64L * 1024 * 1024;
+    // Bytes the home directory of the user may store, the uploads over the quota are refused, 0 - unlimited
+    public static final long USER_QUOTA = 10L * 1024 * 1024 * 1024;
+    // Server keeps listings of the recently browsed directories, bounded by directories and total entries
+    public static final int LISTING_CACHE_DIRECTORIES = 1024;
+    public static final int LISTING_CACHE_ENTRIES = 100_000;
+    // Metadata of the directories is kept in the append-only catalog next to ROOT_DIRECTORY and loaded at the start,
+    // the directories not changed since they were recorded are listed from it. The catalog is compacted when it has
+    // the number of the replaced records and reconciled with the disk in the background every interval, seconds
+    public static final String CATALOG_FILE = "file-server" + File.separator + "catalog";
+    public static final int CATALOG_COMPACT_RECORDS = 10_000;
+    public static final long CATALOG_RECONCILE_INTERVAL = 6 * 60 * 60;
+    // Filename index of the home directory is rebuilt in the background after the interval, milliseconds
+    public static final long SEARCH_INDEX_REBUILD_INTERVAL = 10 * 60 * 1000L;
+    // Directories from the threshold number of entries read the attributes on the fork-join pool by the batches
+    public static final int LISTING_PARALLEL_THRESHOLD = 10_000;
+    public static final int LISTING_PARALLEL_BATCH = 2_000;
+    // Server handlers doing blocking file and DB work run on the separate executors with bounded queues
+    public static final int BLOCKING_THREADS = 16;
+    public static final int BLOCKING_MAX_PENDING_TASKS = 16 * 1024;
+    // Number of virtual threads of the blocking handlers instead of BLOCKING_THREADS (Java 21), 0 - not used
+    public static final int BLOCKING_VIRTUAL_THREADS = 0;
+    // Commands walking the file trees (COPY, MOVE, SEARCH) run on the separate executor, so they do not stall
+    // the other channels of the blocking executor, the commands over the queue limit are refused
+    public static final int LONG_TASK_THREADS = 4;
+    public static final int LONG_TASK_QUEUE = 256;
+    // Passwords are hashed on the separate executor of the processor threads, the logins over the queue limit
+    // are answered AUTH_RETRY, the client repeats the login after the delay up to the number of attempts
+    public static final int AUTH_HASH_THREADS = Runtime.getRuntime().availableProcessors();
+    public static final int AUTH_HASH_QUEUE = 64;
+    public static final long AUTH_RETRY_DELAY = 1000;
+    public static final int AUTH_RETRY_ATTEMPTS = 5;
+    // Failed logins of the login or the remote address in the window block its next logins until the window passes,
+    // the failed credentials are answered AUTH_FAIL without hashing for the time, milliseconds
+    public static final int AUTH_LIMIT_FAILURES = 5;
+    public static final int AUTH_LIMIT_ADDRESS_FAILURES = 20;
+    public static final long AUTH_LIMIT_WINDOW = 60 * 1000L;
+    public static final long AUTH_FAILURE_CACHE_TTL = 30 * 1000L;
+    // Reconnected clients are authenticated by the session token of the last login for the time, seconds
+    public static final long SESSION_TTL = 12 * 60 * 60;
+    // Listings are sent by pages of the entries, the next page follows when the previous one is written
+    public static final int LS_PAGE_SIZE = 1000;
+    // Interval of the server metrics report, seconds
+    public static final int METRICS_INTERVAL = 60;
 }
@@ -0,0 +1,24 @@
+package ru.geekbrains.configs;
+
+/**
+ * Transport settings of the server and client connections.
+ * Every setting is read from the system property "cloud.transport.*" (e.g. -Dcloud.transport.type=nio),
+ * the default is used if the property is not set.
+ */
+public class TransportConfig {
+    private static final String PREFIX = "cloud.transport.";
+
+    // "epoll" uses the native transport on Linux and falls back to "nio" if it is not available
+    public static final String TYPE = System.getProperty(PREFIX + "type", "epoll");
+    // Number of server channels bound to the port with SO_REUSEPORT, each accepts in its own thread (epoll only)
+    public static final int ACCEPTORS = Integer.getInteger(PREFIX + "acceptors", 1);
+    // Number of worker threads, 0 - twice the number of processors
+    public static final int WORKERS = Integer.getInteger(PREFIX + "workers", 0);
+    public static final boolean TCP_NODELAY = Boolean.parseBoolean(System.getProperty(PREFIX + "tcpNoDelay", "true"));
+    // Socket buffer sizes, 0 - system default
+    public static final int SEND_BUFFER_SIZE = Integer.getInteger(PREFIX + "sendBuffer", 0);
+    public static final int RECEIVE_BUFFER_SIZE = Integer.getInteger(PREFIX + "receiveBuffer", 0);
+    // Streaming downloads pause when the channel write buffer exceeds the high water mark
+    public static final int WRITE_BUFFER_LOW_WATER_MARK = Integer.getInteger(PREFIX + "lowWaterMark", 512 * 1024);
+    public static final int WRITE_BUFFER_HIGH_WATER_MARK = Integer.getInteger(PREFIX + "highWaterMark", 2 * 1024 * 1024);
+}
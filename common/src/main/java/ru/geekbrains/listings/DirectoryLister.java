@@ -0,0 +1,117 @@
+package ru.geekbrains.listings;
+
+import ru.geekbrains.configs.ServerConfig;
+import ru.geekbrains.messages.FileView;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Creates FileView objects of the directory entries reading the attributes of every entry once.
+ * Entries of the directory with ServerConfig.LISTING_PARALLEL_THRESHOLD entries or more are split
+ * into the batches of ServerConfig.LISTING_PARALLEL_BATCH entries, their attributes are read on the fork-join pool.
+ * Entries deleted while the directory is read are skipped.
+ */
+public final class DirectoryLister {
+
+    private DirectoryLister() {
+    }
+
+    /**
+     * Reads the attributes of the entries from the index "from" to "to", splitting the range while it is larger
+     * than the batch
+     */
+    private static class ReadAttributes extends RecursiveAction {
+        // RecursiveAction is Serializable, the tasks are never serialized
+        private static final long serialVersionUID = 1L;
+
+        private final List<Path> entries;
+        private final FileView[] views;
+        private final int from;
+        private final int to;
+
+        private ReadAttributes(List<Path> entries, FileView[] views, int from, int to) {
+            this.entries = entries;
+            this.views = views;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= ServerConfig.LISTING_PARALLEL_BATCH) {
+                readAttributes(entries, views, from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new ReadAttributes(entries, views, from, middle), new ReadAttributes(entries, views, middle, to));
+        }
+    }
+
+    /**
+     * Returns FileView objects of all files (and directories) in the directory
+     * @param dir - directory
+     * @return list of the objects FileView
+     * @throws IOException if directory reading error
+     */
+    public static List<FileView> list(Path dir) throws IOException {
+        return list(dir, ServerConfig.LISTING_PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * Returns FileView objects of all files (and directories) in the directory
+     * @param dir - directory
+     * @param parallelThreshold - number of entries from which the attributes are read in parallel
+     * @return list of the objects FileView
+     * @throws IOException if directory reading error
+     */
+    static List<FileView> list(Path dir, int parallelThreshold) throws IOException {
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path entry : stream) {
+                entries.add(entry);
+            }
+        }
+
+        FileView[] views = new FileView[entries.size()];
+        try {
+            if (entries.size() >= parallelThreshold) {
+                ForkJoinPool.commonPool().invoke(new ReadAttributes(entries, views, 0, views.length));
+            } else {
+                readAttributes(entries, views, 0, views.length);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        List<FileView> files = new ArrayList<>(views.length);
+        for (FileView view : views) {
+            if (view != null) {
+                files.add(view);
+            }
+        }
+        return files;
+    }
+
+    private static void readAttributes(List<Path> entries, FileView[] views, int from, int to) {
+        for (int i = from; i < to; i++) {
+            Path entry = entries.get(i);
+            try {
+                views[i] = new FileView(entry, Files.readAttributes(entry, BasicFileAttributes.class));
+            } catch (NoSuchFileException e) {
+                // Deleted after the directory was read
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -7,11 +7,13 @@ import java.io.Serializable;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 
 /**
- * Contains file view for upload to the server, download to the client and show to the client's interface
+ * Contains file view for upload to the server, download to the client and show to the client's interface.
+ * Times are kept in epoch milliseconds, LocalDateTime is created only when the time is shown.
  */
 public class FileView implements Serializable {
     private enum FileType {
@@ -29,30 +31,82 @@ public class FileView implements Serializable {
         }
     }
 
+    // Java serialization is kept for the codec benchmark only, the network codec writes the fields itself
+    private static final long serialVersionUID = 1L;
+
+    // File times are shown with this offset
+    private static final ZoneOffset TIME_OFFSET = ZoneOffset.ofHours(3);
+
     private FileType fileType;
     private String filename;
     private long size;
     private String directory;
-    private LocalDateTime creatingTime;
-    private LocalDateTime lastModifiedTime;
+    private long creatingTime;
+    private long lastModifiedTime;
 
     public FileView(Path path) {
+        this(path, readAttributes(path));
+    }
+
+    /**
+     * Creates file view from the attributes already read, so the file is not accessed again
+     * @param path - file
+     * @param atr - attributes of the file
+     */
+    public FileView(Path path, BasicFileAttributes atr) {
+        this.fileType = atr.isDirectory() ? FileType.DIRECTORY : FileType.FILE;
+        this.filename = path.getFileName().toString();
+        this.size = fileType == FileType.FILE ? atr.size() : -1L;
+        this.directory = path.getParent().toString();
+        if (this.directory.startsWith(ServerConfig.ROOT_DIRECTORY)) {
+            this.directory = this.directory.substring(ServerConfig.ROOT_DIRECTORY.length() + 1);
+        }
+        this.creatingTime = atr.lastModifiedTime().toMillis();
+        this.lastModifiedTime = atr.creationTime().toMillis();
+    }
+
+    private static BasicFileAttributes readAttributes(Path path) {
         try {
-            this.fileType = Files.isDirectory(path) ? FileType.DIRECTORY : FileType.FILE;
-            this.filename = path.getFileName().toString();
-            this.size = fileType == FileType.FILE ? Files.size(path) : -1L;
-            this.directory = path.getParent().toString();
-            if (this.directory.startsWith(ServerConfig.ROOT_DIRECTORY)) {
-                this.directory = this.directory.substring(ServerConfig.ROOT_DIRECTORY.length() + 1);
-            }
-            BasicFileAttributes atr = Files.readAttributes(path, BasicFileAttributes.class);
-            this.creatingTime = LocalDateTime.ofInstant(atr.lastModifiedTime().toInstant(), ZoneOffset.ofHours(3));
-            this.lastModifiedTime = LocalDateTime.ofInstant(atr.creationTime().toInstant(), ZoneOffset.ofHours(3));
+            return Files.readAttributes(path, BasicFileAttributes.class);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Restores file view from the fields received over the network
+     * @param isDirectory - true if the file view describes a directory
+     * @param filename - name of the file
+     * @param size - size of the file in bytes or -1 for a directory
+     * @param directory - parent directory of the file
+     * @param creatingTime - creating time of the file
+     * @param lastModifiedTime - last modified time of the file
+     */
+    public FileView(boolean isDirectory, String filename, long size, String directory,
+                    LocalDateTime creatingTime, LocalDateTime lastModifiedTime) {
+        this(isDirectory, filename, size, directory, creatingTime.toInstant(TIME_OFFSET).toEpochMilli(),
+                lastModifiedTime.toInstant(TIME_OFFSET).toEpochMilli());
+    }
+
+    /**
+     * Restores file view from the fields received over the network
+     * @param isDirectory - true if the file view describes a directory
+     * @param filename - name of the file
+     * @param size - size of the file in bytes or -1 for a directory
+     * @param directory - parent directory of the file
+     * @param creatingTime - creating time of the file in epoch milliseconds
+     * @param lastModifiedTime - last modified time of the file in epoch milliseconds
+     */
+    public FileView(boolean isDirectory, String filename, long size, String directory,
+                    long creatingTime, long lastModifiedTime) {
+        this.fileType = isDirectory ? FileType.DIRECTORY : FileType.FILE;
+        this.filename = filename;
+        this.size = size;
+        this.directory = directory;
+        this.creatingTime = creatingTime;
+        this.lastModifiedTime = lastModifiedTime;
+    }
+
     public String getFileType() {
         return fileType.getType();
     }
@@ -70,10 +124,18 @@ public class FileView implements Serializable {
     }
 
     public LocalDateTime getCreatingTime() {
-        return creatingTime;
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(creatingTime), TIME_OFFSET);
     }
 
     public LocalDateTime getLastModifiedTime() {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(lastModifiedTime), TIME_OFFSET);
+    }
+
+    public long getCreatingMillis() {
+        return creatingTime;
+    }
+
+    public long getLastModifiedMillis() {
         return lastModifiedTime;
     }
 
@@ -1,11 +1,14 @@
 package ru.geekbrains.messages;
 
-import java.io.Serializable;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.ReferenceCounted;
 
 /**
- * Package contain header for sends commands and body for sends bytes of file or bytes FileView.
+ * Package contain header for sends commands and body for sends bytes of file or FileView objects.
+ * Reference count of the package is the reference count of the file bytes (if the body contains them),
+ * so the package must be released by the handler which consumes it.
  */
-public class NetworkPackage implements Serializable {
+public class NetworkPackage implements ReferenceCounted {
     private PackageHeader header;
     private PackageBody body;
 
@@ -21,4 +24,65 @@ public class NetworkPackage implements Serializable {
     public PackageBody getBody() {
         return body;
     }
+
+    /**
+     * @return bytes of file or null if the package has not them
+     */
+    public ByteBuf content() {
+        return body == null ? null : body.getByteBody();
+    }
+
+    @Override
+    public int refCnt() {
+        ByteBuf content = content();
+        return content == null ? 1 : content.refCnt();
+    }
+
+    @Override
+    public NetworkPackage retain() {
+        ByteBuf content = content();
+        if (content != null) {
+            content.retain();
+        }
+        return this;
+    }
+
+    @Override
+    public NetworkPackage retain(int increment) {
+        ByteBuf content = content();
+        if (content != null) {
+            content.retain(increment);
+        }
+        return this;
+    }
+
+    @Override
+    public NetworkPackage touch() {
+        ByteBuf content = content();
+        if (content != null) {
+            content.touch();
+        }
+        return this;
+    }
+
+    @Override
+    public NetworkPackage touch(Object hint) {
+        ByteBuf content = content();
+        if (content != null) {
+            content.touch(hint);
+        }
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        ByteBuf content = content();
+        return content != null && content.release();
+    }
+
+    @Override
+    public boolean release(int decrement) {
+        ByteBuf content = content();
+        return content != null && content.release(decrement);
+    }
 }
@@ -1,27 +1,49 @@
 package ru.geekbrains.messages;
 
-import java.io.Serializable;
+import io.netty.buffer.ByteBuf;
 
 /**
- * Contains bytes of file or bytes FileView
+ * Contains bytes of file or FileView objects.
+ * Bytes of file are kept in the reference-counted ByteBuf, which is released together with NetworkPackage.
+ * Outbound bytes can be deflated, inbound bytes are always inflated by the decoder.
  */
-public class PackageBody implements Serializable {
+public class PackageBody {
     private Object[] objectBody;
-    private byte[] byteBody;
+    private ByteBuf byteBody;
+    // Length of the bytes before compression, -1 if the bytes are not deflated
+    private int inflatedLength = -1;
 
     public PackageBody(Object[] objectBody) {
         this.objectBody = objectBody;
     }
 
-    public PackageBody(byte[] byteBody) {
+    public PackageBody(ByteBuf byteBody) {
         this.byteBody = byteBody;
     }
 
+    /**
+     * Creates body of the deflated bytes
+     * @param byteBody - deflated bytes
+     * @param inflatedLength - length of the bytes before compression
+     */
+    public PackageBody(ByteBuf byteBody, int inflatedLength) {
+        this.byteBody = byteBody;
+        this.inflatedLength = inflatedLength;
+    }
+
     public Object[] getObjectBody() {
         return objectBody;
     }
 
-    public byte[] getByteBody() {
+    public ByteBuf getByteBody() {
         return byteBody;
     }
+
+    public boolean isDeflated() {
+        return inflatedLength >= 0;
+    }
+
+    public int getInflatedLength() {
+        return inflatedLength;
+    }
 }
@@ -2,20 +2,21 @@ package ru.geekbrains.messages;
 
 import ru.geekbrains.commands.NetworkCommand;
 
-import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Contains command string and array params.
+ * Contains command, stream ID of the transfer (0 if the package is not a part of the transfer) and array params.
  * Implements pattern builder.
  */
-public class PackageHeader implements Serializable {
+public class PackageHeader {
     private NetworkCommand command;
+    private int streamId;
     private List<String> params;
 
     public static class HeaderBuilder {
         private NetworkCommand command;
+        private int streamId;
         private List<String> params;
 
         public HeaderBuilder(NetworkCommand command) {
@@ -23,6 +24,11 @@ public class PackageHeader implements Serializable {
             params = new ArrayList<>();
         }
 
+        public HeaderBuilder setStreamId(int streamId) {
+            this.streamId = streamId;
+            return this;
+        }
+
         public HeaderBuilder addParam(String param) {
             params.add(param);
             return this;
@@ -36,6 +42,7 @@ public class PackageHeader implements Serializable {
 
     private PackageHeader(HeaderBuilder builder) {
         this.command = builder.command;
+        this.streamId = builder.streamId;
         this.params = builder.params;
     }
 
@@ -43,7 +50,15 @@ public class PackageHeader implements Serializable {
         return command;
     }
 
+    public int getStreamId() {
+        return streamId;
+    }
+
     public String getParam(int index) {
         return params.get(index - 1);
     }
+
+    public int getParamCount() {
+        return params.size();
+    }
 }
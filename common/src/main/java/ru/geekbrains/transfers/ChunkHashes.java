@@ -0,0 +1,91 @@
+package ru.geekbrains.transfers;
+
+import ru.geekbrains.configs.ServerConfig;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 of the transfer chunks. The file is split into the chunks of ServerConfig.BUFFER_SIZE bytes,
+ * the hash list is the concatenation of the chunk hashes, HASH_SIZE bytes each.
+ */
+public final class ChunkHashes {
+    public static final int HASH_SIZE = 32;
+
+    private ChunkHashes() {
+    }
+
+    /**
+     * @return new SHA-256 digest
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param length - number of bytes
+     * @return number of the chunks of the bytes
+     */
+    public static long count(long length) {
+        return (length + ServerConfig.BUFFER_SIZE - 1) / ServerConfig.BUFFER_SIZE;
+    }
+
+    /**
+     * Calculates the hash list of the byte range by positional reads, so the channel can be shared
+     * @param channel - file
+     * @param from - start of the range, multiple of the chunk size
+     * @param to - end of the range, exclusive
+     * @return hash list
+     * @throws IOException if file reading error
+     */
+    public static byte[] hash(FileChannel channel, long from, long to) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] hashes = new byte[(int) count(to - from) * HASH_SIZE];
+        ByteBuffer buffer = ByteBuffer.allocateDirect(ServerConfig.BUFFER_SIZE);
+        long position = from;
+        for (int offset = 0; offset < hashes.length; offset += HASH_SIZE) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), to - position));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of file");
+                }
+            }
+            buffer.flip();
+            position += buffer.remaining();
+            digest.update(buffer);
+            System.arraycopy(digest.digest(), 0, hashes, offset, HASH_SIZE);
+        }
+        return hashes;
+    }
+
+    /**
+     * Checks that the bytes are the chunk of the hash list
+     * @param digest - digest, it is reset
+     * @param bytes - bytes of the chunk, the position is not changed
+     * @param hashes - hash list
+     * @param index - index of the chunk in the list
+     * @return true if the hash of the bytes matches
+     */
+    public static boolean matches(MessageDigest digest, ByteBuffer bytes, byte[] hashes, int index) {
+        if (index < 0 || (index + 1) * HASH_SIZE > hashes.length) {
+            return false;
+        }
+        digest.reset();
+        digest.update(bytes.duplicate());
+        byte[] hash = digest.digest();
+        for (int i = 0; i < HASH_SIZE; i++) {
+            if (hash[i] != hashes[index * HASH_SIZE + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,233 @@
+package ru.geekbrains.transfers;
+
+import ru.geekbrains.configs.ServerConfig;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Part file of the resumable transfer and its journal.
+ * The transfer is written into the file "target.part", the journal "target.part.journal" keeps
+ * the confirmed byte offset and CRC32 of the bytes before it. The part file is forced to the disk
+ * before every journal record, so the journal never confirms the bytes that can be lost.
+ * Reopened part file is verified by the journal checksum and truncated to the confirmed offset,
+ * the transfer continues from this offset. The part file is moved to the target when the transfer is complete.
+ */
+public class TransferJournal {
+    private static final String PART_SUFFIX = ".part";
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // Confirmed offset and checksum
+    private static final int RECORD_SIZE = 2 * Long.BYTES;
+
+    private final Path targetPath;
+    private final Path partPath;
+    private final Path journalPath;
+    private final FileChannel channel;
+
+    private CRC32 crc = new CRC32();
+    private long offset;
+    private int chunks;
+
+    private TransferJournal(Path targetPath, FileChannel channel) {
+        this.targetPath = targetPath;
+        this.partPath = partPath(targetPath);
+        this.journalPath = journalPath(targetPath);
+        this.channel = channel;
+    }
+
+    /**
+     * @param targetPath - target file of the transfer
+     * @return part file of the target
+     */
+    public static Path partPath(Path targetPath) {
+        return Paths.get(targetPath.toString() + PART_SUFFIX);
+    }
+
+    /**
+     * @param targetPath - target file of the transfer
+     * @return journal of the part file of the target
+     */
+    public static Path journalPath(Path targetPath) {
+        return Paths.get(targetPath.toString() + PART_SUFFIX + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * Checks whether the file is the part file, the journal or the temporary journal of the transfer
+     * @param fileName - name of the file
+     * @return true if the name has the suffix of the transfer files
+     */
+    public static boolean isTransferFile(String fileName) {
+        return fileName.endsWith(PART_SUFFIX) || fileName.endsWith(PART_SUFFIX + JOURNAL_SUFFIX)
+                || fileName.endsWith(PART_SUFFIX + JOURNAL_SUFFIX + TEMP_SUFFIX);
+    }
+
+    /**
+     * Returns the target of the transfer file
+     * @param file - part file, journal or temporary journal
+     * @return target file of the transfer
+     */
+    public static Path targetOf(Path file) {
+        String name = file.toString();
+        for (String suffix : new String[]{PART_SUFFIX + JOURNAL_SUFFIX + TEMP_SUFFIX, PART_SUFFIX + JOURNAL_SUFFIX}) {
+            if (name.endsWith(suffix)) {
+                return Paths.get(name.substring(0, name.length() - suffix.length()));
+            }
+        }
+        return Paths.get(name.substring(0, name.length() - PART_SUFFIX.length()));
+    }
+
+    /**
+     * Opens the part file of the target and restores the confirmed offset from the journal.
+     * If the journal is missing or the part file does not match it, the transfer starts from zero offset.
+     * @param targetPath - target file of the transfer
+     * @return journal
+     * @throws IOException if part file opening or reading error
+     */
+    public static TransferJournal open(Path targetPath) throws IOException {
+        FileChannel channel = FileChannel.open(partPath(targetPath),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        TransferJournal journal = new TransferJournal(targetPath, channel);
+        try {
+            journal.restore();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    private void restore() throws IOException {
+        if (Files.exists(journalPath) && Files.size(journalPath) == RECORD_SIZE) {
+            ByteBuffer record = ByteBuffer.wrap(Files.readAllBytes(journalPath));
+            long confirmed = record.getLong();
+            long checksum = record.getLong();
+            if (confirmed > 0 && confirmed <= channel.size()) {
+                CRC32 prefix = crc(channel, confirmed);
+                if (prefix.getValue() == checksum) {
+                    crc = prefix;
+                    offset = confirmed;
+                }
+            }
+        }
+        // Bytes after the confirmed offset may be lost or damaged
+        channel.truncate(offset);
+    }
+
+    /**
+     * Calculates CRC32 of the bytes at the beginning of the file
+     * @param channel - file
+     * @param length - number of bytes
+     * @return checksum or -1 if the file is shorter
+     * @throws IOException if file reading error
+     */
+    public static long checksum(FileChannel channel, long length) throws IOException {
+        if (channel.size() < length) {
+            return -1L;
+        }
+        return crc(channel, length).getValue();
+    }
+
+    private static CRC32 crc(FileChannel channel, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(ServerConfig.BUFFER_SIZE);
+        long position = 0;
+        while (position < length) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            buffer.flip();
+            crc.update(buffer);
+            position += read;
+        }
+        return crc;
+    }
+
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return offset the transfer continues from
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return CRC32 of the bytes before the offset
+     */
+    public long getChecksum() {
+        return crc.getValue();
+    }
+
+    /**
+     * Discards the part file, the transfer starts from zero offset
+     * @throws IOException if truncating error
+     */
+    public void reset() throws IOException {
+        crc.reset();
+        offset = 0;
+        chunks = 0;
+        channel.truncate(0);
+        Files.deleteIfExists(journalPath);
+    }
+
+    /**
+     * Counts the bytes written at the offset. Every ServerConfig.JOURNAL_INTERVAL chunks
+     * the part file is forced to the disk and the offset is confirmed in the journal.
+     * @param written - written bytes
+     * @throws IOException if journal writing error
+     */
+    public void update(ByteBuffer written) throws IOException {
+        offset += written.remaining();
+        crc.update(written);
+        if (++chunks % ServerConfig.JOURNAL_INTERVAL == 0) {
+            save();
+        }
+    }
+
+    private void save() throws IOException {
+        channel.force(false);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.putLong(offset).putLong(crc.getValue());
+        Path tempPath = Paths.get(journalPath.toString() + TEMP_SUFFIX);
+        Files.write(tempPath, record.array());
+        Files.move(tempPath, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Confirms the written bytes and closes the part file, the transfer can be resumed later
+     * @throws IOException if journal writing error
+     */
+    public void suspend() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            save();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Closes the part file, moves it to the target and deletes the journal
+     * @throws IOException if moving error
+     */
+    public void complete() throws IOException {
+        channel.close();
+        Files.move(partPath, targetPath, StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(journalPath);
+    }
+}
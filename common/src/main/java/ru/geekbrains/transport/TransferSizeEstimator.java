@@ -0,0 +1,35 @@
+package ru.geekbrains.transport;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.DefaultMessageSizeEstimator;
+import io.netty.channel.FileRegion;
+import io.netty.channel.MessageSizeEstimator;
+import ru.geekbrains.messages.NetworkPackage;
+
+/**
+ * Size of the outbound messages counted against the write buffer water marks.
+ * The default estimator counts FileRegion as 0 bytes and NetworkPackage as an unknown message, so the channel
+ * stays writable while any number of file parts are queued. FileRegion is counted by its bytes and
+ * NetworkPackage by the bytes of its body, other messages as by the default estimator.
+ */
+public class TransferSizeEstimator implements MessageSizeEstimator {
+    public static final TransferSizeEstimator DEFAULT = new TransferSizeEstimator();
+
+    private static final Handle DEFAULT_HANDLE = DefaultMessageSizeEstimator.DEFAULT.newHandle();
+
+    private final Handle handle = msg -> {
+        if (msg instanceof FileRegion) {
+            return (int) Math.min(Integer.MAX_VALUE, ((FileRegion) msg).count());
+        }
+        if (msg instanceof NetworkPackage) {
+            ByteBuf content = ((NetworkPackage) msg).content();
+            return content == null ? 0 : content.readableBytes();
+        }
+        return DEFAULT_HANDLE.size(msg);
+    };
+
+    @Override
+    public Handle newHandle() {
+        return handle;
+    }
+}
@@ -0,0 +1,179 @@
+package ru.geekbrains.transport;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import ru.geekbrains.configs.TransportConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Netty transport of the server and client connections: event loop groups, channel classes and socket options
+ * of TransportConfig.
+ * EPOLL is the native Linux transport, it supports SO_REUSEPORT, so several server channels bound to the same port
+ * accept connections in parallel. NIO is the portable transport, used if the native library is not available.
+ * Connections count the outbound file parts by TransferSizeEstimator, so the water marks limit them.
+ */
+public enum Transport {
+    EPOLL {
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads) {
+            return new EpollEventLoopGroup(threads);
+        }
+
+        @Override
+        public Class<? extends ServerChannel> getServerChannelClass() {
+            return EpollServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> getSocketChannelClass() {
+            return EpollSocketChannel.class;
+        }
+
+        @Override
+        public boolean isReusePortSupported() {
+            return true;
+        }
+    },
+    NIO {
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads) {
+            return new NioEventLoopGroup(threads);
+        }
+
+        @Override
+        public Class<? extends ServerChannel> getServerChannelClass() {
+            return NioServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> getSocketChannelClass() {
+            return NioSocketChannel.class;
+        }
+
+        @Override
+        public boolean isReusePortSupported() {
+            return false;
+        }
+    };
+
+    /**
+     * @param threads - number of threads, 0 - twice the number of processors
+     * @return event loop group of the transport
+     */
+    public abstract EventLoopGroup newEventLoopGroup(int threads);
+
+    public abstract Class<? extends ServerChannel> getServerChannelClass();
+
+    public abstract Class<? extends SocketChannel> getSocketChannelClass();
+
+    public abstract boolean isReusePortSupported();
+
+    /**
+     * Selects the transport of TransportConfig.TYPE, EPOLL falls back to NIO if it is not available
+     * @return transport
+     */
+    public static Transport select() {
+        if ("nio".equalsIgnoreCase(TransportConfig.TYPE)) {
+            return NIO;
+        }
+        if (!"epoll".equalsIgnoreCase(TransportConfig.TYPE)) {
+            throw new IllegalArgumentException("Unknown transport: " + TransportConfig.TYPE);
+        }
+        return Epoll.isAvailable() ? EPOLL : NIO;
+    }
+
+    /**
+     * @return number of the server channels: TransportConfig.ACCEPTORS if SO_REUSEPORT is supported, otherwise one
+     */
+    public int getAcceptors() {
+        return isReusePortSupported() ? Math.max(1, TransportConfig.ACCEPTORS) : 1;
+    }
+
+    /**
+     * Creates server bootstrap with the channel class and socket options of the transport
+     * @param acceptGroup - group of getAcceptors() threads accepting connections
+     * @param workerGroup - group of the connections
+     * @return server bootstrap without child handler
+     */
+    public ServerBootstrap newServerBootstrap(EventLoopGroup acceptGroup, EventLoopGroup workerGroup) {
+        ServerBootstrap b = new ServerBootstrap()
+                .group(acceptGroup, workerGroup)
+                .channel(getServerChannelClass())
+                .childOption(ChannelOption.TCP_NODELAY, TransportConfig.TCP_NODELAY)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, newWaterMark())
+                .childOption(ChannelOption.MESSAGE_SIZE_ESTIMATOR, TransferSizeEstimator.DEFAULT);
+        if (getAcceptors() > 1) {
+            b.option(EpollChannelOption.SO_REUSEPORT, true);
+        }
+        if (TransportConfig.SEND_BUFFER_SIZE > 0) {
+            b.childOption(ChannelOption.SO_SNDBUF, TransportConfig.SEND_BUFFER_SIZE);
+        }
+        if (TransportConfig.RECEIVE_BUFFER_SIZE > 0) {
+            // Set on the server channel, so the accepted connections negotiate the window with it
+            b.option(ChannelOption.SO_RCVBUF, TransportConfig.RECEIVE_BUFFER_SIZE);
+        }
+        return b;
+    }
+
+    /**
+     * Creates client bootstrap with the channel class and socket options of the transport
+     * @param group - group of the connections
+     * @return bootstrap without handler
+     */
+    public Bootstrap newBootstrap(EventLoopGroup group) {
+        Bootstrap b = new Bootstrap()
+                .group(group)
+                .channel(getSocketChannelClass())
+                .option(ChannelOption.TCP_NODELAY, TransportConfig.TCP_NODELAY)
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, newWaterMark())
+                .option(ChannelOption.MESSAGE_SIZE_ESTIMATOR, TransferSizeEstimator.DEFAULT);
+        if (TransportConfig.SEND_BUFFER_SIZE > 0) {
+            b.option(ChannelOption.SO_SNDBUF, TransportConfig.SEND_BUFFER_SIZE);
+        }
+        if (TransportConfig.RECEIVE_BUFFER_SIZE > 0) {
+            b.option(ChannelOption.SO_RCVBUF, TransportConfig.RECEIVE_BUFFER_SIZE);
+        }
+        return b;
+    }
+
+    /**
+     * Binds getAcceptors() server channels to the port, they share the port by SO_REUSEPORT
+     * @param b - server bootstrap created by newServerBootstrap
+     * @param port - server port
+     * @return bound server channels
+     * @throws InterruptedException if binding is interrupted
+     */
+    public List<Channel> bind(ServerBootstrap b, int port) throws InterruptedException {
+        List<Channel> channels = new ArrayList<>();
+        try {
+            for (int i = 0; i < getAcceptors(); i++) {
+                channels.add(b.bind(port).sync().channel());
+            }
+        } catch (Exception e) {
+            channels.forEach(Channel::close);
+            throw e;
+        }
+        return channels;
+    }
+
+    private static WriteBufferWaterMark newWaterMark() {
+        return new WriteBufferWaterMark(
+                TransportConfig.WRITE_BUFFER_LOW_WATER_MARK, TransportConfig.WRITE_BUFFER_HIGH_WATER_MARK);
+    }
+}
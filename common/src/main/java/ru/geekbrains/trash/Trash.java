@@ -0,0 +1,203 @@
+package ru.geekbrains.trash;
+
+import ru.geekbrains.configs.ServerConfig;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Removes files and directories in the background.
+ * The removed file or directory is renamed into the trash area of its owner at once, so it disappears
+ * from its directory, and deleted later by the cleaner thread. The cleaner walks the tree depth-first,
+ * keeping only the open directories of the current branch, and pauses for ServerConfig.TRASH_DELETE_PAUSE
+ * milliseconds after every ServerConfig.TRASH_DELETE_BATCH deleted files, so the disk is not saturated.
+ * The entries left in the trash by the previous run are deleted at the start.
+ * If the file can not be renamed into the trash (other file system), it is deleted in place in the background.
+ */
+public class Trash implements AutoCloseable {
+    private final Path directory;
+    private final Progress progress;
+    private final ExecutorService cleaner = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "trash-cleaner");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong nextEntry = new AtomicLong(System.currentTimeMillis());
+    private final AtomicInteger pending = new AtomicInteger();
+    private final LongAdder deleted = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * Progress of the deletion of one removed file or directory
+     */
+    @FunctionalInterface
+    public interface Progress {
+        /**
+         * @param entry - file or directory in the trash
+         * @param files - number of the deleted files and directories of the entry
+         * @param failed - number of the files and directories which can not be deleted
+         * @param done - deletion of the entry is finished
+         */
+        void progress(Path entry, long files, long failed, boolean done);
+    }
+
+    /**
+     * Creates the trash directory and starts the deletion of the entries left in it
+     * @param directory - trash directory, must be on the same file system as the removed files
+     * @param progress - progress callback, called from the cleaner thread
+     * @throws IOException if trash directory creating or reading error
+     */
+    public Trash(Path directory, Progress progress) throws IOException {
+        this.directory = directory;
+        this.progress = progress;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> areas = Files.newDirectoryStream(directory)) {
+            for (Path area : areas) {
+                if (!Files.isDirectory(area)) {
+                    submit(area);
+                    continue;
+                }
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(area)) {
+                    for (Path entry : entries) {
+                        submit(entry);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Renames the file or directory into the trash area and deletes it in the background.
+     * If it can not be renamed atomically, it is deleted in place in the background.
+     * @param path - removed file or directory
+     * @param area - name of the trash area of the owner
+     * @return true if the path is moved into the trash, false if it is deleted in place
+     * @throws IOException if renaming error
+     */
+    public boolean remove(Path path, String area) throws IOException {
+        Path areaPath = directory.resolve(area);
+        Files.createDirectories(areaPath);
+        Path entry = areaPath.resolve(nextEntry.getAndIncrement() + "-" + path.getFileName());
+        try {
+            Files.move(path, entry, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            submit(path);
+            return false;
+        }
+        submit(entry);
+        return true;
+    }
+
+    private void submit(Path entry) {
+        pending.incrementAndGet();
+        cleaner.execute(() -> {
+            try {
+                delete(entry);
+            } finally {
+                pending.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Deletes the tree depth-first, the failed files are counted and skipped
+     * @param entry - file or directory
+     */
+    private void delete(Path entry) {
+        long[] counts = new long[2];
+        try {
+            Files.walkFileTree(entry, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    return deleteOne(entry, file, counts);
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    if (!(e instanceof NoSuchFileException)) {
+                        counts[1]++;
+                        failed.increment();
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+                    return deleteOne(entry, dir, counts);
+                }
+            });
+        } catch (IOException e) {
+            counts[1]++;
+            failed.increment();
+        }
+        progress.progress(entry, counts[0], counts[1], true);
+    }
+
+    /**
+     * Deletes one file or empty directory and pauses after every batch
+     * @return TERMINATE if the cleaner is stopped
+     */
+    private FileVisitResult deleteOne(Path entry, Path path, long[] counts) {
+        try {
+            Files.deleteIfExists(path);
+            counts[0]++;
+            deleted.increment();
+        } catch (IOException e) {
+            counts[1]++;
+            failed.increment();
+            return FileVisitResult.CONTINUE;
+        }
+        if (counts[0] % ServerConfig.TRASH_DELETE_BATCH == 0) {
+            progress.progress(entry, counts[0], counts[1], false);
+            try {
+                Thread.sleep(ServerConfig.TRASH_DELETE_PAUSE);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return FileVisitResult.TERMINATE;
+            }
+        }
+        return FileVisitResult.CONTINUE;
+    }
+
+    /**
+     * @return number of the entries waiting for the deletion or being deleted
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * @return number of the deleted files and directories
+     */
+    public long getDeleted() {
+        return deleted.sum();
+    }
+
+    /**
+     * @return number of the files and directories which can not be deleted
+     */
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * Stops the cleaner, the entries left in the trash are deleted at the next start
+     */
+    @Override
+    public void close() {
+        cleaner.shutdownNow();
+    }
+}
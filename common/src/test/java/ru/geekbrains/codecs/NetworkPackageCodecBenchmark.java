@@ -0,0 +1,156 @@
+package ru.geekbrains.codecs;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.serialization.ClassResolvers;
+import io.netty.handler.codec.serialization.ObjectDecoder;
+import io.netty.handler.codec.serialization.ObjectEncoder;
+import io.netty.util.ReferenceCountUtil;
+import ru.geekbrains.commands.NetworkCommand;
+import ru.geekbrains.configs.ServerConfig;
+import ru.geekbrains.messages.FileView;
+import ru.geekbrains.messages.NetworkPackage;
+import ru.geekbrains.messages.PackageBody;
+import ru.geekbrains.messages.PackageHeader;
+
+import java.io.File;
+import java.io.Serializable;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * Compares Java serialization (ObjectEncoder/ObjectDecoder) of the former package classes
+ * with NetworkPackageEncoder/NetworkPackageDecoder: bytes per frame and encode plus decode throughput
+ * for an upload chunk and for a directory listing.
+ * Runs as a plain application: java ru.geekbrains.codecs.NetworkPackageCodecBenchmark [iterations]
+ */
+public class NetworkPackageCodecBenchmark {
+    private static final int WARMUP_ITERATIONS = 2_000;
+
+    /**
+     * Java serialized package as it was sent before the binary codec
+     */
+    private static class SerializedPackage implements Serializable {
+        private NetworkCommand command;
+        private List<String> params = new ArrayList<>();
+        private Object[] objectBody;
+        private byte[] byteBody;
+    }
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+
+        byte[] chunk = new byte[ServerConfig.BUFFER_SIZE];
+        ThreadLocalRandom.current().nextBytes(chunk);
+        Object[] listing = fileViews(1000);
+
+        run("serialization", "chunk", () -> serializedChunk(chunk), iterations,
+                NetworkPackageCodecBenchmark::serializationCodec);
+        run("binary       ", "chunk", () -> chunkPackage(chunk), iterations,
+                NetworkPackageCodecBenchmark::binaryCodec);
+        run("serialization", "ls1000", () -> serializedListing(listing), iterations / 10,
+                NetworkPackageCodecBenchmark::serializationCodec);
+        run("binary       ", "ls1000", () -> listingPackage(listing), iterations / 10,
+                NetworkPackageCodecBenchmark::binaryCodec);
+    }
+
+    private static ChannelHandler[] serializationCodec() {
+        return new ChannelHandler[]{
+                new ObjectDecoder(ServerConfig.MAX_FRAME_SIZE,
+                        ClassResolvers.weakCachingConcurrentResolver(NetworkPackageCodecBenchmark.class.getClassLoader())),
+                new ObjectEncoder()
+        };
+    }
+
+    private static ChannelHandler[] binaryCodec() {
+        return new ChannelHandler[]{
+                new NetworkPackageDecoder(ServerConfig.MAX_FRAME_SIZE),
+                new NetworkPackageEncoder()
+        };
+    }
+
+    private static void run(String codec, String name, Supplier<Object> packages, int iterations,
+                            Supplier<ChannelHandler[]> handlers) {
+        EmbeddedChannel channel = new EmbeddedChannel(handlers.get());
+        long frameBytes = 0;
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            frameBytes = roundTrip(channel, packages.get());
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            roundTrip(channel, packages.get());
+        }
+        long elapsed = System.nanoTime() - start;
+        channel.finishAndReleaseAll();
+
+        double seconds = elapsed / 1e9;
+        System.out.printf("%s %-7s frame %8d bytes, %10.0f packages/s, %8.1f MB/s%n",
+                codec, name, frameBytes, iterations / seconds, frameBytes * (double) iterations / seconds / 1e6);
+    }
+
+    private static long roundTrip(EmbeddedChannel channel, Object pack) {
+        channel.writeOutbound(pack);
+        long bytes = 0;
+        ByteBuf frame;
+        while ((frame = channel.readOutbound()) != null) {
+            bytes += frame.readableBytes();
+            channel.writeInbound(frame);
+        }
+        Object result = channel.readInbound();
+        if (result == null) {
+            throw new IllegalStateException("Package was not decoded");
+        }
+        ReferenceCountUtil.release(result);
+        return bytes;
+    }
+
+    private static SerializedPackage serializedChunk(byte[] chunk) {
+        SerializedPackage pack = new SerializedPackage();
+        pack.command = NetworkCommand.UPLOAD;
+        pack.params.add("test" + File.separator + "large-file.bin");
+        pack.params.add(String.valueOf(chunk.length));
+        pack.byteBody = chunk;
+        return pack;
+    }
+
+    private static NetworkPackage chunkPackage(byte[] chunk) {
+        ByteBuf content = PooledByteBufAllocator.DEFAULT.directBuffer(chunk.length);
+        content.writeBytes(chunk);
+        PackageHeader header = new PackageHeader.HeaderBuilder(NetworkCommand.UPLOAD)
+                .setStreamId(1)
+                .build();
+        return new NetworkPackage(header, new PackageBody(content));
+    }
+
+    private static SerializedPackage serializedListing(Object[] views) {
+        SerializedPackage pack = new SerializedPackage();
+        pack.command = NetworkCommand.LS;
+        pack.params.add("test");
+        pack.objectBody = views;
+        return pack;
+    }
+
+    private static NetworkPackage listingPackage(Object[] views) {
+        PackageHeader header = new PackageHeader.HeaderBuilder(NetworkCommand.LS)
+                .addParam("test")
+                .build();
+        return new NetworkPackage(header, new PackageBody(views));
+    }
+
+    private static Object[] fileViews(int count) {
+        LocalDateTime time = LocalDateTime.now();
+        Object[] views = new Object[count];
+        for (int i = 0; i < count; i++) {
+            views[i] = new FileView(i % 10 == 0, "file-" + i + ".txt", i * 1024L, "test",
+                    time.minusMinutes(i), time);
+        }
+        return views;
+    }
+}
@@ -0,0 +1,178 @@
+package ru.geekbrains.codecs;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Assert;
+import org.junit.Test;
+import ru.geekbrains.commands.NetworkCommand;
+import ru.geekbrains.configs.ServerConfig;
+import ru.geekbrains.messages.FileView;
+import ru.geekbrains.messages.NetworkPackage;
+import ru.geekbrains.messages.PackageBody;
+import ru.geekbrains.messages.PackageHeader;
+
+import java.time.LocalDateTime;
+
+public class NetworkPackageCodecTest {
+
+    private NetworkPackage roundTrip(NetworkPackage pack) {
+        EmbeddedChannel channel = new EmbeddedChannel(
+                new NetworkPackageDecoder(ServerConfig.MAX_FRAME_SIZE), new NetworkPackageEncoder());
+        Assert.assertTrue(channel.writeOutbound(pack));
+        Object frame;
+        while ((frame = channel.readOutbound()) != null) {
+            channel.writeInbound(frame);
+        }
+        NetworkPackage result = channel.readInbound();
+        channel.finishAndReleaseAll();
+        return result;
+    }
+
+    @Test
+    public void headerWithoutBody() {
+        PackageHeader header = new PackageHeader.HeaderBuilder(NetworkCommand.AUTH)
+                .addParam("login")
+                .addParam("\u043f\u0430\u0440\u043e\u043b\u044c")
+                .addParam(null)
+                .build();
+
+        NetworkPackage result = roundTrip(new NetworkPackage(header, null));
+
+        Assert.assertEquals(NetworkCommand.AUTH, result.getHeader().getCommand());
+        Assert.assertEquals(0, result.getHeader().getStreamId());
+        Assert.assertEquals(3, result.getHeader().getParamCount());
+        Assert.assertEquals("login", result.getHeader().getParam(1));
+        Assert.assertEquals("\u043f\u0430\u0440\u043e\u043b\u044c", result.getHeader().getParam(2));
+        Assert.assertNull(result.getHeader().getParam(3));
+        Assert.assertNull(result.getBody());
+    }
+
+    @Test
+    public void byteBody() {
+        byte[] bytes = new byte[ServerConfig.BUFFER_SIZE];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        ByteBuf content = PooledByteBufAllocator.DEFAULT.directBuffer(bytes.length);
+        content.writeBytes(bytes);
+        PackageHeader header = new PackageHeader.HeaderBuilder(NetworkCommand.UPLOAD)
+                .setStreamId(300)
+                .build();
+
+        NetworkPackage result = roundTrip(new NetworkPackage(header, new PackageBody(content)));
+
+        Assert.assertEquals(NetworkCommand.UPLOAD, result.getHeader().getCommand());
+        Assert.assertEquals(300, result.getHeader().getStreamId());
+        Assert.assertEquals(0, result.getHeader().getParamCount());
+        Assert.assertArrayEquals(bytes, ByteBufUtil.getBytes(result.content()));
+        Assert.assertEquals(0, content.refCnt());
+
+        Assert.assertTrue(result.release());
+        Assert.assertEquals(0, result.content().refCnt());
+    }
+
+    @Test
+    public void deflatedBody() {
+        byte[] bytes = new byte[ServerConfig.BUFFER_SIZE];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i % 16);
+        }
+        ByteBuf content = PooledByteBufAllocator.DEFAULT.directBuffer(bytes.length);
+        content.writeBytes(bytes);
+        ChunkCompressor compressor = new ChunkCompressor("notes.txt", true);
+        PackageBody body = compressor.compress(PooledByteBufAllocator.DEFAULT, content);
+        compressor.close();
+        PackageHeader header = new PackageHeader.HeaderBuilder(NetworkCommand.UPLOAD)
+                .setStreamId(7)
+                .build();
+
+        Assert.assertTrue(body.isDeflated());
+        Assert.assertEquals(0, content.refCnt());
+        Assert.assertTrue(compressor.getWireBytes() < compressor.getRawBytes());
+
+        NetworkPackage result = roundTrip(new NetworkPackage(header, body));
+
+        Assert.assertEquals(7, result.getHeader().getStreamId());
+        Assert.assertArrayEquals(bytes, ByteBufUtil.getBytes(result.content()));
+        Assert.assertEquals(0, body.getByteBody().refCnt());
+        Assert.assertTrue(result.release());
+    }
+
+    @Test
+    public void compressedFormatNotDeflated() {
+        ByteBuf content = PooledByteBufAllocator.DEFAULT.directBuffer(ServerConfig.BUFFER_SIZE);
+        content.writeZero(ServerConfig.BUFFER_SIZE);
+        ChunkCompressor compressor = new ChunkCompressor("photo.JPG", true);
+
+        PackageBody body = compressor.compress(PooledByteBufAllocator.DEFAULT, content);
+
+        Assert.assertFalse(body.isDeflated());
+        Assert.assertSame(content, body.getByteBody());
+        Assert.assertTrue(content.release());
+    }
+
+    @Test
+    public void fileViewBody() {
+        LocalDateTime time = LocalDateTime.of(2021, 2, 8, 11, 4, 5, 123_000_000);
+        Object[] views = {
+                new FileView(false, "file.txt", 1024L, "test", time, time.plusDays(1)),
+                new FileView(true, "dir", -1L, "test", time, time)
+        };
+        PackageHeader header = new PackageHeader.HeaderBuilder(NetworkCommand.LS)
+                .addParam("test")
+                .build();
+
+        NetworkPackage result = roundTrip(new NetworkPackage(header, new PackageBody(views)));
+
+        Object[] resultViews = result.getBody().getObjectBody();
+        Assert.assertEquals(2, resultViews.length);
+        FileView file = (FileView) resultViews[0];
+        Assert.assertFalse(file.isDirectory());
+        Assert.assertEquals("file.txt", file.getFilename());
+        Assert.assertEquals(1024L, file.getSize());
+        Assert.assertEquals("test", file.getDirectory());
+        Assert.assertEquals(time, file.getCreatingTime());
+        Assert.assertEquals(time.plusDays(1), file.getLastModifiedTime());
+        FileView dir = (FileView) resultViews[1];
+        Assert.assertTrue(dir.isDirectory());
+        Assert.assertEquals(-1L, dir.getSize());
+    }
+
+    @Test
+    public void fileViewColumns() {
+        String directory = "home/projects/cloud-file-manager/src";
+        Object[] views = new Object[1000];
+        long time = 1_612_771_445_123L;
+        for (int i = 0; i < views.length; i++) {
+            // Every other directory has the size known by the server
+            long dirSize = i % 20 == 0 ? i * 1000L : -1L;
+            views[i] = new FileView(i % 10 == 0, "f" + i, i % 10 == 0 ? dirSize : i * 100L,
+                    i < 500 ? directory : directory + "/main", time + i * 1000L, time - i);
+        }
+        PackageHeader header = new PackageHeader.HeaderBuilder(NetworkCommand.LS)
+                .addParam(directory)
+                .build();
+        ByteBuf encoded = PooledByteBufAllocator.DEFAULT.heapBuffer();
+        NetworkPackageCodec.encode(new NetworkPackage(header, new PackageBody(views)), encoded);
+
+        // Directories are written once, the rest of every FileView takes a few bytes
+        Assert.assertTrue(encoded.readableBytes() < views.length * 12);
+
+        Object[] resultViews = NetworkPackageCodec.decode(encoded).getBody().getObjectBody();
+        encoded.release();
+        Assert.assertEquals(views.length, resultViews.length);
+        for (int i = 0; i < views.length; i++) {
+            FileView expected = (FileView) views[i];
+            FileView view = (FileView) resultViews[i];
+            Assert.assertEquals(expected.isDirectory(), view.isDirectory());
+            Assert.assertEquals(expected.getFilename(), view.getFilename());
+            Assert.assertEquals(expected.getSize(), view.getSize());
+            Assert.assertEquals(expected.getDirectory(), view.getDirectory());
+            Assert.assertEquals(expected.getCreatingMillis(), view.getCreatingMillis());
+            Assert.assertEquals(expected.getLastModifiedMillis(), view.getLastModifiedMillis());
+        }
+        Assert.assertSame(((FileView) resultViews[0]).getDirectory(), ((FileView) resultViews[1]).getDirectory());
+    }
+}
@@ -0,0 +1,82 @@
+package ru.geekbrains.listings;
+
+import ru.geekbrains.messages.FileView;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Compares the listing of the synthetic directories: Files.list with three file accesses per entry,
+ * DirectoryLister reading the attributes once on the calling thread and on the fork-join pool.
+ * Every directory is listed ROUNDS times after WARMUP rounds, the directories are removed at the end.
+ * Runs as a plain application: java ru.geekbrains.listings.DirectoryListerBenchmark [entries...]
+ */
+public class DirectoryListerBenchmark {
+    private static final int WARMUP = 3;
+    private static final int ROUNDS = 5;
+
+    private interface Lister {
+        List<FileView> list(Path dir) throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int[] sizes = args.length > 0
+                ? Stream.of(args).mapToInt(Integer::parseInt).toArray()
+                : new int[]{10_000, 100_000};
+
+        for (int size : sizes) {
+            Path dir = Files.createTempDirectory("lister-" + size);
+            try {
+                for (int i = 0; i < size; i++) {
+                    Files.createFile(dir.resolve("file-" + i + ".txt"));
+                }
+                System.out.printf("%8d entries: files.list %8.1f ms, lister %8.1f ms, parallel lister %8.1f ms%n", size,
+                        measure(dir, DirectoryListerBenchmark::listByStat),
+                        measure(dir, d -> DirectoryLister.list(d, Integer.MAX_VALUE)),
+                        measure(dir, d -> DirectoryLister.list(d, 0)));
+            } finally {
+                try (Stream<Path> walk = Files.walk(dir)) {
+                    for (Path path : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                        Files.delete(path);
+                    }
+                }
+            }
+        }
+    }
+
+    private static double measure(Path dir, Lister lister) throws IOException {
+        for (int i = 0; i < WARMUP; i++) {
+            lister.list(dir);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            lister.list(dir);
+        }
+        return (System.nanoTime() - start) / 1e6 / ROUNDS;
+    }
+
+    /**
+     * Listing as it was before DirectoryLister: directory check, size and attributes are read separately
+     */
+    private static List<FileView> listByStat(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(path -> {
+                try {
+                    boolean isDirectory = Files.isDirectory(path);
+                    long size = isDirectory ? -1L : Files.size(path);
+                    BasicFileAttributes atr = Files.readAttributes(path, BasicFileAttributes.class);
+                    return new FileView(isDirectory, path.getFileName().toString(), size, dir.toString(),
+                            atr.lastModifiedTime().toMillis(), atr.creationTime().toMillis());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }).collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package ru.geekbrains.transfers;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.geekbrains.configs.ServerConfig;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+public class TransferJournalTest {
+    private static final int CHUNK_SIZE = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] chunk(int index) {
+        byte[] bytes = new byte[CHUNK_SIZE];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (index * 31 + i);
+        }
+        return bytes;
+    }
+
+    private static void write(TransferJournal journal, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            ByteBuffer buffer = ByteBuffer.wrap(chunk(i));
+            journal.getChannel().write(buffer, journal.getOffset());
+            buffer.flip();
+            journal.update(buffer);
+        }
+    }
+
+    private static long crc(int chunks) {
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < chunks; i++) {
+            crc.update(chunk(i));
+        }
+        return crc.getValue();
+    }
+
+    private static Path partPath(Path target) {
+        return Paths.get(target.toString() + ".part");
+    }
+
+    @Test
+    public void restoreDropsUnconfirmedBytes() throws IOException {
+        Path target = folder.getRoot().toPath().resolve("file.bin");
+        TransferJournal journal = TransferJournal.open(target);
+        write(journal, 0, ServerConfig.JOURNAL_INTERVAL + 3);
+        // Interrupted without suspend, the last chunks are not in the journal
+        journal.getChannel().close();
+
+        TransferJournal restored = TransferJournal.open(target);
+
+        long confirmed = (long) ServerConfig.JOURNAL_INTERVAL * CHUNK_SIZE;
+        Assert.assertEquals(confirmed, restored.getOffset());
+        Assert.assertEquals(confirmed, restored.getChannel().size());
+        Assert.assertEquals(crc(ServerConfig.JOURNAL_INTERVAL), restored.getChecksum());
+        Assert.assertEquals(restored.getChecksum(), TransferJournal.checksum(restored.getChannel(), confirmed));
+        restored.getChannel().close();
+    }
+
+    @Test
+    public void restoreContinuesAfterSuspend() throws IOException {
+        Path target = folder.getRoot().toPath().resolve("file.bin");
+        TransferJournal journal = TransferJournal.open(target);
+        write(journal, 0, 5);
+        journal.suspend();
+
+        TransferJournal restored = TransferJournal.open(target);
+        Assert.assertEquals(5 * CHUNK_SIZE, restored.getOffset());
+        write(restored, 5, 8);
+        Assert.assertEquals(crc(8), restored.getChecksum());
+        restored.complete();
+
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.READ)) {
+            Assert.assertEquals(8 * CHUNK_SIZE, channel.size());
+            Assert.assertEquals(crc(8), TransferJournal.checksum(channel, channel.size()));
+        }
+    }
+
+    @Test
+    public void truncatedPartFileStartsFromZero() throws IOException {
+        Path target = folder.getRoot().toPath().resolve("file.bin");
+        TransferJournal journal = TransferJournal.open(target);
+        write(journal, 0, 5);
+        journal.suspend();
+        try (FileChannel channel = FileChannel.open(partPath(target), StandardOpenOption.WRITE)) {
+            channel.truncate(3 * CHUNK_SIZE);
+        }
+
+        TransferJournal restored = TransferJournal.open(target);
+
+        Assert.assertEquals(0, restored.getOffset());
+        Assert.assertEquals(0, restored.getChannel().size());
+        restored.getChannel().close();
+    }
+
+    @Test
+    public void damagedPartFileStartsFromZero() throws IOException {
+        Path target = folder.getRoot().toPath().resolve("file.bin");
+        TransferJournal journal = TransferJournal.open(target);
+        write(journal, 0, 5);
+        journal.suspend();
+        try (FileChannel channel = FileChannel.open(partPath(target), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{(byte) (chunk(2)[7] + 1)}), 2 * CHUNK_SIZE + 7);
+        }
+
+        TransferJournal restored = TransferJournal.open(target);
+
+        Assert.assertEquals(0, restored.getOffset());
+        Assert.assertEquals(0, restored.getChannel().size());
+        restored.getChannel().close();
+    }
+
+    @Test
+    public void checksumOfShorterFile() throws IOException {
+        Path target = folder.getRoot().toPath().resolve("file.bin");
+        TransferJournal journal = TransferJournal.open(target);
+        write(journal, 0, 2);
+
+        Assert.assertEquals(-1L, TransferJournal.checksum(journal.getChannel(), 3 * CHUNK_SIZE));
+        journal.getChannel().close();
+    }
+}
@@ -0,0 +1,164 @@
+package ru.geekbrains.transport;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.util.ReferenceCountUtil;
+import ru.geekbrains.codecs.NetworkPackageDecoder;
+import ru.geekbrains.codecs.NetworkPackageEncoder;
+import ru.geekbrains.commands.NetworkCommand;
+import ru.geekbrains.configs.ServerConfig;
+import ru.geekbrains.messages.NetworkPackage;
+import ru.geekbrains.messages.PackageBody;
+import ru.geekbrains.messages.PackageHeader;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the available transports over the loopback: connections per second (connect and close
+ * with 64 connections in flight) and throughput of the "UPLOAD" packages over one connection.
+ * Socket options are taken from TransportConfig, e.g. -Dcloud.transport.acceptors=4
+ * Runs as a plain application: java ru.geekbrains.transport.TransportBenchmark [connections] [megabytes]
+ */
+public class TransportBenchmark {
+    private static final int PORT = ServerConfig.SERVER_PORT + 1;
+    private static final int CONNECTIONS_IN_FLIGHT = 64;
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        long bytes = (args.length > 1 ? Long.parseLong(args[1]) : 2048) * 1024 * 1024;
+
+        for (Transport transport : Transport.values()) {
+            if (transport == Transport.EPOLL && !Epoll.isAvailable()) {
+                System.out.println("EPOLL not available: " + Epoll.unavailabilityCause());
+                continue;
+            }
+            run(transport, connections, bytes);
+        }
+    }
+
+    private static void run(Transport transport, int connections, long bytes) throws Exception {
+        EventLoopGroup acceptGroup = transport.newEventLoopGroup(transport.getAcceptors());
+        EventLoopGroup serverGroup = transport.newEventLoopGroup(0);
+        EventLoopGroup clientGroup = transport.newEventLoopGroup(0);
+        AtomicLong received = new AtomicLong();
+        try {
+            ServerBootstrap sb = transport.newServerBootstrap(acceptGroup, serverGroup)
+                    .childHandler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel channel) {
+                            channel.pipeline().addLast(new NetworkPackageDecoder(ServerConfig.MAX_FRAME_SIZE),
+                                    new ChannelInboundHandlerAdapter() {
+                                        @Override
+                                        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                                            received.addAndGet(((NetworkPackage) msg).content().readableBytes());
+                                            ReferenceCountUtil.release(msg);
+                                        }
+                                    });
+                        }
+                    });
+            List<Channel> serverChannels = transport.bind(sb, PORT);
+            Bootstrap b = transport.newBootstrap(clientGroup);
+
+            // Warm up the both measurements
+            connect(b.clone(), connections / 10);
+            send(b.clone(), received, bytes / 10);
+
+            long start = System.nanoTime();
+            connect(b.clone(), connections);
+            double connectSeconds = (System.nanoTime() - start) / 1e9;
+
+            start = System.nanoTime();
+            send(b.clone(), received, bytes);
+            double sendSeconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.printf("%-5s acceptors %d: %8.0f connections/s, %8.1f MB/s%n", transport,
+                    serverChannels.size(), connections / connectSeconds, bytes / sendSeconds / 1e6);
+            serverChannels.forEach(Channel::close);
+        } finally {
+            clientGroup.shutdownGracefully();
+            serverGroup.shutdownGracefully();
+            acceptGroup.shutdownGracefully();
+        }
+    }
+
+    private static void connect(Bootstrap b, int connections) throws InterruptedException {
+        Semaphore inFlight = new Semaphore(CONNECTIONS_IN_FLIGHT);
+        CountDownLatch closed = new CountDownLatch(connections);
+        AtomicLong failed = new AtomicLong();
+        b.handler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel channel) {
+            }
+        });
+        for (int i = 0; i < connections; i++) {
+            inFlight.acquire();
+            b.connect(ServerConfig.SERVER_IP_ADDRESS, PORT).addListener((ChannelFutureListener) f -> {
+                if (!f.isSuccess()) {
+                    failed.incrementAndGet();
+                }
+                f.channel().close().addListener(c -> {
+                    inFlight.release();
+                    closed.countDown();
+                });
+            });
+        }
+        if (!closed.await(1, TimeUnit.MINUTES) || failed.get() > 0) {
+            throw new IllegalStateException(failed.get() + " connections failed");
+        }
+    }
+
+    private static void send(Bootstrap b, AtomicLong received, long bytes) throws InterruptedException {
+        received.set(0);
+        b.handler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel channel) {
+                channel.pipeline().addLast(new NetworkPackageEncoder(), new ChannelInboundHandlerAdapter() {
+                    private long sent;
+
+                    @Override
+                    public void channelActive(ChannelHandlerContext ctx) {
+                        writeChunks(ctx);
+                    }
+
+                    @Override
+                    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+                        writeChunks(ctx);
+                    }
+
+                    private void writeChunks(ChannelHandlerContext ctx) {
+                        while (ctx.channel().isWritable() && sent < bytes) {
+                            int length = (int) Math.min(ServerConfig.BUFFER_SIZE, bytes - sent);
+                            ByteBuf chunk = ctx.alloc().ioBuffer(length);
+                            chunk.writerIndex(length);
+                            PackageHeader header = new PackageHeader.HeaderBuilder(NetworkCommand.UPLOAD)
+                                    .setStreamId(1)
+                                    .build();
+                            ctx.write(new NetworkPackage(header, new PackageBody(chunk)));
+                            sent += length;
+                        }
+                        ctx.flush();
+                    }
+                });
+            }
+        });
+
+        Channel channel = b.connect(ServerConfig.SERVER_IP_ADDRESS, PORT).sync().channel();
+        while (received.get() < bytes) {
+            Thread.sleep(1);
+        }
+        channel.close().sync();
+    }
+}
@@ -17,7 +17,9 @@ import org.slf4j.LoggerFactory;
 import ru.geekbrains.connection.AuthStatus;
 import ru.geekbrains.connection.ConnectionObserver;
 import ru.geekbrains.connection.ConnectionStatus;
+import ru.geekbrains.listings.DirectoryLister;
 import ru.geekbrains.messages.FileView;
+import ru.geekbrains.trash.Trash;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -29,8 +31,8 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /**
  * The class Controller manages the elements of the main window Network Manager Application.
@@ -65,6 +67,8 @@ public class Controller implements Initializable, ConnectionObserver {
     private TableController rTable;
 
     private ManagerService managerService;
+    // Removed local files are deleted in the background
+    private Trash trash;
 
     /**
      * Handles event onAction menu Exit and close application
@@ -108,6 +112,26 @@ public class Controller implements Initializable, ConnectionObserver {
         initRightTableEvent();
 
         initLeftDiskBox();
+
+        initTrash();
+    }
+
+    /**
+     * Opens the trash of the local files in the user home directory. The files of other file systems
+     * can not be renamed into it, they are deleted in place and the table is updated when they are deleted.
+     */
+    private void initTrash() {
+        Path trashDir = Paths.get(System.getProperty("user.home"), ".file-manager", "trash");
+        try {
+            trash = new Trash(trashDir, (entry, files, failed, done) -> {
+                if (done) {
+                    LOGGER.info("Local file {} deleted: {} files, {} failed", entry, files, failed);
+                    Platform.runLater(this::updateLeftTable);
+                }
+            });
+        } catch (IOException e) {
+            throw new RuntimeException("Trash opening error", e);
+        }
     }
 
     /**
@@ -118,7 +142,10 @@ public class Controller implements Initializable, ConnectionObserver {
     @Override
     public void updateConnectionState(ConnectionStatus connection, AuthStatus auth) {
         if (ConnectionStatus.CONNECTED.equals(connection) && !connection.equals(connectionStatus)) {
-            Platform.runLater(() -> authStage.show());
+            // The session of the last login is resumed without the login dialog
+            if (!managerService.hasSession()) {
+                Platform.runLater(() -> authStage.show());
+            }
             connectMenuItem.setDisable(true);
             disconnectMenuItem.setDisable(false);
         }
@@ -130,6 +157,10 @@ public class Controller implements Initializable, ConnectionObserver {
             btnUploadOrDownload.setDisable(true);
         }
 
+        if (AuthStatus.AUTHENTICATION_FAIL.equals(auth)) {
+            Platform.runLater(() -> authStage.show());
+        }
+
         if (AuthStatus.AUTHENTICATED.equals(auth) && !auth.equals(authStatus)) {
             Platform.runLater(() -> authStage.hide());
             initRightDiskBox();
@@ -161,7 +192,7 @@ public class Controller implements Initializable, ConnectionObserver {
     }
 
     /**
-     * Sets handlers for key of the right (remote) table: Enter, Backspace, F5, F7 and F8
+     * Sets handlers for key of the right (remote) table: Enter, Backspace, F5, F7, F8 and Escape (stop listing)
      */
     private void initRightTableEvent() {
         rTable.getFileTable().setOnKeyReleased(event -> {
@@ -169,12 +200,18 @@ public class Controller implements Initializable, ConnectionObserver {
                 rTable.fileTableItemAction();
             } else if (event.getCode() == KeyCode.BACK_SPACE) {
                 rTable.btnUpAction();
+            } else if (event.getCode() == KeyCode.F5 && event.isShiftDown()) {
+                copyRemoteFile(false);
             } else if (event.getCode() == KeyCode.F5) {
                 btnUploadOrDownloadAction();
+            } else if (event.getCode() == KeyCode.F6) {
+                copyRemoteFile(true);
             } else if (event.getCode() == KeyCode.F7) {
                 btnCreateDirectoryAction();
             } else if (event.getCode() == KeyCode.F8) {
                 btnRemoveAction();
+            } else if (event.getCode() == KeyCode.ESCAPE) {
+                managerService.cancelListing();
             }
         });
     }
@@ -185,10 +222,16 @@ public class Controller implements Initializable, ConnectionObserver {
     private void initConnectCloudStorage() {
         initAuthStage();
         managerService = new ManagerService(
-                (l, p) -> {
-                    rTable.updateTable(l, p);
-                    remoteTableList = l;
-                    remoteCurrentPath = p;
+                (l, p, append) -> {
+                    if (append) {
+                        rTable.appendTable(l);
+                        remoteTableList.addAll(l);
+                    } else {
+                        rTable.updateTable(l, p);
+                        // Pages of the listing are appended from the network thread
+                        remoteTableList = new CopyOnWriteArrayList<>(l);
+                        remoteCurrentPath = p;
+                    }
                 },
                 (id, d) -> {
                     if (d == 1) {
@@ -301,9 +344,7 @@ public class Controller implements Initializable, ConnectionObserver {
      * @throws IOException if file access deny.
      */
     private List<FileView> getLocalFileViews() throws IOException {
-        try (Stream<Path> files = Files.list(localCurrentDir)){
-            return files.map(FileView::new).collect(Collectors.toList());
-        }
+        return DirectoryLister.list(localCurrentDir);
     }
 
     /**
@@ -384,7 +425,7 @@ public class Controller implements Initializable, ConnectionObserver {
         try {
             progress = createProgressStage("Downloading...", sourcePath, file.getSize());
             progressControllers.put(targetPath, progress);
-            managerService.download(sourcePath, targetPath);
+            managerService.download(sourcePath, targetPath, file.getSize());
         } catch (RuntimeException | FileNotFoundException e) {
             progress.close();
             progressControllers.remove(targetPath);
@@ -522,6 +563,27 @@ public class Controller implements Initializable, ConnectionObserver {
         }
     }
 
+    /**
+     * Copies (Shift+F5) or moves (F6) the selected remote file on the server, the new path is entered in the dialog
+     * @param move - the file is moved
+     */
+    private void copyRemoteFile(boolean move) {
+        FileView selectedFile = rTable.getSelectedFile();
+        if (selectedFile == null) {
+            showWarnAlert("File not selected");
+            return;
+        }
+        String source = selectedFile.getDirectory() + File.separator + selectedFile.getFilename();
+        TextInputDialog dialog = new TextInputDialog(source);
+        dialog.setTitle(move ? "Move" : "Copy");
+        dialog.setHeaderText("Enter new path");
+        dialog.getEditor().setPrefWidth(300);
+        Optional<String> result = dialog.showAndWait();
+        if (result.isPresent() && !result.get().equals(source)) {
+            managerService.copyFile(source, result.get(), move);
+        }
+    }
+
     /**
      * Calls createDirectory method to the ManagerService object
      * @param directoryName - directory name
@@ -577,19 +639,13 @@ public class Controller implements Initializable, ConnectionObserver {
     }
 
     /**
-     * Remove file or directory in the current local directory
+     * Remove file or directory in the current local directory, it is moved into the trash and deleted in the background
      * @param selectedFile - name of the remove file
      * @throws IOException if remove file error
      */
     private void removeLocalFile(FileView selectedFile) throws IOException {
         Path filePath = Paths.get(selectedFile.getDirectory()).resolve(selectedFile.getFilename());
-        if (Files.isDirectory(filePath)) {
-            try (Stream<Path> walk = Files.walk(filePath)){
-                walk.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
-            }
-        } else {
-            Files.delete(filePath);
-        }
+        trash.remove(filePath, "local");
     }
 
     /**
@@ -597,6 +653,7 @@ public class Controller implements Initializable, ConnectionObserver {
      */
     private void exit() {
         disconnect();
+        trash.close();
         Platform.exit();
     }
 }
@@ -1,37 +1,57 @@
 package ru.geekbrains;
 
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
-import io.netty.handler.codec.serialization.ClassResolvers;
-import io.netty.handler.codec.serialization.ObjectDecoder;
-import io.netty.handler.codec.serialization.ObjectEncoder;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+import io.netty.util.concurrent.FutureListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.geekbrains.callbacks.FillRemoteTableCallback;
 import ru.geekbrains.callbacks.UpdateProgressBarCallback;
+import ru.geekbrains.codecs.NetworkPackageDecoder;
+import ru.geekbrains.codecs.NetworkPackageEncoder;
 import ru.geekbrains.commands.NetworkCommand;
+import ru.geekbrains.commands.TransferMode;
 import ru.geekbrains.configs.ServerConfig;
+import ru.geekbrains.configs.TransportConfig;
 import ru.geekbrains.connection.AuthStatus;
 import ru.geekbrains.connection.ConnectionObservable;
 import ru.geekbrains.connection.ConnectionObserver;
 import ru.geekbrains.connection.ConnectionStatus;
+import ru.geekbrains.connection.TransferChannelPool;
+import ru.geekbrains.connection.TransferChannelPool.TransferChannel;
 import ru.geekbrains.handlers.AuthManagerHandler;
 import ru.geekbrains.handlers.CommandManagerHandler;
 import ru.geekbrains.handlers.FileDownloadManagerHandler;
 import ru.geekbrains.handlers.FileUploadManagerHandler;
 import ru.geekbrains.messages.NetworkPackage;
+import ru.geekbrains.messages.PackageBody;
 import ru.geekbrains.messages.PackageHeader;
+import ru.geekbrains.transfers.ChunkHashes;
+import ru.geekbrains.transfers.DownloadFile;
+import ru.geekbrains.transfers.ParallelFile;
+import ru.geekbrains.transfers.TransferJournal;
+import ru.geekbrains.transfers.UploadFile;
+import ru.geekbrains.transport.Transport;
 
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Establishes a connection to the server in a new thread.
@@ -44,15 +64,27 @@ public class ManagerService implements ConnectionObservable {
 
     // Observers list connection and authentication state
     private List<ConnectionObserver> observers = new ArrayList<>();
-    // Current uploads file
-    private Map<String, FileInputStream> uploadFiles = new ConcurrentHashMap<>();
-    // Current download file
-    private Map<String, FileOutputStream> downloadFiles = new ConcurrentHashMap<>();
+    // Current uploads file by stream ID, accessed only from the event loop of the channel
+    private IntObjectMap<UploadFile> uploadFiles = new IntObjectHashMap<>();
+    // Current download file by stream ID, accessed only from the event loop of the channel
+    private IntObjectMap<DownloadFile> downloadFiles = new IntObjectHashMap<>();
+    // Target paths of the current uploads and downloads
+    private Set<String> transferPaths = ConcurrentHashMap.newKeySet();
+    // Stream ID of the next upload or download, 0 is reserved for the packages out of transfers
+    private AtomicInteger nextStreamId = new AtomicInteger(1);
 
     private FillRemoteTableCallback onUploadTable;
     private UpdateProgressBarCallback onUpdateProgress;
 
     private volatile Channel activeChannel;
+    // Connections for the parallel transfers of the large files
+    private volatile TransferChannelPool transferPool;
+    // Token of the session of the last login, the reconnected client and the transfer connections resume
+    // the session with it
+    private volatile String sessionToken;
+    private volatile boolean resuming;
+    // Number of upload chunks in flight
+    private volatile int uploadWindow = ServerConfig.UPLOAD_WINDOW;
 
     private volatile ConnectionStatus connectionStatus;
     private volatile AuthStatus authStatus;
@@ -60,7 +92,12 @@ public class ManagerService implements ConnectionObservable {
 
     public ManagerService(FillRemoteTableCallback onUploadTable, UpdateProgressBarCallback onUpdateProgress) {
         this.onUploadTable = onUploadTable;
-        this.onUpdateProgress = onUpdateProgress;
+        this.onUpdateProgress = (progressID, value) -> {
+            if (value != 1) {
+                transferPaths.remove(progressID);
+            }
+            onUpdateProgress.progress(progressID, value);
+        };
         connectionStatus = ConnectionStatus.DISCONNECTED;
         authStatus = AuthStatus.NOT_AUTHENTICATED;
     }
@@ -68,43 +105,44 @@ public class ManagerService implements ConnectionObservable {
     /**
      * Establishes a connection to the server in a new thread
      * Adds into client channel pipeline:
-     *      - ObjectDecoder for deserialize bytebuf into object
-     *      - ObjectEncoder for serialize NetworkPackage object into bytebuf
+     *      - NetworkPackageDecoder for decode binary frame into NetworkPackage
+     *      - NetworkPackageEncoder for encode NetworkPackage into binary frame
      *      - AuthHandler for handles command "AUTH"
      */
     public void start() {
         setConnectionStatus(ConnectionStatus.CONNECTING);
         Thread t = new Thread(() -> {
-            NioEventLoopGroup workerGroup = new NioEventLoopGroup();
+            Transport transport = Transport.select();
+            EventLoopGroup workerGroup = transport.newEventLoopGroup(TransportConfig.WORKERS);
 
             try {
-                Bootstrap b = new Bootstrap();
-                b.group(workerGroup)
-                        .channel(NioSocketChannel.class)
-                        .handler(new ChannelInitializer<SocketChannel>() {
-                            @Override
-                            protected void initChannel(SocketChannel channel) throws Exception {
-                                ChannelPipeline pipeline = channel.pipeline();
-//                                pipeline.addLast("FixedLengthFrameDecoder", new FixedLengthFrameDecoder(8 * 1024));
-                                pipeline.addLast("ObjectDecoder", new ObjectDecoder(
-                                                ClassResolvers.weakCachingConcurrentResolver(this.getClass().getClassLoader())));
-                                pipeline.addLast("ObjectEncoder", new ObjectEncoder());
-                                pipeline.addLast("AuthManagerHandler",
-                                        new AuthManagerHandler(s -> setAuthStatus(s), () -> {
-                                                    pipeline.addAfter("AuthManagerHandler", "CommandHandler",
-                                                            new CommandManagerHandler(onUploadTable));
-                                                    pipeline.addAfter("AuthManagerHandler", "FileUploadHandler",
-                                                            new FileUploadManagerHandler(uploadFiles, onUpdateProgress));
-                                                    pipeline.addAfter("AuthManagerHandler", "FileDownloadHandler",
-                                                            new FileDownloadManagerHandler(downloadFiles, onUpdateProgress));
-                                                }));
-
-                            }
-                        });
-
+                Bootstrap b = transport.newBootstrap(workerGroup);
+                b.handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel channel) throws Exception {
+                        ChannelPipeline pipeline = channel.pipeline();
+//                        pipeline.addLast("FixedLengthFrameDecoder", new FixedLengthFrameDecoder(8 * 1024));
+                        pipeline.addLast("PackageDecoder",
+                                new NetworkPackageDecoder(ServerConfig.MAX_FRAME_SIZE));
+                        pipeline.addLast("PackageEncoder", new NetworkPackageEncoder());
+                        pipeline.addLast("AuthManagerHandler",
+                                new AuthManagerHandler(s -> authenticated(s), () -> {
+                                            pipeline.addAfter("AuthManagerHandler", "CommandHandler",
+                                                    new CommandManagerHandler(onUploadTable));
+                                            pipeline.addAfter("AuthManagerHandler", "FileUploadHandler",
+                                                    new FileUploadManagerHandler(uploadFiles, onUpdateProgress));
+                                            pipeline.addAfter("AuthManagerHandler", "FileDownloadHandler",
+                                                    new FileDownloadManagerHandler(downloadFiles, onUpdateProgress));
+                                        }, token -> sessionToken = token));
+
+                    }
+                });
+
+                transferPool = new TransferChannelPool(b, onUpdateProgress);
                 ChannelFuture f = b.connect(ServerConfig.SERVER_IP_ADDRESS, ServerConfig.SERVER_PORT).sync();
-                LOGGER.info("Service Manager is running");
+                LOGGER.info("Service Manager is running, transport {}", transport);
                 setActiveChannel(f.channel());
+                resumeSession();
 
                 f.channel().closeFuture().sync();
             } catch (InterruptedException e) {
@@ -119,11 +157,20 @@ public class ManagerService implements ConnectionObservable {
     }
 
     /**
-     * Closes connection to the server
+     * Closes connection to the server and the session of the login
      */
     public void stop() {
+        sessionToken = null;
         if (ConnectionStatus.CONNECTED.equals(connectionStatus)) {
-            activeChannel.close();
+            transferPool.close();
+            if (isAuthenticated()) {
+                // The server closes the session, so its token can not be resumed, and the connection
+                PackageHeader header = new PackageHeader.HeaderBuilder(NetworkCommand.LOGOUT).build();
+                activeChannel.writeAndFlush(new NetworkPackage(header, null))
+                        .addListener(ChannelFutureListener.CLOSE);
+            } else {
+                activeChannel.close();
+            }
             setAuthStatus(AuthStatus.NOT_AUTHENTICATED);
             setConnectionStatus(ConnectionStatus.DISCONNECTED);
         }
@@ -176,6 +223,8 @@ public class ManagerService implements ConnectionObservable {
 
     private synchronized void resetActiveChannel() {
         activeChannel = null;
+        // Transfers are closed with the connection
+        transferPaths.clear();
         setAuthStatus(AuthStatus.NOT_AUTHENTICATED);
         setConnectionStatus(ConnectionStatus.DISCONNECTED);
     }
@@ -198,6 +247,21 @@ public class ManagerService implements ConnectionObservable {
         notifyAllObserver();
     }
 
+    public int getUploadWindow() {
+        return uploadWindow;
+    }
+
+    /**
+     * Sets number of chunks the next uploads keep in flight (the server may grant less)
+     * @param uploadWindow - number of chunks
+     */
+    public void setUploadWindow(int uploadWindow) {
+        if (uploadWindow < 1) {
+            throw new IllegalArgumentException("Upload window must be positive");
+        }
+        this.uploadWindow = uploadWindow;
+    }
+
     public boolean isConnected() {
         if (ConnectionStatus.CONNECTED.equals(connectionStatus)) {
             return true;
@@ -206,6 +270,13 @@ public class ManagerService implements ConnectionObservable {
         }
     }
 
+    /**
+     * @return true if the next connection resumes the session of the last login without the login dialog
+     */
+    public boolean hasSession() {
+        return sessionToken != null;
+    }
+
     public boolean isAuthenticated() {
         if (AuthStatus.AUTHENTICATED.equals(authStatus)) {
             return true;
@@ -241,6 +312,34 @@ public class ManagerService implements ConnectionObservable {
         sendPackage(pack);
     }
 
+    /**
+     * Sends the session token of the last login to the server (command AUTH_RESUME), if there is the session
+     */
+    private synchronized void resumeSession() {
+        String token = sessionToken;
+        if (token == null) {
+            return;
+        }
+        resuming = true;
+        PackageHeader header = new PackageHeader.HeaderBuilder(NetworkCommand.AUTH_RESUME)
+                .addParam(token)
+                .build();
+        sendPackage(new NetworkPackage(header, null));
+    }
+
+    /**
+     * Updates authentication state. If the session is not resumed, the failure asks the user to log in again
+     * @param status - new authentication state
+     */
+    private void authenticated(AuthStatus status) {
+        if (resuming && AuthStatus.AUTHENTICATION_FAIL.equals(status)) {
+            LOGGER.info("Session is not resumed: {}", status.getMessage());
+            sessionToken = null;
+        }
+        resuming = false;
+        setAuthStatus(status);
+    }
+
     /**
      * Sends a change request to the current directory to the server (command CD)
      * @param path - new current directory
@@ -258,54 +357,316 @@ public class ManagerService implements ConnectionObservable {
     }
 
     /**
-     * Creates FileInputStream and sends a request to upload a file to the server
+     * Registers the transfer in the table on the event loop of the channel, so the table is not shared
+     * with other threads and the transfer is registered before the server answers
+     * @param channel - connection of the transfer
+     * @param table - table of the uploads or downloads of the connection
+     * @param streamId - stream ID of the transfer
+     * @param file - transfer state
+     */
+    private <T> void registerTransfer(Channel channel, IntObjectMap<T> table, int streamId, T file) {
+        if (channel.eventLoop().inEventLoop()) {
+            table.put(streamId, file);
+        } else {
+            channel.eventLoop().execute(() -> table.put(streamId, file));
+        }
+    }
+
+    /**
+     * Checks that the file is transferred by byte ranges over the transfer connections
+     * @param size - file size
+     * @return true for the parallel transfer
+     */
+    private boolean isParallel(long size) {
+        return ServerConfig.TRANSFER_CONNECTIONS > 1 && size >= ServerConfig.PARALLEL_TRANSFER_THRESHOLD;
+    }
+
+    /**
+     * Calculates the range size, a multiple of the buffer size, for the file split between the connections
+     * @param size - file size
+     * @param connections - number of connections
+     * @return range size
+     */
+    private static long rangeSize(long size, int connections) {
+        long chunks = (size + ServerConfig.BUFFER_SIZE - 1) / ServerConfig.BUFFER_SIZE;
+        return (chunks + connections - 1) / connections * ServerConfig.BUFFER_SIZE;
+    }
+
+    /**
+     * Creates FileInputStream and sends a request to upload a file to the server.
+     * The large file is uploaded by byte ranges over the transfer connections.
      * @param sourcePath - source file
      * @param targetPath - target file
      */
     public void upload(String sourcePath, String targetPath) {
-        if (uploadFiles.containsKey(targetPath)) {
+        if (!isConnected()) {
+            throw new RuntimeException("Client disconnected");
+        }
+        if (!transferPaths.add(targetPath)) {
             throw new RuntimeException("File already uploading");
-
         }
 
+        FileChannel channel = null;
         try {
-            FileInputStream fis = new FileInputStream(sourcePath);
-            uploadFiles.put(targetPath, fis);
-
-            PackageHeader header = new PackageHeader.HeaderBuilder(NetworkCommand.UPLOAD_START)
-                    .addParam(targetPath)               // target file and upload ID
-                    .build();
+            channel = new FileInputStream(sourcePath).getChannel();
+            int window = uploadWindow;
+            long size = channel.size();
+            if (isParallel(size)) {
+                uploadParallel(channel, targetPath, size, window);
+                return;
+            }
 
-            NetworkPackage pack = new NetworkPackage(header, null);
-            sendPackage(pack);
+            int streamId = nextStreamId.getAndIncrement();
+            UploadFile file = new UploadFile(targetPath, channel, window);
+            FileChannel source = channel;
+            hashChunks(channel, 0, size).whenComplete((hashes, e) -> {
+                try {
+                    if (e != null) {
+                        throw new RuntimeException("Error hashing local file", e);
+                    }
+                    registerTransfer(activeChannel, uploadFiles, streamId, file);
+
+                    PackageHeader header = new PackageHeader.HeaderBuilder(NetworkCommand.UPLOAD_START)
+                            .setStreamId(streamId)
+                            .addParam(targetPath)               // target file
+                            .addParam(String.valueOf(window))   // chunks in flight
+                            .addParam(String.valueOf(size))     // bytes of the upload for the quota
+                            .addParam(String.valueOf(ServerConfig.COMPRESSION)) // compressed chunks offered
+                            .build();
+
+                    NetworkPackage pack = new NetworkPackage(header, hashesBody(hashes));
+                    sendPackage(pack);
+                } catch (RuntimeException ex) {
+                    LOGGER.warn("Upload error", ex);
+                    closeQuietly(source);
+                    onUpdateProgress.progress(targetPath, -1);
+                }
+            });
         } catch (FileNotFoundException e) {
+            transferPaths.remove(targetPath);
             throw new RuntimeException("File not found");
+        } catch (IOException e) {
+            transferPaths.remove(targetPath);
+            closeQuietly(channel);
+            throw new RuntimeException("Error reading local file", e);
+        } catch (RuntimeException e) {
+            transferPaths.remove(targetPath);
+            closeQuietly(channel);
+            throw e;
         }
     }
 
     /**
-     * Creates FileOutputStream and sends a request to download a file to the server
+     * Splits the file into byte ranges and sends a request to upload every range over its transfer connection.
+     * The server writes the ranges into the part file and moves it to the target when the last range is finished.
+     * @param channel - source file
+     * @param targetPath - target file
+     * @param size - file size
+     * @param window - chunks in flight of every range
+     */
+    private void uploadParallel(FileChannel channel, String targetPath, long size, int window) {
+        if (!isAuthenticated()) {
+            throw new RuntimeException("Client not authenticated");
+        }
+        transferPool.acquire(sessionToken).addListener((FutureListener<List<TransferChannel>>) f -> {
+            if (!f.isSuccess()) {
+                LOGGER.warn("Parallel upload error", f.cause());
+                closeQuietly(channel);
+                onUpdateProgress.progress(targetPath, -1);
+                return;
+            }
+
+            List<TransferChannel> connections = f.getNow();
+            long rangeSize = rangeSize(size, connections.size());
+            int ranges = (int) ((size + rangeSize - 1) / rangeSize);
+            ParallelFile file = new ParallelFile(channel, ranges);
+            LOGGER.info("Upload {} by {} ranges of {} bytes", targetPath, ranges, rangeSize);
+
+            for (int i = 0; i < ranges; i++) {
+                TransferChannel connection = connections.get(i);
+                long offset = i * rangeSize;
+                long end = Math.min(size, offset + rangeSize);
+                int streamId = nextStreamId.getAndIncrement();
+                UploadFile range = new UploadFile(targetPath, channel, offset, end, window, file);
+                hashChunks(channel, offset, end).whenComplete((hashes, e) -> {
+                    if (e != null) {
+                        LOGGER.warn("Parallel upload error", e);
+                        try {
+                            if (file.fail()) {
+                                onUpdateProgress.progress(targetPath, -1);
+                            }
+                        } catch (IOException ex) {
+                            LOGGER.warn("Parallel upload error", ex);
+                        }
+                        return;
+                    }
+                    registerTransfer(connection.getChannel(), connection.getUploadFiles(), streamId, range);
+
+                    PackageHeader header = new PackageHeader.HeaderBuilder(NetworkCommand.UPLOAD_START)
+                            .setStreamId(streamId)
+                            .addParam(targetPath)               // target file
+                            .addParam(String.valueOf(window))   // chunks in flight
+                            .addParam(String.valueOf(offset))   // start of the range
+                            .addParam(String.valueOf(ranges))   // number of ranges of the file
+                            .addParam(String.valueOf(end - offset)) // bytes of the upload for the quota
+                            .addParam(String.valueOf(ServerConfig.COMPRESSION)) // compressed chunks offered
+                            .build();
+                    connection.getChannel().writeAndFlush(new NetworkPackage(header, hashesBody(hashes)));
+                });
+            }
+        });
+    }
+
+    /**
+     * Calculates the chunk hash list of the byte range on the common pool, the server copies the chunks it stores
+     * instead of receiving them (ServerConfig.DEDUP_UPLOADS)
+     * @param channel - source file
+     * @param from - start of the range
+     * @param to - end of the range, exclusive
+     * @return future of the hash list, null if the range is not deduplicated
+     */
+    private static CompletableFuture<byte[]> hashChunks(FileChannel channel, long from, long to) {
+        if (!ServerConfig.DEDUP_UPLOADS || from == to || ChunkHashes.count(to - from) > ServerConfig.DEDUP_MAX_CHUNKS) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return ChunkHashes.hash(channel, from, to);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private static PackageBody hashesBody(byte[] hashes) {
+        return hashes != null ? new PackageBody(Unpooled.wrappedBuffer(hashes)) : null;
+    }
+
+    /**
+     * Creates FileOutputStream and sends a request to download a file to the server.
+     * The large file is downloaded by byte ranges over the transfer connections.
+     * If ServerConfig.RESUMABLE_TRANSFERS is set, the file is downloaded into the part file with the journal
+     * and the interrupted download continues from the confirmed offset.
      * @param sourcePath - source file
      * @param targetPath - target file
+     * @param size - size of the source file
      * @throws FileNotFoundException if file not found
      */
-    public void download(String sourcePath, String targetPath) throws FileNotFoundException {
-        if (downloadFiles.containsKey(targetPath)) {
+    public void download(String sourcePath, String targetPath, long size) throws FileNotFoundException {
+        if (!isConnected()) {
+            throw new RuntimeException("Client disconnected");
+        }
+        if (!transferPaths.add(targetPath)) {
             throw new RuntimeException("File already uploading");
         }
 
-        FileOutputStream fos = new FileOutputStream(targetPath);
-        downloadFiles.put(targetPath, fos);
+        try {
+            boolean streaming = ServerConfig.STREAMING_DOWNLOAD;
+            if (isParallel(size)) {
+                downloadParallel(sourcePath, targetPath, size, streaming);
+                return;
+            }
 
-        PackageHeader header = new PackageHeader.HeaderBuilder(NetworkCommand.DOWNLOAD_START)
-                .addParam(targetPath)               // download ID
-                .addParam(sourcePath)               // source file
-                .build();
+            int streamId = nextStreamId.getAndIncrement();
+            PackageHeader.HeaderBuilder builder = new PackageHeader.HeaderBuilder(NetworkCommand.DOWNLOAD_START)
+                    .setStreamId(streamId)
+                    .addParam(sourcePath)               // source file
+                    .addParam(String.valueOf(streaming)) // server pushes the whole file
+                    .addParam(String.valueOf(ServerConfig.COMPRESSION)); // compressed parts accepted
+
+            if (ServerConfig.RESUMABLE_TRANSFERS) {
+                TransferJournal journal = TransferJournal.open(Paths.get(targetPath));
+                registerTransfer(activeChannel, downloadFiles, streamId,
+                        new DownloadFile(targetPath, journal, streaming));
+                if (journal.getOffset() > 0) {
+                    builder.addParam(TransferMode.RESUME.name())             // continued download
+                            .addParam(String.valueOf(journal.getOffset()))   // confirmed offset
+                            .addParam(String.valueOf(journal.getChecksum())); // checksum of the confirmed bytes
+                }
+            } else {
+                FileChannel channel = new FileOutputStream(targetPath).getChannel();
+                registerTransfer(activeChannel, downloadFiles, streamId,
+                        new DownloadFile(targetPath, channel, streaming));
+            }
 
-        NetworkPackage pack = new NetworkPackage(header, null);
-        sendPackage(pack);
+            NetworkPackage pack = new NetworkPackage(builder.build(), null);
+            sendPackage(pack);
+        } catch (FileNotFoundException | RuntimeException e) {
+            transferPaths.remove(targetPath);
+            throw e;
+        } catch (IOException e) {
+            transferPaths.remove(targetPath);
+            throw new RuntimeException("Error writing local file", e);
+        }
     }
 
+    /**
+     * Splits the file into byte ranges and sends a request to download every range over its transfer connection.
+     * The ranges are written into the part file, it is moved to the target when the last range is finished.
+     * @param sourcePath - source file
+     * @param targetPath - target file
+     * @param size - size of the source file
+     * @param streaming - download mode of the ranges
+     * @throws FileNotFoundException if part file creating error
+     */
+    private void downloadParallel(String sourcePath, String targetPath, long size, boolean streaming)
+            throws FileNotFoundException {
+        if (!isAuthenticated()) {
+            throw new RuntimeException("Client not authenticated");
+        }
+        Path partPath = Paths.get(targetPath + ".part");
+        FileChannel channel = new FileOutputStream(partPath.toFile()).getChannel();
+
+        transferPool.acquire(sessionToken).addListener((FutureListener<List<TransferChannel>>) f -> {
+            if (!f.isSuccess()) {
+                LOGGER.warn("Parallel download error", f.cause());
+                closeQuietly(channel);
+                Files.deleteIfExists(partPath);
+                onUpdateProgress.progress(targetPath, -1);
+                return;
+            }
+
+            List<TransferChannel> connections = f.getNow();
+            long rangeSize = rangeSize(size, connections.size());
+            int ranges = (int) ((size + rangeSize - 1) / rangeSize);
+            ParallelFile file = new ParallelFile(channel, ranges, partPath, Paths.get(targetPath));
+            LOGGER.info("Download {} by {} ranges of {} bytes", sourcePath, ranges, rangeSize);
+
+            for (int i = 0; i < ranges; i++) {
+                TransferChannel connection = connections.get(i);
+                long offset = i * rangeSize;
+                int streamId = nextStreamId.getAndIncrement();
+                registerTransfer(connection.getChannel(), connection.getDownloadFiles(), streamId,
+                        new DownloadFile(targetPath, channel, offset, streaming, file));
+
+                PackageHeader header = new PackageHeader.HeaderBuilder(NetworkCommand.DOWNLOAD_START)
+                        .setStreamId(streamId)
+                        .addParam(sourcePath)               // source file
+                        .addParam(String.valueOf(streaming)) // server pushes the whole range
+                        .addParam(String.valueOf(ServerConfig.COMPRESSION)) // compressed parts accepted
+                        .addParam(TransferMode.RANGE.name()) // byte range of the file
+                        .addParam(String.valueOf(offset))   // start of the range
+                        .addParam(String.valueOf(rangeSize)) // length of the range
+                        .build();
+                connection.getChannel().writeAndFlush(new NetworkPackage(header, null));
+            }
+        });
+    }
+
+    /**
+     * Closes the file of the transfer that has not been started
+     * @param channel - file or null
+     */
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.warn("File closing error", e);
+        }
+    }
 
     /**
      * Sends a file search request to the server
@@ -322,6 +683,20 @@ public class ManagerService implements ConnectionObservable {
         sendPackage(pack);
     }
 
+    /**
+     * Sends a request to stop sending the pages of the current listing to the server (command LS_CANCEL)
+     */
+    public void cancelListing() {
+        if (!isAuthenticated()) {
+            return;
+        }
+        PackageHeader header = new PackageHeader.HeaderBuilder(NetworkCommand.LS_CANCEL)
+                .build();
+        NetworkPackage pack = new NetworkPackage(header, null);
+
+        sendPackage(pack);
+    }
+
     /**
      * Sends a request to create a directory to the server.
      * @param directoryName - name of new directory
@@ -347,4 +722,21 @@ public class ManagerService implements ConnectionObservable {
 
         sendPackage(pack);
     }
+
+    /**
+     * Sends a request to copy or move a file or directory on the server (command COPY or MOVE).
+     * The data does not leave the server, the progress of the copy and its failure are logged.
+     * @param source - path of the file or directory
+     * @param target - new path of the file or directory
+     * @param move - the source is moved
+     */
+    public void copyFile(String source, String target, boolean move) {
+        PackageHeader header = new PackageHeader.HeaderBuilder(move ? NetworkCommand.MOVE : NetworkCommand.COPY)
+                .addParam(source)
+                .addParam(target)
+                .build();
+        NetworkPackage pack = new NetworkPackage(header, null);
+
+        sendPackage(pack);
+    }
 }
@@ -228,6 +228,17 @@ public class TableController implements Initializable {
         });
     }
 
+    /**
+     * Appends the next page of the listing to the table content
+     * @param fileViews - appended content
+     */
+    public void appendTable(List<FileView> fileViews) {
+        Platform.runLater(() -> {
+            fileTable.getItems().addAll(fileViews);
+            fileTable.sort();
+        });
+    }
+
     /**
      * Clears table content
      */
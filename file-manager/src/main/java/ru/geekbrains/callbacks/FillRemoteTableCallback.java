@@ -5,9 +5,9 @@ import ru.geekbrains.messages.FileView;
 import java.util.List;
 
 /**
- * Callback to update the contents of the remote table
+ * Callback to update the contents of the remote table, append - files are the next page of the listing
  */
 @FunctionalInterface
 public interface FillRemoteTableCallback {
-    void fill(List<FileView> files, String path);
+    void fill(List<FileView> files, String path, boolean append);
 }
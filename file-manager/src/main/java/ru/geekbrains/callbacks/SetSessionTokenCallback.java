@@ -0,0 +1,8 @@
+package ru.geekbrains.callbacks;
+
+/**
+ * Callback to keep the session token of the login
+ */
+public interface SetSessionTokenCallback {
+    void set(String token);
+}
@@ -0,0 +1,187 @@
+package ru.geekbrains.connection;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.geekbrains.callbacks.UpdateProgressBarCallback;
+import ru.geekbrains.codecs.NetworkPackageDecoder;
+import ru.geekbrains.codecs.NetworkPackageEncoder;
+import ru.geekbrains.commands.NetworkCommand;
+import ru.geekbrains.configs.ServerConfig;
+import ru.geekbrains.handlers.AuthManagerHandler;
+import ru.geekbrains.handlers.FileDownloadManagerHandler;
+import ru.geekbrains.handlers.FileUploadManagerHandler;
+import ru.geekbrains.messages.NetworkPackage;
+import ru.geekbrains.messages.PackageHeader;
+import ru.geekbrains.transfers.DownloadFile;
+import ru.geekbrains.transfers.UploadFile;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Additional connections to the server for the parallel transfers of the large files.
+ * The connections are opened by the first parallel transfer, join the session of the main connection
+ * by its token (command "AUTH_RESUME"), so the password is not kept by the client, and are kept
+ * until one of them is closed.
+ * Adds into every connection pipeline NetworkPackageDecoder, NetworkPackageEncoder, AuthManagerHandler
+ * and after authentication FileUploadHandler and FileDownloadHandler.
+ */
+public class TransferChannelPool {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TransferChannelPool.class);
+
+    private final Bootstrap bootstrap;
+    private final UpdateProgressBarCallback onUpdateProgress;
+    // Authenticated connections of the current pool
+    private final List<TransferChannel> channels = new ArrayList<>();
+    private Promise<List<TransferChannel>> ready;
+
+    /**
+     * Connection of the pool and its tables of the uploads and downloads by stream ID.
+     * The tables are accessed only from the event loop of the channel.
+     */
+    public static class TransferChannel {
+        private final Channel channel;
+        private final IntObjectMap<UploadFile> uploadFiles = new IntObjectHashMap<>();
+        private final IntObjectMap<DownloadFile> downloadFiles = new IntObjectHashMap<>();
+
+        private TransferChannel(Channel channel) {
+            this.channel = channel;
+        }
+
+        public Channel getChannel() {
+            return channel;
+        }
+
+        public IntObjectMap<UploadFile> getUploadFiles() {
+            return uploadFiles;
+        }
+
+        public IntObjectMap<DownloadFile> getDownloadFiles() {
+            return downloadFiles;
+        }
+    }
+
+    /**
+     * @param bootstrap - bootstrap of the main connection, its event loop group is shared by the pool
+     * @param onUpdateProgress - progress callback of the transfers
+     */
+    public TransferChannelPool(Bootstrap bootstrap, UpdateProgressBarCallback onUpdateProgress) {
+        this.bootstrap = bootstrap.clone();
+        this.onUpdateProgress = onUpdateProgress;
+    }
+
+    /**
+     * Returns authenticated connections, opens them if the pool is empty
+     * @param sessionToken - token of the session of the main connection
+     * @return future of the connections list
+     */
+    public synchronized Future<List<TransferChannel>> acquire(String sessionToken) {
+        if (ready == null) {
+            if (sessionToken == null) {
+                return GlobalEventExecutor.INSTANCE.newFailedFuture(new RuntimeException("No session to join"));
+            }
+            Promise<List<TransferChannel>> promise = GlobalEventExecutor.INSTANCE.newPromise();
+            ready = promise;
+            for (int i = 0; i < ServerConfig.TRANSFER_CONNECTIONS; i++) {
+                connect(promise, sessionToken);
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * Closes connections of the pool
+     */
+    public synchronized void close() {
+        if (ready != null) {
+            fail(ready, new RuntimeException("Transfer connections closed"));
+        }
+    }
+
+    /**
+     * Opens connection and sends a request to resume the session
+     * @param promise - promise of the current pool
+     * @param sessionToken - token of the session of the main connection
+     */
+    private void connect(Promise<List<TransferChannel>> promise, String sessionToken) {
+        Bootstrap b = bootstrap.clone().handler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel channel) throws Exception {
+                TransferChannel transferChannel = new TransferChannel(channel);
+                ChannelPipeline pipeline = channel.pipeline();
+                pipeline.addLast("PackageDecoder", new NetworkPackageDecoder(ServerConfig.MAX_FRAME_SIZE));
+                pipeline.addLast("PackageEncoder", new NetworkPackageEncoder());
+                pipeline.addLast("AuthManagerHandler", new AuthManagerHandler(s -> {
+                            if (AuthStatus.AUTHENTICATION_FAIL.equals(s)) {
+                                fail(promise, new RuntimeException(s.getMessage()));
+                                channel.close();
+                            }
+                        }, () -> {
+                            pipeline.addAfter("AuthManagerHandler", "FileUploadHandler",
+                                    new FileUploadManagerHandler(transferChannel.uploadFiles, onUpdateProgress));
+                            pipeline.addAfter("AuthManagerHandler", "FileDownloadHandler",
+                                    new FileDownloadManagerHandler(transferChannel.downloadFiles, onUpdateProgress));
+                            authenticated(promise, transferChannel);
+                        }));
+            }
+        });
+
+        b.connect(ServerConfig.SERVER_IP_ADDRESS, ServerConfig.SERVER_PORT).addListener((ChannelFutureListener) f -> {
+            if (!f.isSuccess()) {
+                fail(promise, f.cause());
+                return;
+            }
+            f.channel().closeFuture().addListener(
+                    c -> fail(promise, new RuntimeException("Transfer connection closed")));
+
+            PackageHeader header = new PackageHeader.HeaderBuilder(NetworkCommand.AUTH_RESUME)
+                    .addParam(sessionToken)
+                    .build();
+            f.channel().writeAndFlush(new NetworkPackage(header, null));
+        });
+    }
+
+    /**
+     * Adds authenticated connection into the pool, the pool is ready when all connections are authenticated
+     * @param promise - promise of the pool the connection opened for
+     * @param transferChannel - authenticated connection
+     */
+    private synchronized void authenticated(Promise<List<TransferChannel>> promise, TransferChannel transferChannel) {
+        if (ready != promise) {
+            transferChannel.channel.close();
+            return;
+        }
+        channels.add(transferChannel);
+        if (channels.size() == ServerConfig.TRANSFER_CONNECTIONS) {
+            LOGGER.info("{} transfer connections opened", channels.size());
+            promise.trySuccess(new ArrayList<>(channels));
+        }
+    }
+
+    /**
+     * Closes connections of the pool, so the next transfer opens the new ones.
+     * The connections share the session of the main connection, so they are closed without "LOGOUT".
+     * @param promise - promise of the pool
+     * @param cause - failure cause
+     */
+    private synchronized void fail(Promise<List<TransferChannel>> promise, Throwable cause) {
+        if (ready == promise) {
+            ready = null;
+            channels.forEach(c -> c.channel.close());
+            channels.clear();
+            LOGGER.warn("Transfer connections closed: {}", cause.getMessage());
+        }
+        promise.tryFailure(cause);
+    }
+}
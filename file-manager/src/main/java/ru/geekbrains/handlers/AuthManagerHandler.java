@@ -1,30 +1,48 @@
 package ru.geekbrains.handlers;
 
+import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.geekbrains.callbacks.LoadHandlersCallback;
 import ru.geekbrains.callbacks.SetAuthStatusCallback;
+import ru.geekbrains.callbacks.SetSessionTokenCallback;
 import ru.geekbrains.commands.NetworkCommand;
+import ru.geekbrains.configs.ServerConfig;
 import ru.geekbrains.connection.AuthStatus;
 import ru.geekbrains.messages.NetworkPackage;
 import ru.geekbrains.messages.PackageHeader;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * Handles command "AUTH_OK" and "AUTH_FAIL".
  * "AUTH_OK" - update authentication state then add into channel pipeline
  * CommandHandler, FileUploadHandler, FileDownloadHandler and remove AuthManagerHandler.
+ * The session token of "AUTH_OK" is passed to the token callback if it is set.
+ * Handles command "AUTH_RETRY": the last "AUTH" is sent again after the delay of the server,
+ * up to ServerConfig.AUTH_RETRY_ATTEMPTS times, then the authentication fails.
  */
-public class AuthManagerHandler extends ChannelInboundHandlerAdapter {
+public class AuthManagerHandler extends ChannelDuplexHandler {
     private static final Logger LOGGER = LoggerFactory.getLogger(CommandManagerHandler.class);
     SetAuthStatusCallback setStatus;
     LoadHandlersCallback onLoadHandler;
+    SetSessionTokenCallback setToken;
+    // Header of the last login and its retries
+    private PackageHeader authHeader;
+    private int retries;
 
     public AuthManagerHandler(SetAuthStatusCallback setStatus, LoadHandlersCallback onLoadHandler) {
+        this(setStatus, onLoadHandler, null);
+    }
+
+    public AuthManagerHandler(SetAuthStatusCallback setStatus, LoadHandlersCallback onLoadHandler,
+                              SetSessionTokenCallback setToken) {
         this.setStatus = setStatus;
         this.onLoadHandler = onLoadHandler;
+        this.setToken = setToken;
     }
 
     @Override
@@ -33,6 +51,9 @@ public class AuthManagerHandler extends ChannelInboundHandlerAdapter {
         PackageHeader header = pack.getHeader();
 
         if (NetworkCommand.AUTH_OK.equals(header.getCommand())) {
+            if (setToken != null && header.getParamCount() > 1) {
+                setToken.set(header.getParam(2));
+            }
             setStatus.set(AuthStatus.AUTHENTICATED);
 
             // Rebuild pipeline
@@ -43,7 +64,30 @@ public class AuthManagerHandler extends ChannelInboundHandlerAdapter {
             AuthStatus authStatus = AuthStatus.AUTHENTICATION_FAIL;
             authStatus.setMessage(header.getParam(1));
             setStatus.set(authStatus);
+        } else if (NetworkCommand.AUTH_RETRY.equals(header.getCommand())) {
+            if (authHeader != null && retries < ServerConfig.AUTH_RETRY_ATTEMPTS) {
+                retries++;
+                PackageHeader retryHeader = authHeader;
+                long delay = Long.parseLong(header.getParam(2));
+                LOGGER.info("{}, retry {} in {} ms", header.getParam(1), retries, delay);
+                ctx.executor().schedule(() -> ctx.writeAndFlush(new NetworkPackage(retryHeader, null)),
+                        delay, TimeUnit.MILLISECONDS);
+            } else {
+                AuthStatus authStatus = AuthStatus.AUTHENTICATION_FAIL;
+                authStatus.setMessage(header.getParam(1));
+                setStatus.set(authStatus);
+            }
+        }
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof NetworkPackage
+                && NetworkCommand.AUTH.equals(((NetworkPackage) msg).getHeader().getCommand())) {
+            authHeader = ((NetworkPackage) msg).getHeader();
+            retries = 0;
         }
+        ctx.write(msg, promise);
     }
 
     @Override
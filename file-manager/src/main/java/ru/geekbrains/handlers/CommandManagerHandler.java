@@ -15,11 +15,17 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Handles command LS and update the contents of the remote table
+ * Handles command LS and update the contents of the remote table.
+ * The first page of the listing replaces the contents of the table, the next pages of the same listing
+ * (stream ID) are appended to it. Pages of the replaced listing are ignored.
+ * Handles command COPY and logs the progress of the copy on the server, command COPY_FAIL logs the failed copy.
+ * Command RM_FAIL logs the failed remove.
  */
 public class CommandManagerHandler extends ChannelInboundHandlerAdapter {
     private static final Logger LOGGER = LoggerFactory.getLogger(CommandManagerHandler.class);
     FillRemoteTableCallback onUploadTable;
+    // Stream ID of the listing shown in the table
+    private int listingId;
 
     public CommandManagerHandler(FillRemoteTableCallback onUploadTable) {
         this.onUploadTable = onUploadTable;
@@ -36,7 +42,20 @@ public class CommandManagerHandler extends ChannelInboundHandlerAdapter {
             for (int i = 0; i < body.getObjectBody().length; i++) {
                 listFiles.add((FileView) body.getObjectBody()[i]);
             }
-            onUploadTable.fill(listFiles, header.getParam(1));
+            int offset = header.getParamCount() > 1 ? Integer.parseInt(header.getParam(2)) : 0;
+            if (offset == 0) {
+                listingId = header.getStreamId();
+                onUploadTable.fill(listFiles, header.getParam(1), false);
+            } else if (header.getStreamId() == listingId) {
+                onUploadTable.fill(listFiles, header.getParam(1), true);
+            }
+        } else if (NetworkCommand.COPY.equals(header.getCommand())) {
+            LOGGER.info("Copy of {} on the server: {} of {} bytes",
+                    header.getParam(1), header.getParam(2), header.getParam(3));
+        } else if (NetworkCommand.COPY_FAIL.equals(header.getCommand())) {
+            LOGGER.warn("Copy of {} on the server failed: {}", header.getParam(1), header.getParam(2));
+        } else if (NetworkCommand.RM_FAIL.equals(header.getCommand())) {
+            LOGGER.warn("Remove of {} on the server failed: {}", header.getParam(1), header.getParam(2));
         }
     }
 
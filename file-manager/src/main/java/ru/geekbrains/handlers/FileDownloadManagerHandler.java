@@ -2,31 +2,35 @@ package ru.geekbrains.handlers;
 
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.collection.IntObjectMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.geekbrains.callbacks.UpdateProgressBarCallback;
 import ru.geekbrains.commands.NetworkCommand;
 import ru.geekbrains.messages.NetworkPackage;
 import ru.geekbrains.messages.PackageHeader;
-
-import java.io.FileOutputStream;
-import java.util.HashMap;
-import java.util.Map;
+import ru.geekbrains.transfers.DownloadFile;
 
 /**
- * Handles command "DOWNLOAD", "DOWNLOAD_FINISH" and "DOWNLOAD_FAIL".
- * "DOWNLOAD" - write buffer into the FileOutputStream and send command "DOWNLOAD_READY"
- * "DOWNLOAD_FINISH" - close FileOutputStream and send command "DOWNLOAD_DONE"
- * "DOWNLOAD_FAIL" - close FileInputStream and logging error message
+ * Handles command "DOWNLOAD_RESUME", "DOWNLOAD", "DOWNLOAD_FINISH" and "DOWNLOAD_FAIL" of the downloads
+ * identified by the stream ID.
+ * "DOWNLOAD_RESUME" - continue the resumable download from the offset accepted by the server
+ * "DOWNLOAD" - write buffer into the target file, release it and send command "DOWNLOAD_READY"
+ * (not needed in the streaming mode, the server pushes the whole file)
+ * "DOWNLOAD_FINISH" - close target file, send command "DOWNLOAD_DONE" and report the transfer statistics
+ * with the bytes sent by the server (deflated parts are inflated by the decoder)
+ * "DOWNLOAD_FAIL" - close target file and logging error message
+ * Ranges of the parallel download are the separate downloads, the progress is finished by the last range.
  */
 public class FileDownloadManagerHandler extends ChannelInboundHandlerAdapter {
     private static final Logger LOGGER = LoggerFactory.getLogger(FileDownloadManagerHandler.class);
 
-    private Map<String, FileOutputStream> downloadFiles = new HashMap<>();
+    // Accessed only from the event loop of the channel
+    private IntObjectMap<DownloadFile> downloadFiles;
     private UpdateProgressBarCallback onUpdateProgress;
-    private String lastDownload;
+    private int lastDownload;
 
-    public FileDownloadManagerHandler(Map<String, FileOutputStream> downloadFiles, UpdateProgressBarCallback onUpdateProgress) {
+    public FileDownloadManagerHandler(IntObjectMap<DownloadFile> downloadFiles, UpdateProgressBarCallback onUpdateProgress) {
         this.downloadFiles = downloadFiles;
         this.onUpdateProgress = onUpdateProgress;
     }
@@ -38,34 +42,67 @@ public class FileDownloadManagerHandler extends ChannelInboundHandlerAdapter {
         NetworkCommand command = header.getCommand();
 
         if (NetworkCommand.DOWNLOAD.equals(command)) {
-            String downloadID = header.getParam(1);
+            int downloadID = header.getStreamId();
+            lastDownload = downloadID;
+            DownloadFile file = downloadFiles.get(downloadID);
+            if (file == null || file.isFailed()) {
+                // Parts pushed before the download was cancelled
+                pack.release();
+                if (file != null) {
+                    downloadFiles.remove(downloadID);
+                    file.fail();
+                    writeFailDownload(ctx, downloadID, "Download cancelled");
+                }
+                return;
+            }
+            try {
+                file.write(pack.content());
+            } finally {
+                pack.release();
+            }
+            if (!file.isStreaming()) {
+                writeReadyDownload(ctx, downloadID);
+            }
+            onUpdateProgress.progress(file.getPath(), 1);
+        } else if (NetworkCommand.DOWNLOAD_RESUME.equals(command)) {
+            int downloadID = header.getStreamId();
             lastDownload = downloadID;
-            FileOutputStream fos = downloadFiles.get(downloadID);
-            byte[] buffer = pack.getBody().getByteBody();
-            int read = Integer.parseInt(header.getParam(2));
-            fos.write(buffer, 0, read);
-            fos.flush();
-            writeReadyDownload(ctx, downloadID);
-            onUpdateProgress.progress(downloadID, 1);
+            DownloadFile file = downloadFiles.get(downloadID);
+            if (file == null) {
+                return;
+            }
+            long offset = Long.parseLong(header.getParam(1));
+            file.resume(offset);
+            LOGGER.info("Download {} resumed from offset {}", file.getPath(), offset);
         } else if (NetworkCommand.DOWNLOAD_FINISH.equals(command)) {
-            String downloadID = header.getParam(1);
+            int downloadID = header.getStreamId();
             lastDownload = downloadID;
-            FileOutputStream fos = downloadFiles.get(downloadID);
-            fos.close();
-            downloadFiles.remove(downloadID);
+            DownloadFile file = downloadFiles.remove(downloadID);
+            if (file == null) {
+                return;
+            }
+            boolean complete = file.finish();
             PackageHeader reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.DOWNLOAD_DONE)
-                    .addParam(downloadID)
+                    .setStreamId(downloadID)
                     .build();
             NetworkPackage reqPack = new NetworkPackage(reqHeader, null);
             ctx.writeAndFlush(reqPack);
-            onUpdateProgress.progress(downloadID, 0);
-        } else if (NetworkCommand.UPLOAD_FAIL.equals(command)) {
-            String downloadID = header.getParam(1);
-            String errMessage = header.getParam(2);
-            FileOutputStream fos = downloadFiles.get(downloadID);
-            fos.close();
-            downloadFiles.remove(downloadID);
-            onUpdateProgress.progress(downloadID, -1);
+            long millis = Math.max(1, file.getElapsedMillis());
+            long wireBytes = header.getParamCount() > 0 ? Long.parseLong(header.getParam(1)) : file.getBytes();
+            LOGGER.info("Download {} done: {} bytes in {} chunks, {} ms, streaming {}, {} KB/s, compression {}",
+                    file.getPath(), file.getBytes(), file.getChunks(), millis, file.isStreaming(),
+                    file.getBytes() / millis,
+                    String.format("%.2f", file.getBytes() == 0 ? 1.0 : (double) wireBytes / file.getBytes()));
+            if (complete) {
+                onUpdateProgress.progress(file.getPath(), 0);
+            }
+        } else if (NetworkCommand.DOWNLOAD_FAIL.equals(command)) {
+            int downloadID = header.getStreamId();
+            String errMessage = header.getParam(1);
+            DownloadFile file = downloadFiles.remove(downloadID);
+            if (file != null && file.fail()) {
+                onUpdateProgress.progress(file.getPath(), -1);
+            }
             LOGGER.warn(errMessage);
         } else {
             ctx.fireChannelRead(msg);
@@ -76,30 +113,49 @@ public class FileDownloadManagerHandler extends ChannelInboundHandlerAdapter {
     /**
      * Sends command "DOWNLOAD_READY"
      * @param ctx - channel handler context
-     * @param uploadID - session ID
+     * @param downloadID - stream ID
      */
-    private void writeReadyDownload(ChannelHandlerContext ctx, String uploadID) {
+    private void writeReadyDownload(ChannelHandlerContext ctx, int downloadID) {
         PackageHeader reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.DOWNLOAD_READY)
-                .addParam(uploadID)
+                .setStreamId(downloadID)
                 .build();
         NetworkPackage reqPack = new NetworkPackage(reqHeader, null);
         ctx.writeAndFlush(reqPack);
     }
 
     @Override
-    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
-        ctx.flush();
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        // Part files of the resumable downloads are kept with the confirmed offset
+        for (DownloadFile file : downloadFiles.values()) {
+            file.fail();
+        }
+        downloadFiles.clear();
+        ctx.fireChannelInactive();
     }
 
     @Override
-    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
-        LOGGER.warn("Download error", cause);
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        ctx.flush();
+    }
 
+    /**
+     * Sends command "DOWNLOAD_FAIL"
+     * @param ctx - channel handler context
+     * @param downloadID - stream ID
+     * @param errMessage - error message
+     */
+    private void writeFailDownload(ChannelHandlerContext ctx, int downloadID, String errMessage) {
         PackageHeader reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.DOWNLOAD_FAIL)
-                .addParam(lastDownload)
-                .addParam("Error writing remote file")
+                .setStreamId(downloadID)
+                .addParam(errMessage)
                 .build();
         NetworkPackage reqPack = new NetworkPackage(reqHeader, null);
         ctx.writeAndFlush(reqPack);
     }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        LOGGER.warn("Download error", cause);
+        writeFailDownload(ctx, lastDownload, "Error writing remote file");
+    }
 }
@@ -1,34 +1,44 @@
 package ru.geekbrains.handlers;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.collection.IntObjectMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.geekbrains.callbacks.UpdateProgressBarCallback;
 import ru.geekbrains.commands.NetworkCommand;
 import ru.geekbrains.configs.ServerConfig;
 import ru.geekbrains.messages.NetworkPackage;
-import ru.geekbrains.messages.PackageBody;
 import ru.geekbrains.messages.PackageHeader;
+import ru.geekbrains.transfers.UploadFile;
 
-import java.io.FileInputStream;
-import java.util.Map;
+import java.io.IOException;
+import java.util.BitSet;
 
 /**
- * Handles command "UPLOAD_READY", "UPLOAD_DONE" and "UPLOAD_FAIL".
- * "UPLOAD_READY" - read bytes into the buffer and send package "UPLOAD" or "UPLOAD_FINISH" if file read complete
- * "UPLOAD_DONE" - close FileInputStream
- * "UPLOAD_FAIL" - close FileInputStream and logging error message
+ * Handles command "UPLOAD_READY", "UPLOAD_RESUME", "UPLOAD_DONE" and "UPLOAD_FAIL" of the uploads
+ * identified by the stream ID.
+ * "UPLOAD_READY" - take credits granted by the server and send packages "UPLOAD" while credits remain,
+ * or "UPLOAD_FINISH" if file read complete. "UPLOAD_READY" granting the window answers the compression offered
+ * by "UPLOAD_START", if it is accepted the chunks are deflated if they shrink. "UPLOAD_READY" granting
+ * the window of the deduplicated upload has the bitmap of the chunks stored on the server, they are skipped.
+ * "UPLOAD_RESUME" - verify the bytes confirmed by the server and answer the offset the upload continues from
+ * "UPLOAD_DONE" - close source file and report the transfer statistics
+ * "UPLOAD_FAIL" - close source file and logging error message
+ * Ranges of the parallel upload are the separate uploads, the progress is finished by the last range.
  */
 public class FileUploadManagerHandler extends ChannelInboundHandlerAdapter {
     private static final Logger LOGGER = LoggerFactory.getLogger(FileUploadManagerHandler.class);
 
-    private Map<String, FileInputStream> uploadFiles;
+    // Accessed only from the event loop of the channel
+    private IntObjectMap<UploadFile> uploadFiles;
     private UpdateProgressBarCallback onUpdateProgress;
-    private String lastUpload;
+    private int lastUpload;
 
 
-    public FileUploadManagerHandler(Map<String, FileInputStream> uploadFiles, UpdateProgressBarCallback onUpdateProgress) {
+    public FileUploadManagerHandler(IntObjectMap<UploadFile> uploadFiles, UpdateProgressBarCallback onUpdateProgress) {
         this.uploadFiles = uploadFiles;
         this.onUpdateProgress = onUpdateProgress;
     }
@@ -40,59 +50,151 @@ public class FileUploadManagerHandler extends ChannelInboundHandlerAdapter {
         NetworkCommand command = header.getCommand();
 
         if (NetworkCommand.UPLOAD_READY.equals(command)) {
-            String uploadID = header.getParam(1);
+            int uploadID = header.getStreamId();
             lastUpload = uploadID;
-            FileInputStream fis = uploadFiles.get(uploadID);
-            byte[] buffer = new byte[ServerConfig.BUFFER_SIZE];
-            int read = fis.read(buffer);
-            PackageHeader reqHeader;
-            if (read != -1) {
-                reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.UPLOAD)
-                        .addParam(uploadID)
-                        .addParam(String.valueOf(read))         // read bytes
-                        .build();
-            } else {
-                reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.UPLOAD_FINISH)
-                        .addParam(uploadID)
-                        .build();
+            BitSet stored = null;
+            if (pack.getBody() != null) {
+                stored = BitSet.valueOf(ByteBufUtil.getBytes(pack.content()));
+                pack.release();
             }
-            NetworkPackage reqPack = new NetworkPackage(reqHeader, new PackageBody(buffer));
-            ctx.writeAndFlush(reqPack);
-            onUpdateProgress.progress(uploadID, 1);
+            UploadFile file = uploadFiles.get(uploadID);
+            if (file == null) {
+                return;
+            }
+            if (stored != null) {
+                file.setStored(stored);
+            }
+            if (file.isFailed()) {
+                // Other range of the parallel upload failed
+                uploadFiles.remove(uploadID);
+                file.fail();
+                writeFailUpload(ctx, uploadID, "Upload cancelled");
+                return;
+            }
+            if (header.getParamCount() > 1) {
+                file.setCompression(Boolean.parseBoolean(header.getParam(2)));
+            }
+            // The first "UPLOAD_READY" grants the window, the next ones grant one chunk
+            file.grant(header.getParamCount() > 0 ? Integer.parseInt(header.getParam(1)) : 1);
+            while (file.tryAcquire()) {
+                uploadPartFile(ctx, uploadID, file);
+            }
+            ctx.flush();
+        } else if (NetworkCommand.UPLOAD_RESUME.equals(command)) {
+            int uploadID = header.getStreamId();
+            lastUpload = uploadID;
+            UploadFile file = uploadFiles.get(uploadID);
+            long offset = Long.parseLong(header.getParam(1));
+            if (!file.resume(offset, Long.parseLong(header.getParam(2)))) {
+                offset = 0;
+            }
+            LOGGER.info("Upload {} resumed from offset {}", file.getPath(), offset);
+            PackageHeader reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.UPLOAD_RESUME)
+                    .setStreamId(uploadID)
+                    .addParam(String.valueOf(offset))
+                    .build();
+            ctx.writeAndFlush(new NetworkPackage(reqHeader, null));
         } else if (NetworkCommand.UPLOAD_DONE.equals(command)) {
-            String uploadID = header.getParam(1);
+            int uploadID = header.getStreamId();
             lastUpload = uploadID;
-            FileInputStream fis = uploadFiles.get(uploadID);
-            fis.close();
-            uploadFiles.remove(uploadID);
-            onUpdateProgress.progress(uploadID, 0);
+            UploadFile file = uploadFiles.remove(uploadID);
+            if (file == null) {
+                return;
+            }
+            boolean complete = file.finish();
+            long millis = Math.max(1, file.getElapsedMillis());
+            LOGGER.info("Upload {} done: {} bytes in {} chunks, {} ms, window {}, {} KB/s, compression {}, "
+                            + "{} bytes stored on the server",
+                    file.getPath(), file.getBytes(), file.getChunks(), millis, file.getWindow(),
+                    file.getBytes() / millis, String.format("%.2f", file.getCompressionRatio()),
+                    file.getSkippedBytes());
+            if (complete) {
+                onUpdateProgress.progress(file.getPath(), 0);
+            }
         } else if (NetworkCommand.UPLOAD_FAIL.equals(command)) {
-            String uploadID = header.getParam(1);
-            String errMessage = header.getParam(2);
-            FileInputStream fis = uploadFiles.get(uploadID);
-            fis.close();
-            uploadFiles.remove(uploadID);
-            onUpdateProgress.progress(uploadID, -1);
+            int uploadID = header.getStreamId();
+            String errMessage = header.getParam(1);
+            UploadFile file = uploadFiles.remove(uploadID);
+            if (file != null && file.fail()) {
+                onUpdateProgress.progress(file.getPath(), -1);
+            }
             LOGGER.warn(errMessage);
         } else {
             ctx.fireChannelRead(msg);
         }
     }
 
+    /**
+     * Reads bytes into the pooled direct buffer and writes package "UPLOAD" or "UPLOAD_FINISH" if file read complete.
+     * The buffer, or its deflated copy, is released by the encoder after it is written into the socket.
+     * @param ctx - channel handler context
+     * @param uploadID - stream ID
+     * @param file - upload state
+     * @throws IOException if file reading error
+     */
+    private void uploadPartFile(ChannelHandlerContext ctx, int uploadID, UploadFile file) throws IOException {
+        ByteBuf buffer = ctx.alloc().ioBuffer(ServerConfig.BUFFER_SIZE);
+        int read;
+        try {
+            read = file.read(buffer, ServerConfig.BUFFER_SIZE);
+        } catch (IOException e) {
+            buffer.release();
+            throw e;
+        }
+        for (int i = file.takeSkippedChunks(); i > 0; i--) {
+            onUpdateProgress.progress(file.getPath(), 1);
+        }
+
+        if (read == -1) {
+            buffer.release();
+            file.setFinished();
+            PackageHeader reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.UPLOAD_FINISH)
+                    .setStreamId(uploadID)
+                    .build();
+            ctx.write(new NetworkPackage(reqHeader, null));
+            return;
+        }
+
+        PackageHeader reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.UPLOAD)
+                .setStreamId(uploadID)
+                .build();
+        ctx.write(new NetworkPackage(reqHeader, file.compress(ctx.alloc(), buffer)));
+        file.chunkSent(read);
+        onUpdateProgress.progress(file.getPath(), 1);
+    }
+
     @Override
-    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
-        ctx.flush();
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        for (UploadFile file : uploadFiles.values()) {
+            file.fail();
+        }
+        uploadFiles.clear();
+        ctx.fireChannelInactive();
     }
 
     @Override
-    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
-        LOGGER.warn("Upload error", cause);
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        ctx.flush();
+    }
 
+    /**
+     * Sends command "UPLOAD_FAIL"
+     * @param ctx - channel handler context
+     * @param uploadID - stream ID
+     * @param errMessage - error message
+     */
+    private void writeFailUpload(ChannelHandlerContext ctx, int uploadID, String errMessage) {
         PackageHeader reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.UPLOAD_FAIL)
-                .addParam(lastUpload)
-                .addParam("Error reading local file")
+                .setStreamId(uploadID)
+                .addParam(errMessage)
                 .build();
         NetworkPackage reqPack = new NetworkPackage(reqHeader, null);
         ctx.writeAndFlush(reqPack);
     }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        LOGGER.warn("Upload error", cause);
+        writeFailUpload(ctx, lastUpload, "Error reading local file");
+    }
 }
@@ -0,0 +1,162 @@
+package ru.geekbrains.transfers;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * State of the file download: target path, channel and write position, download mode and transfer statistics.
+ * The resumable download writes the part file of its journal.
+ */
+public class DownloadFile {
+    private final String path;
+    private final FileChannel channel;
+    // Target file of the parallel download, null if the whole file is downloaded over one connection
+    private final ParallelFile parallel;
+    // Journal of the resumable download
+    private final TransferJournal journal;
+    private final boolean streaming;
+    private final long startTime;
+
+    private long position;
+    private int chunks;
+    private long bytes;
+
+    public DownloadFile(String path, FileChannel channel, boolean streaming) {
+        this(path, channel, 0, streaming, null);
+    }
+
+    /**
+     * Creates resumable download continuing from the confirmed offset of the journal
+     * @param path - target path
+     * @param journal - journal of the part file
+     * @param streaming - download mode
+     */
+    public DownloadFile(String path, TransferJournal journal, boolean streaming) {
+        this.path = path;
+        this.channel = journal.getChannel();
+        this.position = journal.getOffset();
+        this.streaming = streaming;
+        this.parallel = null;
+        this.journal = journal;
+        this.startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Creates download of the byte range
+     * @param path - target path
+     * @param channel - target file
+     * @param position - start of the range
+     * @param streaming - download mode
+     * @param parallel - target file shared by the ranges or null
+     */
+    public DownloadFile(String path, FileChannel channel, long position, boolean streaming, ParallelFile parallel) {
+        this.path = path;
+        this.channel = channel;
+        this.position = position;
+        this.streaming = streaming;
+        this.parallel = parallel;
+        this.journal = null;
+        this.startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * @return target path, it identifies the download for the user interface
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return true if the server pushes the whole file, false if every part is requested by "DOWNLOAD_READY"
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Writes received part at the current position by positional write
+     * @param buffer - received part
+     * @throws IOException if file writing error
+     */
+    public void write(ByteBuf buffer) throws IOException {
+        int read = buffer.readableBytes();
+        ByteBuffer written = buffer.nioBuffer();
+        while (buffer.isReadable()) {
+            position += buffer.readBytes(channel, position, buffer.readableBytes());
+        }
+        if (journal != null) {
+            journal.update(written);
+        }
+        chunks++;
+        bytes += read;
+    }
+
+    /**
+     * Sets the offset the server continues the resumable download from
+     * @param offset - offset accepted by the server, zero if the source file does not match the part file
+     * @throws IOException if part file truncating error
+     */
+    public void resume(long offset) throws IOException {
+        if (offset != journal.getOffset()) {
+            journal.reset();
+        }
+        position = journal.getOffset();
+    }
+
+    /**
+     * @return true if other range of the parallel download failed
+     */
+    public boolean isFailed() {
+        return parallel != null && parallel.isFailed();
+    }
+
+    public int getChunks() {
+        return chunks;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getElapsedMillis() {
+        return System.currentTimeMillis() - startTime;
+    }
+
+    /**
+     * Closes the target file when the download is done
+     * @return true if the whole file is downloaded, false if ranges of the parallel download remain
+     * @throws IOException if closing or moving error
+     */
+    public boolean finish() throws IOException {
+        if (journal != null) {
+            journal.complete();
+            return true;
+        }
+        if (parallel == null) {
+            channel.close();
+            return true;
+        }
+        return parallel.rangeDone();
+    }
+
+    /**
+     * Closes the target file when the download failed
+     * @return true if the failure must be reported, false if it is reported by other range of the parallel download
+     * @throws IOException if closing error
+     */
+    public boolean fail() throws IOException {
+        if (journal != null) {
+            // The part file is kept to resume the download
+            journal.suspend();
+            return true;
+        }
+        if (parallel == null) {
+            channel.close();
+            return true;
+        }
+        return parallel.fail();
+    }
+}
@@ -0,0 +1,86 @@
+package ru.geekbrains.transfers;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * File transferred by byte ranges over several connections.
+ * The ranges share the FileChannel and use positional reads or writes, so they do not depend on each other.
+ * The channel is closed when the last range is finished or the first range fails.
+ * The downloaded file is written into the part file and moved to the target when the last range is finished.
+ */
+public class ParallelFile {
+    private final FileChannel channel;
+    private final Path partPath;
+    private final Path targetPath;
+    private final AtomicInteger ranges;
+    private final AtomicBoolean failed = new AtomicBoolean();
+
+    /**
+     * Creates the source file of the upload
+     * @param channel - opened file
+     * @param ranges - number of ranges
+     */
+    public ParallelFile(FileChannel channel, int ranges) {
+        this(channel, ranges, null, null);
+    }
+
+    /**
+     * Creates the target file of the download
+     * @param channel - opened part file
+     * @param ranges - number of ranges
+     * @param partPath - part file
+     * @param targetPath - target file
+     */
+    public ParallelFile(FileChannel channel, int ranges, Path partPath, Path targetPath) {
+        this.channel = channel;
+        this.ranges = new AtomicInteger(ranges);
+        this.partPath = partPath;
+        this.targetPath = targetPath;
+    }
+
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Counts finished range, the last one closes the file
+     * @return true if the whole file is transferred
+     * @throws IOException if closing or moving error
+     */
+    public boolean rangeDone() throws IOException {
+        if (ranges.decrementAndGet() > 0 || failed.get()) {
+            return false;
+        }
+        channel.close();
+        if (partPath != null) {
+            Files.move(partPath, targetPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return true;
+    }
+
+    /**
+     * Closes the file after the range failure, the part file is deleted
+     * @return true if it is the first failed range of the file
+     * @throws IOException if closing or deleting error
+     */
+    public boolean fail() throws IOException {
+        if (!failed.compareAndSet(false, true)) {
+            return false;
+        }
+        channel.close();
+        if (partPath != null) {
+            Files.deleteIfExists(partPath);
+        }
+        return true;
+    }
+
+    public boolean isFailed() {
+        return failed.get();
+    }
+}
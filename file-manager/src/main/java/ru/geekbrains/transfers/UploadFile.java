@@ -0,0 +1,242 @@
+package ru.geekbrains.transfers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import ru.geekbrains.codecs.ChunkCompressor;
+import ru.geekbrains.messages.PackageBody;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+/**
+ * State of the file upload: target path, source channel and the uploaded byte range,
+ * chunk credits granted by the server, chunks stored on the server, chunk compressor and transfer statistics
+ */
+public class UploadFile {
+    private final String path;
+    private final FileChannel channel;
+    private final long start;
+    private final long end;
+    // Source file of the parallel upload, null if the whole file is uploaded over one connection
+    private final ParallelFile parallel;
+    private final int window;
+    // Chunks are not compressed until the server accepts the compression
+    private ChunkCompressor compressor;
+    private final long startTime;
+
+    private long position;
+    private int credits;
+    private boolean finished;
+    private int chunks;
+    private long bytes;
+    // Chunks of the range the server copies from its chunk store, they are skipped
+    private BitSet stored = new BitSet();
+    private long skippedBytes;
+    private int skippedChunks;
+
+    public UploadFile(String path, FileChannel channel, int window) throws IOException {
+        this(path, channel, 0, channel.size(), window, null);
+    }
+
+    /**
+     * Creates upload of the byte range
+     * @param path - target path
+     * @param channel - source file
+     * @param position - start of the range
+     * @param end - end of the range, exclusive
+     * @param window - number of chunks in flight
+     * @param parallel - source file shared by the ranges or null
+     */
+    public UploadFile(String path, FileChannel channel, long position, long end, int window, ParallelFile parallel) {
+        this.path = path;
+        this.channel = channel;
+        this.start = position;
+        this.position = position;
+        this.end = end;
+        this.window = window;
+        this.parallel = parallel;
+        this.compressor = new ChunkCompressor(path, false);
+        this.startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * @return target path, it identifies the upload for the user interface
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * @param stored - chunks of the range stored on the server, the server copies them
+     */
+    public void setStored(BitSet stored) {
+        this.stored = stored;
+    }
+
+    /**
+     * Reads next part of the range into the buffer by positional read, the chunks stored on the server are skipped
+     * @param buffer - target buffer
+     * @param length - max number of bytes, the chunk size
+     * @return number of read bytes or -1 if the range read complete
+     * @throws IOException if file reading error
+     */
+    public int read(ByteBuf buffer, int length) throws IOException {
+        while (position < end && stored.get((int) ((position - start) / length))) {
+            long skipped = Math.min(length, end - position);
+            position += skipped;
+            skippedBytes += skipped;
+            skippedChunks++;
+        }
+        int count = (int) Math.min(length, end - position);
+        if (count <= 0) {
+            return -1;
+        }
+        int read = buffer.writeBytes(channel, position, count);
+        if (read > 0) {
+            position += read;
+        }
+        return read;
+    }
+
+    /**
+     * Builds the compressor of the chunks by the answer of the server to the offered compression
+     * @param compression - true if the server accepted the compressed chunks
+     */
+    public void setCompression(boolean compression) {
+        compressor.close();
+        compressor = new ChunkCompressor(path, compression);
+    }
+
+    /**
+     * Creates body of the read chunk, deflated if it shrinks (see ChunkCompressor)
+     * @param alloc - buffer allocator
+     * @param chunk - read bytes, released if replaced by the deflated bytes
+     * @return body of package "UPLOAD"
+     */
+    public PackageBody compress(ByteBufAllocator alloc, ByteBuf chunk) {
+        return compressor.compress(alloc, chunk);
+    }
+
+    /**
+     * Continues the interrupted upload if the bytes confirmed by the server match the source file
+     * @param offset - offset confirmed by the server
+     * @param checksum - CRC32 of the bytes before the offset
+     * @return true if the upload continues from the offset, false if it starts from zero
+     * @throws IOException if file reading error
+     */
+    public boolean resume(long offset, long checksum) throws IOException {
+        if (offset > end || TransferJournal.checksum(channel, offset) != checksum) {
+            return false;
+        }
+        position = offset;
+        return true;
+    }
+
+    /**
+     * Adds chunks granted by the server
+     * @param credits - number of chunks
+     */
+    public void grant(int credits) {
+        this.credits += credits;
+    }
+
+    /**
+     * Takes one credit for sending a chunk
+     * @return true if the chunk can be sent
+     */
+    public boolean tryAcquire() {
+        if (finished || credits == 0) {
+            return false;
+        }
+        credits--;
+        return true;
+    }
+
+    public void chunkSent(int read) {
+        chunks++;
+        bytes += read;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public void setFinished() {
+        finished = true;
+    }
+
+    /**
+     * @return true if other range of the parallel upload failed
+     */
+    public boolean isFailed() {
+        return parallel != null && parallel.isFailed();
+    }
+
+    public int getChunks() {
+        return chunks;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return number of the bytes copied by the server from its chunk store
+     */
+    public long getSkippedBytes() {
+        return skippedBytes;
+    }
+
+    /**
+     * @return number of the chunks skipped since the previous call
+     */
+    public int takeSkippedChunks() {
+        int chunks = skippedChunks;
+        skippedChunks = 0;
+        return chunks;
+    }
+
+    /**
+     * @return ratio of the sent bytes to the bytes of the file
+     */
+    public double getCompressionRatio() {
+        return compressor.getRatio();
+    }
+
+    public long getElapsedMillis() {
+        return System.currentTimeMillis() - startTime;
+    }
+
+    /**
+     * Closes the source file when the upload is done
+     * @return true if the whole file is uploaded, false if ranges of the parallel upload remain
+     * @throws IOException if closing error
+     */
+    public boolean finish() throws IOException {
+        compressor.close();
+        if (parallel == null) {
+            channel.close();
+            return true;
+        }
+        return parallel.rangeDone();
+    }
+
+    /**
+     * Closes the source file when the upload failed
+     * @return true if the failure must be reported, false if it is reported by other range of the parallel upload
+     * @throws IOException if closing error
+     */
+    public boolean fail() throws IOException {
+        compressor.close();
+        if (parallel == null) {
+            channel.close();
+            return true;
+        }
+        return parallel.fail();
+    }
+}
@@ -2,49 +2,126 @@ package ru.geekbrains;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.serialization.ClassResolvers;
-import io.netty.handler.codec.serialization.ObjectDecoder;
-import io.netty.handler.codec.serialization.ObjectEncoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.geekbrains.auth.LoginLimiter;
+import ru.geekbrains.auth.PasswordHasher;
+import ru.geekbrains.auth.SessionTable;
+import ru.geekbrains.catalog.MetadataCatalog;
+import ru.geekbrains.codecs.NetworkPackageDecoder;
+import ru.geekbrains.codecs.NetworkPackageEncoder;
 import ru.geekbrains.configs.ServerConfig;
+import ru.geekbrains.configs.TransportConfig;
 import ru.geekbrains.db.DBConnection;
 import ru.geekbrains.db.MySQLConnection;
+import ru.geekbrains.executors.BlockingExecutorGroup;
+import ru.geekbrains.executors.LongTaskExecutor;
+import ru.geekbrains.executors.RejectedPackageHandler;
+import ru.geekbrains.files.SizeTree;
 import ru.geekbrains.handlers.AuthServerHandler;
+import ru.geekbrains.listings.ListingCache;
+import ru.geekbrains.metrics.Metrics;
+import ru.geekbrains.search.FileNameIndex;
+import ru.geekbrains.transfers.ChunkStore;
+import ru.geekbrains.transfers.PartFileSweeper;
+import ru.geekbrains.transfers.PartFiles;
+import ru.geekbrains.transport.Transport;
+import ru.geekbrains.trash.Trash;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Settings and runs Netty server
+ * Settings and runs Netty server on the transport of TransportConfig (native epoll on Linux or NIO)
  * Adds into server channel pipeline:
- *      - ObjectDecoder for deserialize bytebuf into object
- *      - ObjectEncoder for serialize NetworkPackage object into bytebuf
+ *      - NetworkPackageDecoder for decode binary frame into NetworkPackage
+ *      - NetworkPackageEncoder for encode NetworkPackage into binary frame
  *      - AuthHandler for handles command "AUTH"
+ * AuthHandler and the handlers it adds do blocking file and DB work, they run on BlockingExecutorGroup.
+ * RejectedPackageHandler before AuthHandler releases the packages rejected by the full queues of the group.
+ * Commands walking the file trees run on LongTaskExecutor.
+ * DB connection is the pool shared by all AuthHandlers.
+ * Server metrics are logged every ServerConfig.METRICS_INTERVAL seconds.
  */
 public class ServerService {
     private static final Logger LOGGER = LoggerFactory.getLogger(ServerService.class);
 
     public ServerService() {
-        EventLoopGroup authGroup = new NioEventLoopGroup(1);
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
+        Transport transport = Transport.select();
+        EventLoopGroup authGroup = transport.newEventLoopGroup(transport.getAcceptors());
+        EventLoopGroup workerGroup = transport.newEventLoopGroup(TransportConfig.WORKERS);
+        BlockingExecutorGroup blockingGroup = BlockingExecutorGroup.create();
+        Metrics metrics = new Metrics();
+        // Copies, moves and searches off the blocking executors
+        LongTaskExecutor longTasks = new LongTaskExecutor();
+        // Password hashing of the logins off the blocking executors
+        PasswordHasher passwordHasher = new PasswordHasher();
+        // Failed logins by login and address, refused before the hashing
+        LoginLimiter loginLimiter = new LoginLimiter();
+        // Sessions of the logins resumed by the reconnected clients
+        SessionTable sessionTable = new SessionTable();
+        // Part files of the range uploads shared by all connections
+        PartFiles partFiles = new PartFiles();
+        // Metadata of the directories kept between the server starts
+        MetadataCatalog catalog = newCatalog();
+        // Directory listings shared by all connections
+        ListingCache listingCache = new ListingCache(catalog);
+        // Filename indexes of the home directories for the search
+        FileNameIndex fileNameIndex = new FileNameIndex(catalog);
+        // Stored files and chunks of the deduplicated uploads
+        ChunkStore chunkStore = new ChunkStore(Paths.get(ServerConfig.CHUNK_STORE_DIRECTORY));
+        // Removed files deleted in the background
+        Trash trash = newTrash();
+        // Sizes of the directories and quotas of the home directories
+        SizeTree sizeTree = new SizeTree();
+        // Part files and journals of the interrupted uploads deleted after their expiry
+        PartFileSweeper partFileSweeper = new PartFileSweeper(
+                Paths.get(ServerConfig.ROOT_DIRECTORY), partFiles, sizeTree);
+
+        blockingGroup.registerMetrics(metrics);
+        longTasks.registerMetrics(metrics);
+        passwordHasher.registerMetrics(metrics);
+        loginLimiter.registerMetrics(metrics);
+        metrics.gauge("listings.hits", listingCache::getHits);
+        metrics.gauge("listings.misses", listingCache::getMisses);
+        metrics.gauge("catalog.hits", catalog::getHits);
+        metrics.gauge("catalog.misses", catalog::getMisses);
+        metrics.gauge("catalog.directories", catalog::getDirectories);
+        metrics.gauge("catalog.records", catalog::getRecords);
+        metrics.gauge("sessions", sessionTable::size);
+        metrics.gauge("trash.pending", trash::getPending);
+        metrics.gauge("trash.deleted", trash::getDeleted);
+        metrics.gauge("trash.failed", trash::getFailed);
+        workerGroup.scheduleAtFixedRate(metrics::report,
+                ServerConfig.METRICS_INTERVAL, ServerConfig.METRICS_INTERVAL, TimeUnit.SECONDS);
+        chunkStore.start();
+        partFileSweeper.start();
+        catalog.start(listingCache::invalidate);
+        blockingGroup.scheduleAtFixedRate(loginLimiter::removeExpired,
+                ServerConfig.AUTH_LIMIT_WINDOW, ServerConfig.AUTH_LIMIT_WINDOW, TimeUnit.MILLISECONDS);
+        blockingGroup.scheduleAtFixedRate(sessionTable::removeExpired,
+                ServerConfig.SESSION_TTL, ServerConfig.SESSION_TTL, TimeUnit.SECONDS);
 
         try (DBConnection dbConnection = new MySQLConnection()) {
             LOGGER.info("DB connected");
+            dbConnection.registerMetrics(metrics);
 
-            ServerBootstrap b = new ServerBootstrap();
-            b.group(authGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
-                    .childHandler(new ChannelInitializer<SocketChannel>() {
+            ServerBootstrap b = transport.newServerBootstrap(authGroup, workerGroup);
+            b.childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel socketChannel) throws Exception {
                             ChannelPipeline pipeline = socketChannel.pipeline();
-                            pipeline.addLast("ObjectDecoder", new ObjectDecoder(
-                                            ClassResolvers.weakCachingConcurrentResolver(this.getClass().getClassLoader())));
-                            pipeline.addLast("ObjectEncoder", new ObjectEncoder());
-                            pipeline.addLast("AuthHandler", new AuthServerHandler(dbConnection));
+                            pipeline.addLast("PackageDecoder", new NetworkPackageDecoder(ServerConfig.MAX_FRAME_SIZE));
+                            pipeline.addLast("PackageEncoder", new NetworkPackageEncoder());
+                            pipeline.addLast("RejectedHandler", RejectedPackageHandler.INSTANCE);
+                            pipeline.addLast(blockingGroup, "AuthHandler", new AuthServerHandler(
+                                    Paths.get(ServerConfig.ROOT_DIRECTORY), dbConnection, passwordHasher, loginLimiter,
+                                    sessionTable, partFiles, listingCache, fileNameIndex, chunkStore, trash, sizeTree,
+                                    catalog, longTasks));
                         }
 
                         @Override
@@ -53,10 +130,12 @@ public class ServerService {
                         }
                     });
 
-            ChannelFuture f = b.bind(ServerConfig.SERVER_PORT).sync();
-            LOGGER.info("Server started");
+            List<Channel> channels = transport.bind(b, ServerConfig.SERVER_PORT);
+            LOGGER.info("Server started: transport {}, {} acceptors", transport, channels.size());
 
-            f.channel().closeFuture().sync();
+            for (Channel channel : channels) {
+                channel.closeFuture().sync();
+            }
         } catch (SQLException e) {
             LOGGER.error("Data base connection error", e);
         } catch (ClassNotFoundException e) {
@@ -66,6 +145,37 @@ public class ServerService {
         } finally {
             authGroup.shutdownGracefully();
             workerGroup.shutdownGracefully();
+            blockingGroup.shutdownGracefully();
+            longTasks.close();
+            passwordHasher.close();
+            listingCache.close();
+            fileNameIndex.close();
+            trash.close();
+            chunkStore.close();
+            partFileSweeper.close();
+            catalog.close();
+        }
+    }
+
+    private static MetadataCatalog newCatalog() {
+        try {
+            return new MetadataCatalog(Paths.get(ServerConfig.CATALOG_FILE));
+        } catch (IOException e) {
+            throw new RuntimeException("Metadata catalog opening error", e);
+        }
+    }
+
+    private static Trash newTrash() {
+        try {
+            return new Trash(Paths.get(ServerConfig.TRASH_DIRECTORY), (entry, files, failed, done) -> {
+                if (done) {
+                    LOGGER.info("Trash entry {} deleted: {} files, {} failed", entry, files, failed);
+                } else {
+                    LOGGER.debug("Trash entry {}: {} files deleted", entry, files);
+                }
+            });
+        } catch (IOException e) {
+            throw new RuntimeException("Trash opening error", e);
         }
     }
 }
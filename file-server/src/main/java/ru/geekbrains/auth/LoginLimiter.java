@@ -0,0 +1,183 @@
+package ru.geekbrains.auth;
+
+import ru.geekbrains.configs.ServerConfig;
+import ru.geekbrains.metrics.Metrics;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Protects the password hashing and the DB from the repeated failed logins.
+ * Failed logins are counted in the sliding window of ServerConfig.AUTH_LIMIT_WINDOW per login and per remote
+ * address, the login or address with ServerConfig.AUTH_LIMIT_FAILURES or ServerConfig.AUTH_LIMIT_ADDRESS_FAILURES
+ * failures in the window is blocked until the oldest of them leaves the window.
+ * Failed credentials are remembered for ServerConfig.AUTH_FAILURE_CACHE_TTL by their SHA-256, so the same
+ * bad password fails at once. Allowed, blocked and cached logins are registered in Metrics.
+ */
+public class LoginLimiter {
+    private final Map<String, Deque<Long>> loginFailures = new ConcurrentHashMap<>();
+    private final Map<String, Deque<Long>> addressFailures = new ConcurrentHashMap<>();
+    // Expiry time of the failed credentials by their hash
+    private final Map<String, Long> failedCredentials = new ConcurrentHashMap<>();
+    private final LongAdder allowed = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+    private final LongAdder cached = new LongAdder();
+    // Current time in milliseconds
+    private final LongSupplier clock;
+
+    /**
+     * Decision of the login
+     */
+    public enum Decision {
+        // Password is hashed and checked in the DB
+        ALLOW,
+        // Too many failed logins of the login or the address
+        BLOCK,
+        // Credentials have failed recently
+        FAILED
+    }
+
+    public LoginLimiter() {
+        this(System::currentTimeMillis);
+    }
+
+    /**
+     * @param clock - current time in milliseconds
+     */
+    LoginLimiter(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Decides if the login is checked
+     * @param login - client login
+     * @param password - client password
+     * @param address - remote address of the client
+     * @return decision of the login
+     */
+    public Decision check(String login, String password, String address) {
+        long now = clock.getAsLong();
+        if (count(loginFailures, login, now) >= ServerConfig.AUTH_LIMIT_FAILURES
+                || count(addressFailures, address, now) >= ServerConfig.AUTH_LIMIT_ADDRESS_FAILURES) {
+            blocked.increment();
+            return Decision.BLOCK;
+        }
+        Long expires = failedCredentials.get(credentials(login, password));
+        if (expires != null && expires > now) {
+            cached.increment();
+            return Decision.FAILED;
+        }
+        allowed.increment();
+        return Decision.ALLOW;
+    }
+
+    /**
+     * Counts the failed login and remembers its credentials
+     * @param login - client login
+     * @param password - client password
+     * @param address - remote address of the client
+     */
+    public void failed(String login, String password, String address) {
+        long now = clock.getAsLong();
+        add(loginFailures, login, now, ServerConfig.AUTH_LIMIT_FAILURES);
+        add(addressFailures, address, now, ServerConfig.AUTH_LIMIT_ADDRESS_FAILURES);
+        failedCredentials.put(credentials(login, password), now + ServerConfig.AUTH_FAILURE_CACHE_TTL);
+    }
+
+    /**
+     * Forgets the failures of the login after the successful login
+     * @param login - client login
+     */
+    public void succeeded(String login) {
+        loginFailures.remove(login);
+    }
+
+    /**
+     * Removes the windows without the failures and the expired credentials
+     */
+    public void removeExpired() {
+        long now = clock.getAsLong();
+        removeEmpty(loginFailures, now);
+        removeEmpty(addressFailures, now);
+        failedCredentials.values().removeIf(expires -> expires <= now);
+    }
+
+    /**
+     * Registers allowed, blocked and cached logins in the metrics
+     * @param metrics - metrics of the server
+     */
+    public void registerMetrics(Metrics metrics) {
+        metrics.gauge("auth.allowed", allowed::sum);
+        metrics.gauge("auth.blocked", blocked::sum);
+        metrics.gauge("auth.cachedFailures", cached::sum);
+    }
+
+    /**
+     * Returns the number of the failures in the window of the key
+     */
+    private static int count(Map<String, Deque<Long>> failures, String key, long now) {
+        Deque<Long> window = failures.get(key);
+        return window == null ? 0 : trim(window, now);
+    }
+
+    /**
+     * Removes the failures before the window
+     * @return number of the failures in the window
+     */
+    private static int trim(Deque<Long> window, long now) {
+        synchronized (window) {
+            while (!window.isEmpty() && window.peekFirst() <= now - ServerConfig.AUTH_LIMIT_WINDOW) {
+                window.pollFirst();
+            }
+            return window.size();
+        }
+    }
+
+    /**
+     * Adds the failure into the window, keeps the last failures of the limit only
+     */
+    private static void add(Map<String, Deque<Long>> failures, String key, long now, int limit) {
+        failures.compute(key, (k, window) -> {
+            Deque<Long> failed = window != null ? window : new ArrayDeque<>();
+            synchronized (failed) {
+                failed.addLast(now);
+                if (failed.size() > limit) {
+                    failed.pollFirst();
+                }
+            }
+            return failed;
+        });
+    }
+
+    /**
+     * Removes the windows without the failures
+     */
+    private static void removeEmpty(Map<String, Deque<Long>> failures, long now) {
+        for (String key : failures.keySet()) {
+            failures.computeIfPresent(key, (k, window) -> trim(window, now) == 0 ? null : window);
+        }
+    }
+
+    /**
+     * @return SHA-256 of the login and password, the password itself is not kept
+     */
+    private static String credentials(String login, String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(login.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(password.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 is not supported", e);
+        }
+    }
+}
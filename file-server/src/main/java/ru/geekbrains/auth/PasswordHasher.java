@@ -0,0 +1,110 @@
+package ru.geekbrains.auth;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.geekbrains.configs.ServerConfig;
+import ru.geekbrains.metrics.LatencyRecorder;
+import ru.geekbrains.metrics.Metrics;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hashes the passwords of the logins by PBKDF2 on the executor of ServerConfig.AUTH_HASH_THREADS threads,
+ * so the bursts of the logins do not occupy the threads of the file transfers.
+ * At most ServerConfig.AUTH_HASH_QUEUE passwords wait for the hashing, the passwords over the limit are rejected
+ * at once. Wait time, hash time and rejected passwords are registered in Metrics.
+ */
+public class PasswordHasher implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PasswordHasher.class);
+
+    // Hash password settings
+    private static final byte[] SALT_BYTES = "AlojmqKr0j4l0CwR2D7Kf6dITc7GlABX".getBytes();
+    private static final int ITERATIONS = 10000;
+    private static final int KEY_LENGTH = 512;
+
+    // Key factory of the hashing thread
+    private static final ThreadLocal<SecretKeyFactory> KEY_FACTORY = ThreadLocal.withInitial(() -> {
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA512");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("PBKDF2 is not supported", e);
+        }
+    });
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            ServerConfig.AUTH_HASH_THREADS, ServerConfig.AUTH_HASH_THREADS, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(ServerConfig.AUTH_HASH_QUEUE), new DefaultThreadFactory("password-hasher", true));
+    private final LatencyRecorder waitTime = new LatencyRecorder();
+    private final LatencyRecorder hashTime = new LatencyRecorder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Queues the password for the hashing
+     * @param password - client password string
+     * @return future of the hashed client password string
+     * @throws RejectedExecutionException if the queue is full
+     */
+    public CompletableFuture<String> hash(String password) {
+        long queued = System.nanoTime();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                long start = System.nanoTime();
+                waitTime.record(start - queued);
+                String hash = hashPassword(password);
+                hashTime.record(System.nanoTime() - start);
+                return hash;
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw e;
+        }
+    }
+
+    /**
+     * Hashes the password using a PBKDF2 algorithm
+     * @param password - client password string
+     * @return hashed client password string
+     */
+    private static String hashPassword(String password) {
+        char[] passwordChars = password.toCharArray();
+        byte[] result = new byte[0];
+        try {
+            PBEKeySpec spec = new PBEKeySpec(passwordChars, SALT_BYTES, ITERATIONS, KEY_LENGTH);
+            result = KEY_FACTORY.get().generateSecret(spec).getEncoded();
+            spec.clearPassword();
+        } catch (InvalidKeySpecException | RuntimeException e) {
+            LOGGER.warn("Hashing password error", e);
+        }
+        return Hex.encodeHexString(result);
+    }
+
+    /**
+     * Registers queue depth, wait time, hash time and rejected passwords in the metrics
+     * @param metrics - metrics of the server
+     */
+    public void registerMetrics(Metrics metrics) {
+        metrics.gauge("auth.queueDepth", () -> executor.getQueue().size());
+        metrics.gauge("auth.waitAvgMicros", waitTime::getAverageMicros);
+        metrics.gauge("auth.waitMaxMicros", waitTime::getAndResetMaxMicros);
+        metrics.gauge("auth.hashAvgMicros", hashTime::getAverageMicros);
+        metrics.gauge("auth.hashMaxMicros", hashTime::getAndResetMaxMicros);
+        metrics.gauge("auth.hashes", hashTime::getCount);
+        metrics.gauge("auth.rejected", rejected::sum);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
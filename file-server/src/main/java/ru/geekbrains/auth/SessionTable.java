@@ -0,0 +1,161 @@
+package ru.geekbrains.auth;
+
+import ru.geekbrains.configs.ServerConfig;
+import ru.geekbrains.entities.FileServerClient;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sessions of the authenticated clients, so the reconnected client is authenticated by its session token
+ * without the password hashing and the DB query.
+ * The token is the random session ID and the expiry time signed by HMAC-SHA256 with the key generated
+ * at the server start, the tokens are valid until ServerConfig.SESSION_TTL passes or the server is restarted.
+ * The session keeps the client and its current directory, every resumed connection gets its own client object
+ * with the directory recorded by the connections of the session.
+ */
+public class SessionTable {
+    private static final int ID_SIZE = 16;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private final SecureRandom random = new SecureRandom();
+    private final SecretKeySpec key;
+    // Mac of the handler thread
+    private final ThreadLocal<Mac> mac;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    private static class Session {
+        private final FileServerClient client;
+        private final long expires;
+        private volatile Path currentPath;
+
+        private Session(FileServerClient client, long expires) {
+            this.client = client;
+            this.expires = expires;
+            this.currentPath = client.getCurrentPath();
+        }
+    }
+
+    public SessionTable() {
+        byte[] keyBytes = new byte[32];
+        random.nextBytes(keyBytes);
+        key = new SecretKeySpec(keyBytes, MAC_ALGORITHM);
+        mac = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(MAC_ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException("HMAC is not supported", e);
+            }
+        });
+    }
+
+    /**
+     * Opens the session of the authenticated client
+     * @param client - authenticated client
+     * @return session token
+     */
+    public String open(FileServerClient client) {
+        byte[] id = new byte[ID_SIZE];
+        random.nextBytes(id);
+        long expires = System.currentTimeMillis() + ServerConfig.SESSION_TTL * 1000L;
+        byte[] payload = ByteBuffer.allocate(ID_SIZE + Long.BYTES).put(id).putLong(expires).array();
+        sessions.put(Base64.getEncoder().encodeToString(id), new Session(client, expires));
+
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString(payload) + "." + encoder.encodeToString(mac.get().doFinal(payload));
+    }
+
+    /**
+     * Returns the new client object of the session if the token is valid and not expired
+     * @param token - session token, may be null
+     * @return client with the current directory of the session or empty Optional if the token is invalid
+     * or the session expired
+     */
+    public Optional<FileServerClient> resume(String token) {
+        String id = sessionId(token);
+        Session session = id != null ? sessions.get(id) : null;
+        if (session == null) {
+            return Optional.empty();
+        }
+        FileServerClient client = new FileServerClient(session.client);
+        client.setCurrentPath(session.currentPath);
+        return Optional.of(client);
+    }
+
+    /**
+     * Records the current directory of the client in its session, so the resumed connection continues from it
+     * @param token - session token
+     * @param currentPath - current directory of the client
+     */
+    public void setCurrentPath(String token, Path currentPath) {
+        String id = sessionId(token);
+        Session session = id != null ? sessions.get(id) : null;
+        if (session != null) {
+            session.currentPath = currentPath;
+        }
+    }
+
+    /**
+     * Closes the session at the logout, its token can not be resumed
+     * @param token - session token
+     */
+    public void close(String token) {
+        String id = sessionId(token);
+        if (id != null) {
+            sessions.remove(id);
+        }
+    }
+
+    /**
+     * Verifies the token
+     * @param token - session token, may be null
+     * @return session ID or null if the token is invalid or expired
+     */
+    private String sessionId(String token) {
+        if (token == null) {
+            return null;
+        }
+        int dot = token.indexOf('.');
+        byte[] payload;
+        byte[] signature;
+        try {
+            payload = Base64.getUrlDecoder().decode(token.substring(0, Math.max(dot, 0)));
+            signature = Base64.getUrlDecoder().decode(token.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (payload.length != ID_SIZE + Long.BYTES || !MessageDigest.isEqual(mac.get().doFinal(payload), signature)) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        byte[] id = new byte[ID_SIZE];
+        buffer.get(id);
+        if (buffer.getLong() < System.currentTimeMillis()) {
+            return null;
+        }
+        return Base64.getEncoder().encodeToString(id);
+    }
+
+    /**
+     * Removes the expired sessions
+     */
+    public void removeExpired() {
+        long now = System.currentTimeMillis();
+        sessions.values().removeIf(session -> session.expires < now);
+    }
+
+    public long size() {
+        return sessions.size();
+    }
+}
@@ -0,0 +1,599 @@
+package ru.geekbrains.catalog;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.geekbrains.configs.ServerConfig;
+import ru.geekbrains.listings.DirectoryLister;
+import ru.geekbrains.messages.FileView;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Metadata of the directories below the root directory (ServerConfig.ROOT_DIRECTORY) kept in the append-only file
+ * ServerConfig.CATALOG_FILE and loaded at the server start, so the first listings after the restart
+ * do not read the attributes of every entry from the disk.
+ * A directory is listed from the catalog while its modification time is the one recorded with its entries,
+ * otherwise it is read from the disk and recorded again. The server commands adding and removing files
+ * record their changes, the catalog is compacted in the background when it has ServerConfig.CATALOG_COMPACT_RECORDS
+ * replaced records and reconciled with the disk by the background walk at the start and every
+ * ServerConfig.CATALOG_RECONCILE_INTERVAL seconds, the walk also records the directories not listed yet.
+ * Records are not synced to the disk, the records lost by the crash are restored by the reconciliation.
+ * Directories are kept relative to the root directory.
+ */
+public class MetadataCatalog implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetadataCatalog.class);
+    private static final int MAGIC = 0x43464d43;
+    private static final int VERSION = 1;
+    // Record types
+    private static final byte DIRECTORY = 1;
+    private static final byte PUT = 2;
+    private static final byte REMOVE = 3;
+    // Smallest entry of the directory record: empty filename, directory flag, size and two times
+    private static final int MIN_ENTRY_SIZE = 2 + 1 + 3 * Long.BYTES;
+    // Modification time of the REMOVE record not changing the parent directory
+    private static final long UNCHANGED = -1;
+    // Directory not recorded yet
+    private static final Directory UNKNOWN = Directory.of(UNCHANGED, Collections.emptyList());
+
+    private final Path file;
+    // Root directory as the server commands resolve it and its absolute path
+    private final Path root;
+    private final Path absoluteRoot;
+    // Directories are replaced, not modified, so they are read without the lock
+    private final Map<Path, Directory> directories = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "metadata-catalog");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    // Output of the records and number of the records in the file, guarded by this
+    private DataOutputStream out;
+    private long records;
+    private boolean compacting;
+
+    /**
+     * Entries of the directory and its modification time when they were read
+     */
+    private static class Directory {
+        private final long modified;
+        private final Map<String, FileView> entries;
+
+        private Directory(long modified, Map<String, FileView> entries) {
+            this.modified = modified;
+            this.entries = entries;
+        }
+
+        private static Directory of(long modified, List<FileView> views) {
+            Map<String, FileView> entries = new LinkedHashMap<>();
+            for (FileView view : views) {
+                entries.put(view.getFilename(), view);
+            }
+            return new Directory(modified, entries);
+        }
+    }
+
+    /**
+     * Loads the catalog file of the directories below ServerConfig.ROOT_DIRECTORY
+     * @param file - catalog file
+     * @throws IOException if reading or writing error
+     */
+    public MetadataCatalog(Path file) throws IOException {
+        this(file, Paths.get(ServerConfig.ROOT_DIRECTORY));
+    }
+
+    /**
+     * Loads the catalog file, the damaged tail of the file is dropped by the compaction
+     * @param file - catalog file
+     * @param root - root directory as the server commands resolve it
+     * @throws IOException if reading or writing error
+     */
+    public MetadataCatalog(Path file, Path root) throws IOException {
+        this.file = file;
+        this.root = root;
+        this.absoluteRoot = root.toAbsolutePath().normalize();
+        long start = System.currentTimeMillis();
+        boolean complete = load();
+        LOGGER.info("Metadata catalog loaded: {} directories, {} records, {} ms",
+                directories.size(), records, System.currentTimeMillis() - start);
+        if (!complete || records - directories.size() >= ServerConfig.CATALOG_COMPACT_RECORDS) {
+            compact();
+        } else {
+            out = open(file, true);
+        }
+    }
+
+    /**
+     * Starts the background reconciliation with the disk
+     * @param onChanged - callback of the directories changed outside the server
+     */
+    public void start(Consumer<Path> onChanged) {
+        executor.scheduleWithFixedDelay(() -> reconcile(onChanged),
+                0, ServerConfig.CATALOG_RECONCILE_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns FileView objects of all files (and directories) in the directory, from the catalog if the directory
+     * is not changed since it was recorded
+     * @param dir - directory
+     * @return list of the objects FileView
+     * @throws IOException if directory reading error
+     */
+    public List<FileView> list(Path dir) throws IOException {
+        Path key = key(dir);
+        if (key == null) {
+            return DirectoryLister.list(dir);
+        }
+        long modified = modified(dir);
+        Directory directory = directories.get(key);
+        if (directory != null && directory.modified == modified) {
+            hits.increment();
+            return new ArrayList<>(directory.entries.values());
+        }
+        misses.increment();
+        List<FileView> views = DirectoryLister.list(dir);
+        replace(key, directory, Directory.of(modified, views));
+        return views;
+    }
+
+    /**
+     * Records the created or replaced file or directory in its recorded parent directory
+     * @param path - created path
+     */
+    public synchronized void added(Path path) {
+        Path key = key(path.getParent());
+        Directory directory = key != null ? directories.get(key) : null;
+        if (directory == null) {
+            return;
+        }
+        try {
+            FileView view = new FileView(path, Files.readAttributes(path, BasicFileAttributes.class));
+            long modified = modified(path.getParent());
+            Map<String, FileView> entries = new LinkedHashMap<>(directory.entries);
+            entries.put(view.getFilename(), view);
+            directories.put(key, new Directory(modified, entries));
+            write(PUT, key, modified);
+            writeView(out, view);
+            flush();
+        } catch (IOException e) {
+            LOGGER.warn("Catalog error of " + path, e);
+            directories.remove(key);
+        }
+    }
+
+    /**
+     * Records the deleted or moved file or directory, the directory is removed with all its subdirectories
+     * @param path - removed path
+     */
+    public synchronized void removed(Path path) {
+        Path key = key(path);
+        if (key == null || key.getParent() == null) {
+            return;
+        }
+        Path parentKey = key.getParent();
+        Directory directory = directories.get(parentKey);
+        if (directory == null && directories.keySet().stream().noneMatch(dir -> dir.startsWith(key))) {
+            return;
+        }
+        try {
+            long modified = directory != null ? modified(path.getParent()) : UNCHANGED;
+            forget(parentKey, key.getFileName().toString(), modified);
+        } catch (IOException e) {
+            LOGGER.warn("Catalog error of " + path, e);
+            directories.remove(parentKey);
+        }
+    }
+
+    /**
+     * Removes the directory with all its subdirectories and records it
+     * @param parentKey - relative parent directory
+     * @param name - name of the removed entry
+     * @param modified - modification time of the parent directory or UNCHANGED
+     */
+    private synchronized void forget(Path parentKey, String name, long modified) {
+        try {
+            removeTree(parentKey, name, modified);
+            write(REMOVE, parentKey, modified);
+            out.writeUTF(name);
+            flush();
+        } catch (IOException e) {
+            LOGGER.warn("Catalog error of " + parentKey.resolve(name), e);
+        }
+    }
+
+    /**
+     * Returns the files and directories below the directory if all its subdirectories are recorded
+     * @param dir - directory
+     * @return paths as the server commands resolve them or null if some directory is not recorded
+     */
+    public List<Path> tree(Path dir) {
+        Path key = key(dir);
+        if (key == null) {
+            return null;
+        }
+        List<Path> paths = new ArrayList<>();
+        Deque<Path> pending = new ArrayDeque<>();
+        pending.push(key);
+        while (!pending.isEmpty()) {
+            Path next = pending.pop();
+            Directory directory = directories.get(next);
+            if (directory == null) {
+                return null;
+            }
+            for (FileView view : directory.entries.values()) {
+                Path child = next.resolve(view.getFilename());
+                paths.add(root.resolve(child).normalize());
+                if (view.isDirectory()) {
+                    pending.push(child);
+                }
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * @return number of the directories listed from the catalog
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of the directories read from the disk
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getDirectories() {
+        return directories.size();
+    }
+
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    /**
+     * Returns the directory relative to the root directory
+     * @param dir - directory
+     * @return relative directory or null if the directory is not inside the root directory
+     */
+    private Path key(Path dir) {
+        if (dir == null) {
+            return null;
+        }
+        Path absolute = dir.toAbsolutePath().normalize();
+        return absolute.startsWith(absoluteRoot) ? absoluteRoot.relativize(absolute) : null;
+    }
+
+    private static long modified(Path dir) throws IOException {
+        return Files.getLastModifiedTime(dir).to(TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records the directory if it is not changed since it was read
+     * @param key - relative directory
+     * @param expected - recorded directory before the directory was read
+     * @param directory - read directory
+     * @return false if the directory is changed
+     */
+    private synchronized boolean replace(Path key, Directory expected, Directory directory) {
+        if (directories.get(key) != expected) {
+            return false;
+        }
+        directories.put(key, directory);
+        try {
+            write(DIRECTORY, key, directory.modified);
+            out.writeInt(directory.entries.size());
+            for (FileView view : directory.entries.values()) {
+                writeView(out, view);
+            }
+            flush();
+        } catch (IOException e) {
+            LOGGER.warn("Catalog error of " + key, e);
+        }
+        return true;
+    }
+
+    private void removeTree(Path parentKey, String name, long modified) {
+        Directory directory = directories.get(parentKey);
+        if (directory != null && modified != UNCHANGED) {
+            Map<String, FileView> entries = new LinkedHashMap<>(directory.entries);
+            entries.remove(name);
+            directories.put(parentKey, new Directory(modified, entries));
+        }
+        Path key = parentKey.resolve(name);
+        directories.keySet().removeIf(dir -> dir.startsWith(key));
+    }
+
+    private void write(byte type, Path key, long modified) throws IOException {
+        out.writeByte(type);
+        out.writeUTF(key.toString());
+        out.writeLong(modified);
+    }
+
+    private static void writeView(DataOutputStream out, FileView view) throws IOException {
+        out.writeUTF(view.getFilename());
+        out.writeBoolean(view.isDirectory());
+        out.writeLong(view.getSize());
+        out.writeLong(view.getCreatingMillis());
+        out.writeLong(view.getLastModifiedMillis());
+    }
+
+    private static FileView readView(DataInputStream in, String directory) throws IOException {
+        String filename = in.readUTF();
+        boolean isDirectory = in.readBoolean();
+        long size = in.readLong();
+        long creatingTime = in.readLong();
+        long lastModifiedTime = in.readLong();
+        return new FileView(isDirectory, filename, size, directory, creatingTime, lastModifiedTime);
+    }
+
+    /**
+     * Writes the record to the file and schedules the compaction if the file has too many replaced records
+     */
+    private void flush() throws IOException {
+        out.flush();
+        records++;
+        if (!compacting && records - directories.size() >= ServerConfig.CATALOG_COMPACT_RECORDS) {
+            compacting = true;
+            executor.execute(this::compactQuietly);
+        }
+    }
+
+    /**
+     * Replays the records of the file. The records before the damaged or truncated one are kept,
+     * so the torn tail left by the crash does not stop the server.
+     * @return false if the file is damaged
+     */
+    private boolean load() {
+        if (!Files.exists(file)) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                LOGGER.warn("Metadata catalog {} has unknown format, it is rebuilt", file);
+                return false;
+            }
+            long size = Files.size(file);
+            while (readRecord(in, size)) {
+                records++;
+            }
+            return true;
+        } catch (EOFException e) {
+            LOGGER.warn("Metadata catalog {} is truncated, {} records are loaded", file, records);
+            return false;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Metadata catalog {} is damaged, {} records are loaded: {}", file, records, e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * @param size - size of the file, it bounds the number of the entries of the directory record
+     * @return false if the end of the file is reached
+     * @throws IOException if the record is truncated or damaged
+     */
+    private boolean readRecord(DataInputStream in, long size) throws IOException {
+        int type = in.read();
+        if (type < 0) {
+            return false;
+        }
+        String dir = in.readUTF();
+        Path key = Paths.get(dir);
+        long modified = in.readLong();
+        if (type == DIRECTORY) {
+            int count = in.readInt();
+            if (count < 0 || count > size / MIN_ENTRY_SIZE) {
+                throw new IOException("Damaged record of " + count + " entries");
+            }
+            List<FileView> views = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                views.add(readView(in, dir));
+            }
+            directories.put(key, Directory.of(modified, views));
+        } else if (type == PUT) {
+            FileView view = readView(in, dir);
+            Directory directory = directories.get(key);
+            if (directory != null) {
+                Map<String, FileView> entries = new LinkedHashMap<>(directory.entries);
+                entries.put(view.getFilename(), view);
+                directories.put(key, new Directory(modified, entries));
+            }
+        } else if (type == REMOVE) {
+            removeTree(key, in.readUTF(), modified);
+        } else {
+            throw new IOException("Unknown record " + type);
+        }
+        return true;
+    }
+
+    private static DataOutputStream open(Path file, boolean append) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file.toFile(), append), 64 * 1024));
+        if (!append || Files.size(file) == 0) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.flush();
+        }
+        return out;
+    }
+
+    /**
+     * Rewrites the file with one record per directory
+     * @throws IOException if writing error
+     */
+    private synchronized void compact() throws IOException {
+        long start = System.currentTimeMillis();
+        Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+        try (DataOutputStream compactOut = open(compacted, false)) {
+            for (Map.Entry<Path, Directory> entry : directories.entrySet()) {
+                Directory directory = entry.getValue();
+                compactOut.writeByte(DIRECTORY);
+                compactOut.writeUTF(entry.getKey().toString());
+                compactOut.writeLong(directory.modified);
+                compactOut.writeInt(directory.entries.size());
+                for (FileView view : directory.entries.values()) {
+                    writeView(compactOut, view);
+                }
+            }
+        }
+        if (out != null) {
+            out.close();
+        }
+        Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        out = open(file, true);
+        records = directories.size();
+        LOGGER.info("Metadata catalog compacted: {} directories, {} ms", records, System.currentTimeMillis() - start);
+    }
+
+    private synchronized void compactQuietly() {
+        try {
+            compact();
+        } catch (IOException e) {
+            LOGGER.warn("Metadata catalog compaction error", e);
+        } finally {
+            compacting = false;
+        }
+    }
+
+    /**
+     * Walks the root directory, records the directories changed outside the server or not recorded yet
+     * and removes the deleted ones
+     * @param onChanged - callback of the changed directories
+     */
+    private void reconcile(Consumer<Path> onChanged) {
+        long start = System.currentTimeMillis();
+        Set<Path> visited = new HashSet<>();
+        int[] changed = new int[1];
+        // Entries of the open directories
+        Deque<List<FileView>> open = new ArrayDeque<>();
+        // Recorded directories before they are read, UNKNOWN if they are not recorded
+        Deque<Directory> recorded = new ArrayDeque<>();
+        Deque<Long> modified = new ArrayDeque<>();
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    // Entries of the root directory are not recorded
+                    if (open.size() > 1) {
+                        open.peek().add(new FileView(dir, attrs));
+                    }
+                    Path key = key(dir);
+                    visited.add(key);
+                    recorded.push(directories.getOrDefault(key, UNKNOWN));
+                    modified.push(attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+                    open.push(new ArrayList<>());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                    if (open.size() > 1) {
+                        open.peek().add(new FileView(path, attrs));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path path, IOException e) {
+                    if (!(e instanceof NoSuchFileException)) {
+                        LOGGER.warn("Catalog error of {}: {}", path, e.getMessage());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+                    List<FileView> views = open.pop();
+                    Directory before = recorded.pop();
+                    long dirModified = modified.pop();
+                    if (e == null && !dir.equals(root) && !same(before, dirModified, views)) {
+                        if (replace(key(dir), before == UNKNOWN ? null : before, Directory.of(dirModified, views))) {
+                            changed[0]++;
+                            onChanged.accept(dir);
+                        }
+                    }
+                    return Thread.currentThread().isInterrupted() ? FileVisitResult.TERMINATE
+                            : FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            LOGGER.warn("Metadata catalog reconciliation error", e);
+            return;
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            return;
+        }
+        for (Path key : new ArrayList<>(directories.keySet())) {
+            if (!visited.contains(key) && key.getParent() != null && directories.containsKey(key)
+                    && !Files.isDirectory(root.resolve(key))) {
+                forget(key.getParent(), key.getFileName().toString(), UNCHANGED);
+            }
+        }
+        LOGGER.info("Metadata catalog reconciled: {} directories, {} changed, {} ms",
+                visited.size(), changed[0], System.currentTimeMillis() - start);
+    }
+
+    /**
+     * @return true if the recorded directory has the same modification time and entries
+     */
+    private static boolean same(Directory directory, long modified, List<FileView> views) {
+        if (directory.modified != modified || directory.entries.size() != views.size()) {
+            return false;
+        }
+        for (FileView view : views) {
+            FileView recorded = directory.entries.get(view.getFilename());
+            if (recorded == null || recorded.isDirectory() != view.isDirectory() || recorded.getSize() != view.getSize()
+                    || recorded.getLastModifiedMillis() != view.getLastModifiedMillis()
+                    || recorded.getCreatingMillis() != view.getCreatingMillis()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops the background work and closes the file
+     */
+    @Override
+    public synchronized void close() {
+        executor.shutdownNow();
+        try {
+            out.close();
+        } catch (IOException e) {
+            LOGGER.warn("Metadata catalog closing error", e);
+        }
+    }
+}
@@ -1,13 +1,35 @@
 package ru.geekbrains.db;
 
 import ru.geekbrains.entities.FileServerClient;
+import ru.geekbrains.metrics.Metrics;
 
 import java.sql.SQLException;
 import java.util.Optional;
 
 /**
- * Interface for interaction of the server application with the DB
+ * Interface for interaction of the server application with the DB.
+ * Implementations are shared by all connections of the server and must be thread-safe.
  */
 public interface DBConnection extends AutoCloseable {
-    Optional<FileServerClient> login(String login, String password) throws SQLException;
+    /**
+     * Finds the client by login and hashed password
+     * @param login - client login
+     * @param passwordHash - hashed client password (see PasswordHasher)
+     * @return client or empty Optional if the login or password is incorrect
+     * @throws SQLException if DB error
+     */
+    Optional<FileServerClient> login(String login, String passwordHash) throws SQLException;
+
+    /**
+     * Registers the gauges of the DB connections
+     * @param metrics - server metrics
+     */
+    default void registerMetrics(Metrics metrics) {
+    }
+
+    /**
+     * Closes the connections to the DB
+     */
+    @Override
+    void close();
 }
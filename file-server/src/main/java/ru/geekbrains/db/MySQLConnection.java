@@ -1,84 +1,89 @@
 package ru.geekbrains.db;
 
-import org.apache.commons.codec.binary.Hex;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import com.zaxxer.hikari.pool.HikariPool;
 import ru.geekbrains.configs.DBConfig;
 import ru.geekbrains.entities.FileServerClient;
+import ru.geekbrains.metrics.Metrics;
 
-import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
-import java.security.NoSuchAlgorithmException;
-import java.security.spec.InvalidKeySpecException;
 import java.sql.*;
 import java.util.Optional;
 
+/**
+ * MySQL access through the pool of DBConfig.POOL_SIZE connections, so the logins of the worker threads
+ * run in parallel. Every query borrows the connection for its duration only.
+ * Connections cache the prepared statements on the server, the pool checks the idle connections
+ * every DBConfig.POOL_KEEPALIVE_TIME and replaces them after DBConfig.POOL_MAX_LIFETIME.
+ */
 public class MySQLConnection implements DBConnection {
-    private static final Logger LOGGER = LoggerFactory.getLogger(MySQLConnection.class);
+    private static final String LOGIN_QUERY = "SELECT nickname, home_directory " +
+            "FROM nfs_client " +
+            "WHERE login = ? AND password = ?;";
 
-    private Connection connection;
-
-    // Hash password settings
-    private byte[] saltBytes = "AlojmqKr0j4l0CwR2D7Kf6dITc7GlABX".getBytes();
-    private int iterations = 10000;
-    private int keyLength = 512;
+    private final HikariDataSource dataSource;
 
     public MySQLConnection() throws ClassNotFoundException, SQLException {
         Class.forName("com.mysql.cj.jdbc.Driver");
-        connection = DriverManager.getConnection(DBConfig.URL, DBConfig.user, DBConfig.password);
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("db");
+        config.setJdbcUrl(DBConfig.URL);
+        config.setUsername(DBConfig.user);
+        config.setPassword(DBConfig.password);
+        config.setMaximumPoolSize(DBConfig.POOL_SIZE);
+        config.setConnectionTimeout(DBConfig.POOL_CONNECTION_TIMEOUT);
+        config.setKeepaliveTime(DBConfig.POOL_KEEPALIVE_TIME);
+        config.setMaxLifetime(DBConfig.POOL_MAX_LIFETIME);
+        config.addDataSourceProperty("cachePrepStmts", "true");
+        config.addDataSourceProperty("useServerPrepStmts", "true");
+        config.addDataSourceProperty("prepStmtCacheSize", String.valueOf(DBConfig.STATEMENT_CACHE_SIZE));
+        config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+        try {
+            dataSource = new HikariDataSource(config);
+        } catch (HikariPool.PoolInitializationException e) {
+            throw new SQLException("Connection pool initialization error", e.getCause());
+        }
     }
 
     @Override
-    public void close() throws Exception {
-        connection.close();
+    public void close() {
+        dataSource.close();
+    }
+
+    @Override
+    public void registerMetrics(Metrics metrics) {
+        HikariPoolMXBean pool = dataSource.getHikariPoolMXBean();
+        metrics.gauge("db.active", pool::getActiveConnections);
+        metrics.gauge("db.idle", pool::getIdleConnections);
+        metrics.gauge("db.waiting", pool::getThreadsAwaitingConnection);
     }
 
     /**
      * Verify login and password
      * @param login - client login
-     * @param password - client password
+     * @param passwordHash - hashed client password (see PasswordHasher)
      * @return Optional<Client> contains login, nickname and homeDirectory
      *      or empty Optional<Client> if client no pass verify
      */
     @Override
-    public Optional<FileServerClient> login(String login, String password) throws SQLException {
-        String secretPassword = hashPassword(password);
+    public Optional<FileServerClient> login(String login, String passwordHash) throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement prStatement = connection.prepareStatement(LOGIN_QUERY)) {
+            prStatement.setString(1, login);
+            prStatement.setString(2, passwordHash);
 
-        PreparedStatement prStatement = connection.prepareStatement("SELECT nickname, home_directory " +
-                "FROM nfs_client " +
-                "WHERE login = ? AND password = ?;");
-        prStatement.setString(1, login);
-        prStatement.setString(2, secretPassword);
+            try (ResultSet result = prStatement.executeQuery()) {
+                Optional<FileServerClient> client = Optional.empty();
 
-        ResultSet result = prStatement.executeQuery();
-        Optional<FileServerClient> client = Optional.empty();
+                if (result.next()) {
+                    String nickname = result.getString("nickname");
+                    String homeDirectory = result.getString("home_directory");
+                    client = Optional.of(new FileServerClient(login, nickname, homeDirectory));
+                }
 
-        if (result.next()) {
-            String nickname = result.getString("nickname");
-            String homeDirectory = result.getString("home_directory");
-            client = Optional.of(new FileServerClient(login, nickname, homeDirectory));
-        }
-
-        return client;
-    }
-
-    /**
-     * Hashes the password using a PBKDF2 algorithm
-     * @param password - client password string
-     * @return hashed client password string
-     */
-    private String hashPassword(String password) {
-        char[] passwordChars = password.toCharArray();
-        byte[] result = new byte[0];
-        try {
-            SecretKeyFactory skf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA512");
-            PBEKeySpec spec = new PBEKeySpec(passwordChars, saltBytes, iterations, keyLength);
-            SecretKey key = skf.generateSecret(spec);
-            result = key.getEncoded();
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
-            LOGGER.warn("Hashing password error", e);
+                return client;
+            }
         }
-        return Hex.encodeHexString(result);
     }
 }
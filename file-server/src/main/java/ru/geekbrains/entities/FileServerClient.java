@@ -10,7 +10,8 @@ public class FileServerClient {
     private String login;
     private String nickname;
     private String homeDirectory;
-    private Path currentPath;
+    // Current directory of the connection, recorded in the session of the client
+    private volatile Path currentPath;
 
     public FileServerClient(String login, String nickname, String homeDirectory) {
         this.login = login;
@@ -19,6 +20,17 @@ public class FileServerClient {
         this.currentPath = Paths.get(homeDirectory);
     }
 
+    /**
+     * Copies the client for the new connection of its session
+     * @param client - client of the session
+     */
+    public FileServerClient(FileServerClient client) {
+        this.login = client.login;
+        this.nickname = client.nickname;
+        this.homeDirectory = client.homeDirectory;
+        this.currentPath = client.currentPath;
+    }
+
     public String getNickname() {
         return nickname;
     }
@@ -0,0 +1,136 @@
+package ru.geekbrains.executors;
+
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.RejectedExecutionHandler;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.geekbrains.configs.ServerConfig;
+import ru.geekbrains.metrics.LatencyRecorder;
+import ru.geekbrains.metrics.Metrics;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Executors of the handlers doing blocking file and DB work, so they do not stall the event loops.
+ * The handlers added with this group run on one executor per channel, so the events of the channel
+ * are handled in order. Every executor queues at most ServerConfig.BLOCKING_MAX_PENDING_TASKS events,
+ * the events over the limit are rejected, RejectedPackageHandler releases the rejected packages.
+ * A long task would stall every channel of its executor, so the commands walking the file trees
+ * run on LongTaskExecutor instead.
+ * If ServerConfig.BLOCKING_VIRTUAL_THREADS is set and the JDK supports virtual threads, the executors run
+ * on virtual threads, so many more of them can be blocked at the same time.
+ * Queue depth, wait time of the events and rejected events are registered in Metrics.
+ */
+public class BlockingExecutorGroup extends DefaultEventExecutorGroup {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BlockingExecutorGroup.class);
+
+    private final LatencyRecorder waitTime = new LatencyRecorder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Executor measuring the time the events wait in its queue
+     */
+    private static class MeteredEventExecutor extends SingleThreadEventExecutor {
+        MeteredEventExecutor(EventExecutorGroup parent, Executor executor, int maxPendingTasks,
+                             RejectedExecutionHandler rejectedHandler) {
+            super(parent, executor, true, maxPendingTasks, rejectedHandler);
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            LatencyRecorder waitTime = ((BlockingExecutorGroup) parent()).waitTime;
+            long queued = System.nanoTime();
+            super.execute(() -> {
+                waitTime.record(System.nanoTime() - queued);
+                task.run();
+            });
+        }
+
+        @Override
+        protected void run() {
+            do {
+                Runnable task = takeTask();
+                if (task != null) {
+                    task.run();
+                    updateLastExecutionTime();
+                }
+            } while (!confirmShutdown());
+        }
+    }
+
+    private BlockingExecutorGroup(int threads, ThreadFactory threadFactory) {
+        super(threads, threadFactory, ServerConfig.BLOCKING_MAX_PENDING_TASKS, (task, executor) -> {
+            ((BlockingExecutorGroup) executor.parent()).rejected.increment();
+            throw new RejectedExecutionException("Blocking executor queue is full");
+        });
+    }
+
+    /**
+     * Creates the group of ServerConfig.BLOCKING_THREADS platform threads
+     * or ServerConfig.BLOCKING_VIRTUAL_THREADS virtual threads
+     * @return executor group
+     */
+    public static BlockingExecutorGroup create() {
+        if (ServerConfig.BLOCKING_VIRTUAL_THREADS > 0) {
+            ThreadFactory factory = virtualThreadFactory();
+            if (factory != null) {
+                LOGGER.info("Blocking handlers run on {} virtual threads", ServerConfig.BLOCKING_VIRTUAL_THREADS);
+                return new BlockingExecutorGroup(ServerConfig.BLOCKING_VIRTUAL_THREADS, factory);
+            }
+            LOGGER.warn("Virtual threads are not supported, blocking handlers run on platform threads");
+        }
+        return new BlockingExecutorGroup(ServerConfig.BLOCKING_THREADS, new DefaultThreadFactory("blocking"));
+    }
+
+    /**
+     * Creates factory of the virtual threads by reflection, so the server still runs on Java 8
+     * @return thread factory or null if virtual threads are not supported
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "blocking-virtual-", 0L);
+            Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    @Override
+    protected EventExecutor newChild(Executor executor, Object... args) {
+        return new MeteredEventExecutor(this, executor, (Integer) args[0], (RejectedExecutionHandler) args[1]);
+    }
+
+    /**
+     * @return number of the events waiting in the queues of all executors
+     */
+    public long getQueueDepth() {
+        long depth = 0;
+        for (EventExecutor executor : this) {
+            depth += ((SingleThreadEventExecutor) executor).pendingTasks();
+        }
+        return depth;
+    }
+
+    /**
+     * Registers queue depth, wait time and rejected events in the metrics
+     * @param metrics - metrics of the server
+     */
+    public void registerMetrics(Metrics metrics) {
+        metrics.gauge("blocking.queueDepth", this::getQueueDepth);
+        metrics.gauge("blocking.waitAvgMicros", waitTime::getAverageMicros);
+        metrics.gauge("blocking.waitMaxMicros", waitTime::getAndResetMaxMicros);
+        metrics.gauge("blocking.events", waitTime::getCount);
+        metrics.gauge("blocking.rejected", rejected::sum);
+    }
+}
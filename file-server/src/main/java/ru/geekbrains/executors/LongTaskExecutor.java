@@ -0,0 +1,77 @@
+package ru.geekbrains.executors;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import ru.geekbrains.configs.ServerConfig;
+import ru.geekbrains.metrics.LatencyRecorder;
+import ru.geekbrains.metrics.Metrics;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the commands walking the file trees (copy, move, search) on ServerConfig.LONG_TASK_THREADS threads,
+ * so they do not stall the other channels of the blocking executor the channel is pinned to.
+ * At most ServerConfig.LONG_TASK_QUEUE tasks wait, the tasks over the limit are rejected at once.
+ * The result of the task is completed on the thread of the task, the handler returns it to its executor.
+ * Wait time, run time and rejected tasks are registered in Metrics.
+ */
+public class LongTaskExecutor implements AutoCloseable {
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            ServerConfig.LONG_TASK_THREADS, ServerConfig.LONG_TASK_THREADS, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(ServerConfig.LONG_TASK_QUEUE), new DefaultThreadFactory("long-task", true));
+    private final LatencyRecorder waitTime = new LatencyRecorder();
+    private final LatencyRecorder runTime = new LatencyRecorder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Queues the task
+     * @param task - task
+     * @return future of the result of the task, completed exceptionally if the task throws
+     * @throws RejectedExecutionException if the queue is full
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        long queued = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                long start = System.nanoTime();
+                waitTime.record(start - queued);
+                try {
+                    future.complete(task.call());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    runTime.record(System.nanoTime() - start);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw e;
+        }
+        return future;
+    }
+
+    /**
+     * Registers queue depth, running tasks, wait time, run time and rejected tasks in the metrics
+     * @param metrics - metrics of the server
+     */
+    public void registerMetrics(Metrics metrics) {
+        metrics.gauge("longTasks.queueDepth", () -> executor.getQueue().size());
+        metrics.gauge("longTasks.running", executor::getActiveCount);
+        metrics.gauge("longTasks.waitAvgMicros", waitTime::getAverageMicros);
+        metrics.gauge("longTasks.waitMaxMicros", waitTime::getAndResetMaxMicros);
+        metrics.gauge("longTasks.runAvgMicros", runTime::getAverageMicros);
+        metrics.gauge("longTasks.runMaxMicros", runTime::getAndResetMaxMicros);
+        metrics.gauge("longTasks.rejected", rejected::sum);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,33 @@
+package ru.geekbrains.executors;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Releases the inbound packages rejected by the full queue of BlockingExecutorGroup.
+ * Must be added on the event loop just before the first handler of the group: the package is passed
+ * to the executor of the next handler in the same call, so the rejection is thrown here and the pooled body
+ * of the package is released instead of being lost with the rejected task.
+ */
+@ChannelHandler.Sharable
+public class RejectedPackageHandler extends ChannelInboundHandlerAdapter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RejectedPackageHandler.class);
+
+    public static final RejectedPackageHandler INSTANCE = new RejectedPackageHandler();
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        try {
+            ctx.fireChannelRead(msg);
+        } catch (RejectedExecutionException e) {
+            ReferenceCountUtil.release(msg);
+            LOGGER.warn("Package of {} dropped: {}", ctx.channel().remoteAddress(), e.getMessage());
+        }
+    }
+}
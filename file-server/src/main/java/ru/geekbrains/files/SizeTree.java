@@ -0,0 +1,275 @@
+package ru.geekbrains.files;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the size trees of the home directories.
+ * The size tree keeps the number of bytes and files below every directory of the home directory, so the size
+ * of the directory is read at once. The tree is built by walking the home directory at its first use and updated
+ * by the server commands adding and removing files, the changes of a file update its parent directories only.
+ * Changes made outside the server are not counted until the server is restarted.
+ * The tree also keeps the bytes reserved by the running uploads for the quota of the home directory.
+ * Paths are kept relative to the working directory, as the server commands resolve them.
+ */
+public class SizeTree {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SizeTree.class);
+
+    private final Map<Path, HomeSizes> homes = new ConcurrentHashMap<>();
+
+    /**
+     * Sizes of the directories of one home directory
+     */
+    private static class HomeSizes {
+        private final Path home;
+        // Bytes and files below the directory
+        private final Map<Path, long[]> directories = new HashMap<>();
+        private long reserved;
+
+        private HomeSizes(Path home) {
+            this.home = home;
+        }
+
+        /**
+         * Walks the tree and adds the sizes of all its directories and files
+         * @param root - file or directory inside the home directory
+         * @return bytes and files of the tree
+         * @throws IOException if directory reading error
+         */
+        synchronized long[] add(Path root) throws IOException {
+            Deque<long[]> open = new ArrayDeque<>();
+            long[] total = new long[2];
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    open.push(new long[2]);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    long[] sizes = open.isEmpty() ? total : open.peek();
+                    sizes[0] += attrs.size();
+                    sizes[1]++;
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    LOGGER.warn("Size error of {}: {}", file, e.getMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+                    long[] sizes = open.pop();
+                    directories.put(dir, sizes);
+                    long[] parent = open.isEmpty() ? total : open.peek();
+                    parent[0] += sizes[0];
+                    parent[1] += sizes[1];
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            if (!root.equals(home)) {
+                addToParents(root, total[0], total[1]);
+            }
+            return total;
+        }
+
+        /**
+         * Removes the directories of the tree and subtracts its size from the parent directories
+         * @param root - file or directory inside the home directory
+         * @param bytes - bytes of the file, used if the root is not a known directory
+         * @param files - 1 for the file, 0 for the directory created outside the server
+         */
+        synchronized void remove(Path root, long bytes, long files) {
+            long[] sizes = directories.get(root);
+            if (sizes != null) {
+                directories.keySet().removeIf(dir -> dir.startsWith(root));
+                addToParents(root, -sizes[0], -sizes[1]);
+            } else {
+                addToParents(root, -bytes, -files);
+            }
+        }
+
+        synchronized void addToParents(Path path, long bytes, long files) {
+            for (Path dir = path.getParent(); dir != null && dir.startsWith(home); dir = dir.getParent()) {
+                long[] sizes = directories.get(dir);
+                if (sizes != null) {
+                    sizes[0] += bytes;
+                    sizes[1] += files;
+                }
+            }
+        }
+
+        synchronized long[] get(Path dir) {
+            return directories.get(dir);
+        }
+
+        synchronized boolean reserve(long bytes, long quota) {
+            long used = directories.get(home)[0];
+            if (quota > 0 && used + reserved + bytes > quota) {
+                return false;
+            }
+            reserved += bytes;
+            return true;
+        }
+
+        synchronized void release(long bytes) {
+            reserved -= bytes;
+        }
+    }
+
+    private HomeSizes home(Path home) throws IOException {
+        Path root = home.normalize();
+        HomeSizes sizes = homes.get(root);
+        return sizes != null ? sizes : build(root);
+    }
+
+    private synchronized HomeSizes build(Path home) throws IOException {
+        HomeSizes sizes = homes.get(home);
+        if (sizes == null) {
+            long start = System.currentTimeMillis();
+            sizes = new HomeSizes(home);
+            long[] total = sizes.add(home);
+            // The home directory not created yet is empty, the uploads create it
+            sizes.directories.putIfAbsent(home, new long[2]);
+            homes.put(home, sizes);
+            LOGGER.info("Size tree of {} built: {} bytes in {} files, {} ms",
+                    home, total[0], total[1], System.currentTimeMillis() - start);
+        }
+        return sizes;
+    }
+
+    private HomeSizes built(Path path) {
+        for (HomeSizes sizes : homes.values()) {
+            if (path.startsWith(sizes.home) && !path.equals(sizes.home)) {
+                return sizes;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the size of the directory of the built size tree
+     * @param dir - directory
+     * @return bytes below the directory or -1 if the size is not known
+     */
+    public long size(Path dir) {
+        Path normalized = dir.normalize();
+        HomeSizes sizes = homes.get(normalized);
+        if (sizes == null) {
+            sizes = built(normalized);
+        }
+        long[] dirSizes = sizes != null ? sizes.get(normalized) : null;
+        return dirSizes != null ? dirSizes[0] : -1L;
+    }
+
+    /**
+     * Returns the bytes and files stored in the home directory, builds its size tree if it is not built yet
+     * @param home - home directory
+     * @return bytes and files
+     * @throws IOException if size tree building error
+     */
+    public long[] used(Path home) throws IOException {
+        HomeSizes sizes = home(home);
+        return sizes.get(sizes.home).clone();
+    }
+
+    /**
+     * Adds the created file or directory with its content into the built size tree of its home directory
+     * @param path - created path
+     */
+    public void added(Path path) {
+        Path normalized = path.normalize();
+        HomeSizes sizes = built(normalized);
+        if (sizes == null) {
+            return;
+        }
+        try {
+            sizes.add(normalized);
+        } catch (IOException e) {
+            LOGGER.warn("Size error of " + normalized, e);
+        }
+    }
+
+    /**
+     * Subtracts the file or directory from the built size tree of its home directory.
+     * Must be called before the path is deleted or moved, the size of the file is read from the disk.
+     * @param path - removed path
+     */
+    public void removed(Path path) {
+        Path normalized = path.normalize();
+        HomeSizes sizes = built(normalized);
+        if (sizes == null) {
+            return;
+        }
+        if (Files.isRegularFile(normalized)) {
+            try {
+                sizes.remove(normalized, Files.size(normalized), 1);
+            } catch (IOException e) {
+                LOGGER.warn("Size error of " + normalized, e);
+            }
+        } else {
+            // The directory created outside the server is not counted
+            sizes.remove(normalized, 0, 0);
+        }
+    }
+
+    /**
+     * Updates the size of the file replaced by the upload
+     * @param file - uploaded file
+     * @param replacedBytes - size of the replaced file or -1 if the file is new
+     */
+    public void replaced(Path file, long replacedBytes) {
+        Path normalized = file.normalize();
+        HomeSizes sizes = built(normalized);
+        if (sizes == null) {
+            return;
+        }
+        if (replacedBytes >= 0) {
+            sizes.remove(normalized, replacedBytes, 1);
+        }
+        try {
+            sizes.add(normalized);
+        } catch (IOException e) {
+            LOGGER.warn("Size error of " + normalized, e);
+        }
+    }
+
+    /**
+     * Reserves the bytes of the upload if the home directory stays within the quota
+     * @param home - home directory
+     * @param bytes - bytes of the upload
+     * @param quota - quota of the home directory in bytes, 0 - unlimited
+     * @return false if the quota is exceeded
+     * @throws IOException if size tree building error
+     */
+    public boolean reserve(Path home, long bytes, long quota) throws IOException {
+        return home(home).reserve(bytes, quota);
+    }
+
+    /**
+     * Releases the bytes reserved by the finished or failed upload
+     * @param home - home directory
+     * @param bytes - reserved bytes
+     */
+    public void release(Path home, long bytes) {
+        HomeSizes sizes = homes.get(home.normalize());
+        if (sizes != null) {
+            sizes.release(bytes);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package ru.geekbrains.files;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.geekbrains.configs.ServerConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies files and directories on the server, the data never leaves the kernel.
+ * Files are copied by FileChannel.transferTo (copy_file_range or sendfile on Linux). If ServerConfig.COPY_REFLINK
+ * is set, the files from ServerConfig.COPY_REFLINK_THRESHOLD bytes are cloned by "cp --reflink=always" on Linux,
+ * so the copy shares the blocks with the source on Btrfs and XFS. The file systems failing the clone
+ * are remembered and not tried again.
+ * Directories are copied depth-first, the progress is reported every ServerConfig.COPY_PROGRESS_BYTES bytes.
+ */
+public class TreeCopier {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TreeCopier.class);
+    private static final boolean LINUX = System.getProperty("os.name").startsWith("Linux");
+    // File systems not supporting the clones
+    private static final Map<FileStore, Boolean> NO_REFLINK = new ConcurrentHashMap<>();
+
+    private final Progress progress;
+    private long total;
+    private long copied;
+    private long reported;
+
+    /**
+     * Progress of the copy
+     */
+    @FunctionalInterface
+    public interface Progress {
+        /**
+         * @param copied - number of the copied bytes
+         * @param total - number of the bytes of all files
+         */
+        void progress(long copied, long total);
+    }
+
+    public TreeCopier(Progress progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * Copies the file or directory with all its content
+     * @param source - source file or directory
+     * @param target - target path, must not exist
+     * @return number of the copied bytes
+     * @throws IOException if the target exists or reading and writing error
+     */
+    public long copy(Path source, Path target) throws IOException {
+        total = size(source);
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectory(target.resolve(source.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                copyFile(file, target.resolve(source.relativize(file)), attrs);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                Path copy = target.resolve(source.relativize(dir));
+                Files.setLastModifiedTime(copy, Files.getLastModifiedTime(dir));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        progress.progress(copied, total);
+        return copied;
+    }
+
+    /**
+     * Walks the file or directory and sums the sizes of its files
+     * @param source - file or directory
+     * @return number of the bytes of all files
+     * @throws IOException if reading error
+     */
+    public static long size(Path source) throws IOException {
+        long[] size = new long[1];
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                size[0] += attrs.size();
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return size[0];
+    }
+
+    private void copyFile(Path source, Path target, BasicFileAttributes attrs) throws IOException {
+        if (!clone(source, target, attrs.size())) {
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                long size = in.size();
+                long position = 0;
+                while (position < size) {
+                    long count = in.transferTo(position,
+                            Math.min(size - position, ServerConfig.COPY_PROGRESS_BYTES), out);
+                    if (count <= 0) {
+                        // The source is truncated while copied
+                        break;
+                    }
+                    position += count;
+                    count(count);
+                }
+            }
+        } else {
+            count(attrs.size());
+        }
+        Files.setLastModifiedTime(target, attrs.lastModifiedTime());
+    }
+
+    /**
+     * Clones the file by "cp --reflink=always" if it is supported
+     * @return true if the file is cloned
+     */
+    private boolean clone(Path source, Path target, long size) throws IOException {
+        if (!ServerConfig.COPY_REFLINK || !LINUX || size < ServerConfig.COPY_REFLINK_THRESHOLD) {
+            return false;
+        }
+        FileStore store = Files.getFileStore(source);
+        if (NO_REFLINK.containsKey(store)) {
+            return false;
+        }
+        Process process = new ProcessBuilder("cp", "--reflink=always", "--", source.toString(), target.toString())
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(new File("/dev/null")))
+                .start();
+        try {
+            if (process.waitFor(ServerConfig.COPY_REFLINK_TIMEOUT, TimeUnit.SECONDS) && process.exitValue() == 0) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            process.destroy();
+        }
+        LOGGER.info("File system {} does not clone files, they are copied", store);
+        NO_REFLINK.put(store, true);
+        Files.deleteIfExists(target);
+        return false;
+    }
+
+    private void count(long bytes) {
+        copied += bytes;
+        if (copied - reported >= ServerConfig.COPY_PROGRESS_BYTES) {
+            reported = copied;
+            progress.progress(copied, total);
+        }
+    }
+}
@@ -3,71 +3,248 @@ package ru.geekbrains.handlers;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelPipeline;
+import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.geekbrains.auth.LoginLimiter;
+import ru.geekbrains.auth.PasswordHasher;
+import ru.geekbrains.auth.SessionTable;
+import ru.geekbrains.catalog.MetadataCatalog;
 import ru.geekbrains.commands.NetworkCommand;
+import ru.geekbrains.configs.ServerConfig;
 import ru.geekbrains.db.DBConnection;
 import ru.geekbrains.entities.FileServerClient;
+import ru.geekbrains.executors.LongTaskExecutor;
+import ru.geekbrains.files.SizeTree;
+import ru.geekbrains.listings.ListingCache;
+import ru.geekbrains.search.FileNameIndex;
 import ru.geekbrains.messages.NetworkPackage;
 import ru.geekbrains.messages.PackageHeader;
+import ru.geekbrains.transfers.ChunkStore;
+import ru.geekbrains.transfers.PartFiles;
+import ru.geekbrains.trash.Trash;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.file.Path;
 import java.sql.SQLException;
 import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Handles command "AUTH". If authentication passed then send package "AUTH_OK" to the client and add into channel pipeline
  * CommandHandler, FileUploadHandler, FileDownloadHandler and remove AuthServerHandler.
+ * The added handlers run on the executor of AuthServerHandler, so the blocking work stays off the event loop
+ * and the packages of the channel are handled in order.
+ * Repeated failed logins are refused by LoginLimiter before the hashing.
+ * The password is hashed by PasswordHasher off the executor of the handler, the login is answered "AUTH_RETRY"
+ * if the hasher is busy. The login opens the session, its token is sent with "AUTH_OK" and the command
+ * "AUTH_RESUME" with the token authenticates the reconnected client at once, the session is closed by "LOGOUT".
+ * The size tree of the home directory of the client is built at the login.
+ * Packages received before the authentication are released, the bodies are not read.
  */
 public class AuthServerHandler extends ChannelInboundHandlerAdapter {
     private static final Logger LOGGER = LoggerFactory.getLogger(AuthServerHandler.class);
 
+    // Root directory (ServerConfig.ROOT_DIRECTORY) passed to the handlers of the authenticated client
+    private Path root;
     private DBConnection connection;
+    private PasswordHasher passwordHasher;
+    private LoginLimiter loginLimiter;
+    private SessionTable sessionTable;
+    private PartFiles partFiles;
+    private ListingCache listingCache;
+    private FileNameIndex fileNameIndex;
+    private ChunkStore chunkStore;
+    private Trash trash;
+    private SizeTree sizeTree;
+    private MetadataCatalog catalog;
+    private LongTaskExecutor longTasks;
     private FileServerClient activeClient;
+    // Token of the session of the authenticated client
+    private String sessionToken;
+    // Password of the login is being hashed
+    private boolean hashing;
 
-    public AuthServerHandler(DBConnection connection) {
+    public AuthServerHandler(Path root, DBConnection connection, PasswordHasher passwordHasher,
+                             LoginLimiter loginLimiter, SessionTable sessionTable, PartFiles partFiles,
+                             ListingCache listingCache, FileNameIndex fileNameIndex, ChunkStore chunkStore, Trash trash,
+                             SizeTree sizeTree, MetadataCatalog catalog, LongTaskExecutor longTasks) {
+        this.root = root;
         this.connection = connection;
+        this.passwordHasher = passwordHasher;
+        this.loginLimiter = loginLimiter;
+        this.sessionTable = sessionTable;
+        this.partFiles = partFiles;
+        this.listingCache = listingCache;
+        this.fileNameIndex = fileNameIndex;
+        this.chunkStore = chunkStore;
+        this.trash = trash;
+        this.sizeTree = sizeTree;
+        this.catalog = catalog;
+        this.longTasks = longTasks;
     }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
         NetworkPackage pack = (NetworkPackage) msg;
         PackageHeader header = pack.getHeader();
-        NetworkPackage reqPack;
+        // Packages are never forwarded before the authentication, only their headers are read
+        ReferenceCountUtil.release(msg);
 
         if (NetworkCommand.AUTH.equals(header.getCommand())) {
-            reqPack = commandAuth(header);
-            ctx.writeAndFlush(reqPack);
-
-            if (NetworkCommand.AUTH_OK.equals(reqPack.getHeader().getCommand())) {
-                ChannelPipeline pipeline = ctx.channel().pipeline();
-                pipeline.addAfter("AuthHandler", "CommandHandler", new CommandServerHandler(activeClient));
-                pipeline.addAfter("AuthHandler", "FileUploadHandler", new FileUploadServerHandler());
-                pipeline.addAfter("AuthHandler", "FileDownloadHandler", new FileDownloadServerHandler());
-                pipeline.remove(this);
+            if (hashing) {
+                ctx.writeAndFlush(retryPackage());
+                return;
+            }
+            String login = header.getParam(1);
+            String password = header.getParam(2);
+            String address = remoteAddress(ctx);
+            LoginLimiter.Decision decision = loginLimiter.check(login, password, address);
+            if (LoginLimiter.Decision.BLOCK.equals(decision)) {
+                LOGGER.debug("Login {} from {} is blocked", login, address);
+                ctx.writeAndFlush(failPackage("Too many failed logins, try again later"));
+                return;
+            } else if (LoginLimiter.Decision.FAILED.equals(decision)) {
+                ctx.writeAndFlush(failPackage("Incorrect login or password"));
+                return;
             }
+            try {
+                passwordHasher.hash(password).whenComplete((passwordHash, e) ->
+                        ctx.executor().execute(() -> {
+                            hashing = false;
+                            if (e != null) {
+                                exceptionCaught(ctx, e);
+                                return;
+                            }
+                            NetworkCommand answer = authenticate(ctx, login, passwordHash);
+                            if (NetworkCommand.AUTH_OK.equals(answer)) {
+                                loginLimiter.succeeded(login);
+                            } else if (NetworkCommand.AUTH_FAIL.equals(answer)) {
+                                loginLimiter.failed(login, password, address);
+                            }
+                        }));
+                hashing = true;
+            } catch (RejectedExecutionException e) {
+                LOGGER.debug("Password hasher is busy, login {} is retried", login);
+                ctx.writeAndFlush(retryPackage());
+            }
+        } else if (NetworkCommand.AUTH_RESUME.equals(header.getCommand()) && !hashing) {
+            authenticated(ctx, commandResume(header));
         } else {
             ctx.flush();
         }
     }
 
     /**
-     * Extracts login and password from header and calls method login from connection
-     * @param header - header of the package
+     * Answers the login with the hashed password
+     * @param ctx - context of the handler
+     * @param login - client login
+     * @param passwordHash - hashed client password
+     * @return command of the answer or null if DB error
+     */
+    private NetworkCommand authenticate(ChannelHandlerContext ctx, String login, String passwordHash) {
+        NetworkPackage reqPack;
+        try {
+            reqPack = commandAuth(login, passwordHash);
+        } catch (SQLException e) {
+            exceptionCaught(ctx, e);
+            return null;
+        }
+        authenticated(ctx, reqPack);
+        return reqPack.getHeader().getCommand();
+    }
+
+    /**
+     * Sends the answer of the login and replaces AuthServerHandler by the handlers of the client
+     * if authentication passed
+     * @param ctx - context of the handler
+     * @param reqPack - package "AUTH_OK" or "AUTH_FAIL"
+     */
+    private void authenticated(ChannelHandlerContext ctx, NetworkPackage reqPack) {
+        ctx.writeAndFlush(reqPack);
+
+        if (NetworkCommand.AUTH_OK.equals(reqPack.getHeader().getCommand())) {
+            ChannelPipeline pipeline = ctx.channel().pipeline();
+            pipeline.addAfter(ctx.executor(), "AuthHandler", "CommandHandler",
+                    new CommandServerHandler(root, activeClient, listingCache, fileNameIndex, trash, sizeTree,
+                            catalog, longTasks, sessionTable, sessionToken));
+            pipeline.addAfter(ctx.executor(), "AuthHandler", "FileUploadHandler",
+                    new FileUploadServerHandler(root, activeClient, partFiles, listingCache, fileNameIndex,
+                            chunkStore, sizeTree, catalog));
+            pipeline.addAfter(ctx.executor(), "AuthHandler", "FileDownloadHandler",
+                    new FileDownloadServerHandler(root));
+            pipeline.remove(this);
+            buildSizeTree();
+        }
+    }
+
+    /**
+     * @return host address of the client
+     */
+    private static String remoteAddress(ChannelHandlerContext ctx) {
+        SocketAddress address = ctx.channel().remoteAddress();
+        if (address instanceof InetSocketAddress && ((InetSocketAddress) address).getAddress() != null) {
+            return ((InetSocketAddress) address).getAddress().getHostAddress();
+        }
+        return String.valueOf(address);
+    }
+
+    /**
+     * @param message - message for the client
+     * @return package "AUTH_FAIL" with the message
+     */
+    private static NetworkPackage failPackage(String message) {
+        PackageHeader reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.AUTH_FAIL)
+                .addParam(message)
+                .build();
+        return new NetworkPackage(reqHeader, null);
+    }
+
+    /**
+     * @return package "AUTH_RETRY" with the message and the delay of the next login in milliseconds
+     */
+    private static NetworkPackage retryPackage() {
+        PackageHeader reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.AUTH_RETRY)
+                .addParam("Server is busy, try again later")
+                .addParam(String.valueOf(ServerConfig.AUTH_RETRY_DELAY))
+                .build();
+        return new NetworkPackage(reqHeader, null);
+    }
+
+    /**
+     * Builds the size tree of the home directory of the client before its first listing, so the listings
+     * have the sizes of the directories
+     */
+    private void buildSizeTree() {
+        Path home = root.resolve(activeClient.getHomeDirectory());
+        try {
+            long[] used = sizeTree.used(home);
+            LOGGER.debug("Client {} stores {} bytes in {} files", activeClient.getNickname(), used[0], used[1]);
+        } catch (IOException e) {
+            LOGGER.warn("Size tree error of " + home, e);
+        }
+    }
+
+    /**
+     * Calls method login from connection with login and hashed password
+     * @param login - client login
+     * @param passwordHash - hashed client password
      * @return package "AUTH_OK" if authentication passed or package "AUTH_FAIL" if authentication failed
      * @throws SQLException
      */
-    private NetworkPackage commandAuth(PackageHeader header) throws SQLException {
-        String login = header.getParam(1);
-        String password = header.getParam(2);
-
-        Optional<FileServerClient> client = connection.login(login, password);
+    private NetworkPackage commandAuth(String login, String passwordHash) throws SQLException {
+        Optional<FileServerClient> client = connection.login(login, passwordHash);
 
         PackageHeader reqHeader;
         if (client.isPresent()) {
             activeClient = client.get();
+            sessionToken = sessionTable.open(activeClient);
 
             reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.AUTH_OK)
                     .addParam(activeClient.getNickname())
+                    .addParam(sessionToken)
                     .build();
         } else {
             reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.AUTH_FAIL)
@@ -78,8 +255,36 @@ public class AuthServerHandler extends ChannelInboundHandlerAdapter {
         return new NetworkPackage(reqHeader, null);
     }
 
+    /**
+     * Extracts session token from header and finds the client of the session
+     * @param header - header of the package
+     * @return package "AUTH_OK" with the same token if the session is valid or package "AUTH_FAIL" if it is not
+     * or the token is missing
+     */
+    private NetworkPackage commandResume(PackageHeader header) {
+        String token = header.getParamCount() > 0 ? header.getParam(1) : null;
+        Optional<FileServerClient> client = sessionTable.resume(token);
+
+        PackageHeader reqHeader;
+        if (client.isPresent()) {
+            activeClient = client.get();
+            sessionToken = token;
+
+            reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.AUTH_OK)
+                    .addParam(activeClient.getNickname())
+                    .addParam(token)
+                    .build();
+        } else {
+            reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.AUTH_FAIL)
+                    .addParam("Session expired")
+                    .build();
+        }
+
+        return new NetworkPackage(reqHeader, null);
+    }
+
     @Override
-    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         LOGGER.warn("Authentication failed", cause);
     }
 }
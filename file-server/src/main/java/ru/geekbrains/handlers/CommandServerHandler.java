@@ -1,43 +1,117 @@
 package ru.geekbrains.handlers;
 
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.geekbrains.auth.SessionTable;
+import ru.geekbrains.catalog.MetadataCatalog;
 import ru.geekbrains.commands.NetworkCommand;
 import ru.geekbrains.configs.ServerConfig;
 import ru.geekbrains.entities.FileServerClient;
+import ru.geekbrains.executors.LongTaskExecutor;
+import ru.geekbrains.files.SizeTree;
+import ru.geekbrains.files.TreeCopier;
+import ru.geekbrains.listings.ListingCache;
 import ru.geekbrains.messages.FileView;
 import ru.geekbrains.messages.NetworkPackage;
 import ru.geekbrains.messages.PackageBody;
 import ru.geekbrains.messages.PackageHeader;
+import ru.geekbrains.search.FileNameIndex;
+import ru.geekbrains.trash.Trash;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
- * Handles command "CD", "MKDIR", "RM" and "SEARCH".
- * "CD" - change current directory
+ * Handles command "CD", "MKDIR", "RM", "COPY", "MOVE", "SEARCH", "LS_CANCEL" and "LOGOUT".
+ * "CD" - change current directory, it is recorded in the session of the client
  * "MKDIR" - create new directory
  * "RM" - remove file or directory
+ * "COPY" - copy file or directory on the server by TreeCopier, the progress is sent by packages "COPY"
+ * with the params: source, copied bytes and total bytes, the failed copy is answered by "COPY_FAIL"
+ * with the params: source and error message
+ * "MOVE" - rename file or directory, it is copied and removed if the rename is not atomic
  * "SEARCH" - file search
+ * "LS_CANCEL" - stop sending the current listing
+ * "LOGOUT" - close the session of the client and the connection
+ * Listings are sent as packages "LS" of ServerConfig.LS_PAGE_SIZE entries with the params: directory,
+ * index of the first entry of the page and number of entries in the listing. All pages of the listing have
+ * the same stream ID. The next page is sent when the previous one is written, so the commands received
+ * meanwhile are handled between the pages, the next listing replaces the current one.
+ * Listings of the directories are served by ListingCache, "MKDIR" and "RM" invalidate the changed directories.
+ * The search in the home directory is served by FileNameIndex, "MKDIR" and "RM" update it.
+ * "RM" moves the file or directory into the trash of the client, it is deleted in the background by Trash.
+ * "RM" is answered by "RM_FAIL" if the file can not be removed or it is deleted in place, so it is still listed.
+ * The commands changing the files update SizeTree, the pages of the listings get the sizes of the directories from it.
+ * "COPY" reserves the size of the source in SizeTree and is answered by "COPY_FAIL" if the home directory
+ * of the client exceeds ServerConfig.USER_QUOTA with it.
+ * The commands changing the files record their changes in MetadataCatalog.
+ * "COPY", "MOVE" and "SEARCH" walk the file trees on LongTaskExecutor, so they do not stall the other channels
+ * of the executor of the handler. Their listings are sent from the executor of the handler when they are done,
+ * the commands received meanwhile are handled at once.
  */
 public class CommandServerHandler extends ChannelInboundHandlerAdapter {
     private static final Logger LOGGER = LoggerFactory.getLogger(CommandServerHandler.class);
 
+    // Root directory (ServerConfig.ROOT_DIRECTORY), the paths of the commands are relative to it
+    private Path root;
     private FileServerClient activeClient;
+    private ListingCache listingCache;
+    private FileNameIndex fileNameIndex;
+    private Trash trash;
+    private SizeTree sizeTree;
+    private MetadataCatalog catalog;
+    private LongTaskExecutor longTasks;
+    private SessionTable sessionTable;
+    private String sessionToken;
+    // Listing being sent by pages, accessed only from the executor of the handler
+    private ListingPages listing;
+    private int nextListingId = 1;
 
-    public CommandServerHandler(FileServerClient client) {
+    /**
+     * Entries of the listing and index of the next page
+     */
+    private static class ListingPages {
+        private final int id;
+        private final String directory;
+        private final Object[] files;
+        private int offset;
+
+        private ListingPages(int id, String directory, Object[] files) {
+            this.id = id;
+            this.directory = directory;
+            this.files = files;
+        }
+    }
+
+    public CommandServerHandler(Path root, FileServerClient client, ListingCache listingCache,
+                                FileNameIndex fileNameIndex, Trash trash, SizeTree sizeTree, MetadataCatalog catalog,
+                                LongTaskExecutor longTasks, SessionTable sessionTable, String sessionToken) {
+        this.root = root;
         this.activeClient = client;
+        this.listingCache = listingCache;
+        this.fileNameIndex = fileNameIndex;
+        this.trash = trash;
+        this.sizeTree = sizeTree;
+        this.catalog = catalog;
+        this.longTasks = longTasks;
+        this.sessionTable = sessionTable;
+        this.sessionToken = sessionToken;
     }
 
     @Override
@@ -50,57 +124,350 @@ public class CommandServerHandler extends ChannelInboundHandlerAdapter {
         if (NetworkCommand.CD.equals(command)) {
              reqPack = commandCD(header);
         } else if (NetworkCommand.SEARCH.equals(command)) {
-            reqPack = commandSearch(header);
+            runLongTask(ctx, () -> commandSearch(header));
         } else if (NetworkCommand.MKDIR.equals(command)) {
             reqPack = commandMkDir(header);
         } else if (NetworkCommand.RM.equals(command)) {
             reqPack = commandRM(header);
+        } else if (NetworkCommand.COPY.equals(command)) {
+            commandCopy(ctx, header, false);
+        } else if (NetworkCommand.MOVE.equals(command)) {
+            commandCopy(ctx, header, true);
+        } else if (NetworkCommand.LS_CANCEL.equals(command)) {
+            commandLSCancel(header);
+        } else if (NetworkCommand.LOGOUT.equals(command)) {
+            sessionTable.close(sessionToken);
+            ctx.close();
+            return;
         }
 
         if (reqPack.isPresent()) {
-            ctx.writeAndFlush(reqPack.get());
+            sendListing(ctx, reqPack.get());
         } else {
             ctx.flush();
         }
     }
 
     /**
-     * Handles command RM and remove file or directory.
+     * Runs the command walking the file tree on LongTaskExecutor, its package LS is sent from the executor
+     * of the handler, which owns the current listing
+     * @param ctx - context of the handler
+     * @param command - command returning package LS
+     * @return false if the command is refused by the full queue
+     */
+    private boolean runLongTask(ChannelHandlerContext ctx, Callable<Optional<NetworkPackage>> command) {
+        try {
+            longTasks.submit(command).whenComplete((reqPack, e) -> ctx.executor().execute(() -> {
+                if (e != null) {
+                    LOGGER.warn("Handle command error", e);
+                } else if (reqPack.isPresent()) {
+                    sendListing(ctx, reqPack.get());
+                }
+            }));
+            return true;
+        } catch (RejectedExecutionException e) {
+            LOGGER.warn("Command refused: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Handles command LS_CANCEL and stops sending the listing with the stream ID, 0 - the current listing
      * @param header - header of the inbound package
-     * @return Optional<NetworkPackage> package LS
-     * @throws IOException if remove file error
+     */
+    private void commandLSCancel(PackageHeader header) {
+        if (listing != null && (header.getStreamId() == 0 || header.getStreamId() == listing.id)) {
+            LOGGER.debug("Listing of {} cancelled at {} of {} entries",
+                    listing.directory, listing.offset, listing.files.length);
+            listing = null;
+        }
+    }
+
+    /**
+     * Replaces the current listing by the entries of the package LS and sends its first page
+     * @param ctx - context of the handler
+     * @param pack - package LS with the entries of the directory
+     */
+    private void sendListing(ChannelHandlerContext ctx, NetworkPackage pack) {
+        Object[] files = pack.getBody().getObjectBody();
+        listing = new ListingPages(nextListingId++, pack.getHeader().getParam(1),
+                files != null ? files : new Object[0]);
+        sendPage(ctx, listing);
+    }
+
+    /**
+     * Sends the next page of the listing if it is still current, the page after it is sent when this page is written
+     * @param ctx - context of the handler
+     * @param pages - listing
+     */
+    private void sendPage(ChannelHandlerContext ctx, ListingPages pages) {
+        if (pages != listing) {
+            return;
+        }
+        int from = pages.offset;
+        int to = Math.min(from + ServerConfig.LS_PAGE_SIZE, pages.files.length);
+        pages.offset = to;
+
+        PackageHeader reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.LS)
+                .setStreamId(pages.id)
+                .addParam(pages.directory)
+                .addParam(String.valueOf(from))
+                .addParam(String.valueOf(pages.files.length))
+                .build();
+        PackageBody reqBody = new PackageBody(withDirectorySizes(Arrays.copyOfRange(pages.files, from, to)));
+        ChannelFuture future = ctx.writeAndFlush(new NetworkPackage(reqHeader, reqBody));
+
+        if (to == pages.files.length) {
+            listing = null;
+            return;
+        }
+        future.addListener(f -> {
+            if (f.isSuccess()) {
+                ctx.executor().execute(() -> sendPage(ctx, pages));
+            }
+        });
+    }
+
+    /**
+     * Replaces the views of the directories by the views with the sizes from SizeTree,
+     * the cached views are shared and not changed
+     * @param files - page of the listing
+     * @return page of the listing
+     */
+    private Object[] withDirectorySizes(Object[] files) {
+        for (int i = 0; i < files.length; i++) {
+            FileView view = (FileView) files[i];
+            if (view.isDirectory()) {
+                long size = sizeTree.size(root.resolve(view.getDirectory()).resolve(view.getFilename()));
+                files[i] = new FileView(true, view.getFilename(), size, view.getDirectory(),
+                        view.getCreatingMillis(), view.getLastModifiedMillis());
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Handles command RM and moves file or directory into the trash of the client.
+     * @param header - header of the inbound package
+     * @return Optional<NetworkPackage> package LS, or package RM_FAIL if the file is not removed from the listing
+     * @throws IOException if directory reading error
      */
     private Optional<NetworkPackage> commandRM(PackageHeader header) throws IOException {
         String filename = header.getParam(1);
-        Path filePath = Paths.get(ServerConfig.ROOT_DIRECTORY).resolve(filename);
-        Path currentPath = Paths.get(ServerConfig.ROOT_DIRECTORY).resolve(activeClient.getCurrentPath());
+        Path filePath = root.resolve(filename);
+        Path currentPath = root.resolve(activeClient.getCurrentPath());
 
         if (!Files.exists(filePath)) {
             LOGGER.warn("Remove file error. File {} not exist", filePath.toString());
-            return null;
+            return Optional.empty();
         }
 
+        sizeTree.removed(filePath);
+        boolean moved;
         try {
-            if (Files.isDirectory(filePath)) {
-                try (Stream<Path> walk = Files.walk(filePath)){
-                    walk.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
-                }
-            } else {
-                Files.delete(filePath);
-            }
+            moved = trash.remove(filePath, activeClient.getHomeDirectory());
+            catalog.removed(filePath);
+            fileNameIndex.removed(filePath);
         } catch (IOException e) {
             LOGGER.warn("Remove file error", e);
+            sizeTree.added(filePath);
+            return Optional.of(failRemovePackage(filename, "Error removing remote file"));
+        } finally {
+            listingCache.invalidateTree(filePath);
+        }
+        if (!moved) {
+            // The file deleted in place is still listed until the deletion is finished
+            LOGGER.warn("File {} is not moved into the trash, it is deleted in place", filePath);
+            return Optional.of(failRemovePackage(filename, "File is being deleted, it is listed until it is gone"));
         }
 
         PackageHeader reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.LS)
                 .addParam(activeClient.getCurrentPath().toString())
                 .build();
 
-        PackageBody reqBody = new PackageBody(Files.list(currentPath).map(FileView::new).toArray());
+        PackageBody reqBody = new PackageBody(listingCache.list(currentPath));
+
+        return Optional.of(new NetworkPackage(reqHeader, reqBody));
+    }
+
+    /**
+     * Handles commands COPY and MOVE, the source and target paths are in the home directory of the client.
+     * The paths are checked at once, the copy runs on LongTaskExecutor.
+     * @param ctx - context of the handler
+     * @param header - header of the inbound package
+     * @param move - the source is moved
+     */
+    private void commandCopy(ChannelHandlerContext ctx, PackageHeader header, boolean move) {
+        String source = header.getParam(1);
+        Path homePath = root.resolve(activeClient.getHomeDirectory()).normalize();
+        Path sourcePath = root.resolve(source).normalize();
+        Path targetPath = root.resolve(header.getParam(2)).normalize();
+
+        if (!sourcePath.startsWith(homePath) || !targetPath.startsWith(homePath) || sourcePath.equals(homePath)
+                || targetPath.startsWith(sourcePath)) {
+            LOGGER.warn("Copy error. Path {} can not be copied to {}", sourcePath, targetPath);
+            sendCopyFail(ctx, source, "Path can not be copied");
+            return;
+        }
+        if (!Files.exists(sourcePath) || Files.exists(targetPath)) {
+            LOGGER.warn("Copy error. File {} not exist or file {} already exist", sourcePath, targetPath);
+            sendCopyFail(ctx, source, "File not exist or target already exist");
+            return;
+        }
+
+        if (!runLongTask(ctx, () -> copyTree(ctx, source, sourcePath, targetPath, move))) {
+            sendCopyFail(ctx, source, "Server is busy");
+        }
+    }
+
+    /**
+     * Reserves the size of the copied tree in the quota of the home directory, the moved tree does not change it.
+     * The size is read by the walk of the tree, the directories created outside the server are not in SizeTree.
+     * @param sourcePath - source path
+     * @return reserved bytes or -1 if the quota is exceeded or the size can not be read
+     */
+    private long reserveCopy(Path sourcePath) {
+        Path homePath = root.resolve(activeClient.getHomeDirectory());
+        try {
+            long bytes = TreeCopier.size(sourcePath);
+            if (!sizeTree.reserve(homePath, bytes, ServerConfig.USER_QUOTA)) {
+                LOGGER.warn("Copy of {} of {} bytes exceeds the quota of {}", sourcePath, bytes, homePath);
+                return -1;
+            }
+            return bytes;
+        } catch (IOException e) {
+            LOGGER.warn("Size error of " + sourcePath, e);
+            return -1;
+        }
+    }
+
+    /**
+     * Copies or moves the checked source to the target and updates the size tree, the catalog and the listings
+     * @param ctx - context of the handler
+     * @param source - source path sent by the client
+     * @param sourcePath - source path
+     * @param targetPath - target path
+     * @param move - the source is moved
+     * @return Optional<NetworkPackage> package LS
+     */
+    private Optional<NetworkPackage> copyTree(ChannelHandlerContext ctx, String source, Path sourcePath,
+                                              Path targetPath, boolean move) {
+        long reserved = 0;
+        if (!move) {
+            reserved = reserveCopy(sourcePath);
+            if (reserved < 0) {
+                sendCopyFail(ctx, source, "Quota exceeded");
+                return Optional.empty();
+            }
+        }
+        if (move) {
+            sizeTree.removed(sourcePath);
+        }
+        try {
+            if (move) {
+                move(ctx, source, sourcePath, targetPath);
+            } else {
+                copy(ctx, source, sourcePath, targetPath);
+            }
+            sizeTree.added(targetPath);
+            catalog.added(targetPath);
+        } catch (IOException | UncheckedIOException e) {
+            LOGGER.warn("Copy error", e);
+            sendCopyFail(ctx, source, "Error copying remote file");
+            if (move && Files.exists(sourcePath)) {
+                sizeTree.added(sourcePath);
+            }
+        } finally {
+            sizeTree.release(root.resolve(activeClient.getHomeDirectory()),
+                    reserved);
+            listingCache.invalidate(targetPath.getParent());
+            if (move) {
+                listingCache.invalidateTree(sourcePath);
+            }
+        }
+
+        Path currentPath = activeClient.getCurrentPath();
+        PackageHeader reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.LS)
+                .addParam(currentPath.toString())
+                .build();
+        PackageBody reqBody = new PackageBody(getRemoteFileViews(root
+                .resolve(currentPath)));
 
         return Optional.of(new NetworkPackage(reqHeader, reqBody));
     }
 
+    private void move(ChannelHandlerContext ctx, String source, Path sourcePath, Path targetPath) throws IOException {
+        try {
+            Files.move(sourcePath, targetPath, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            copy(ctx, source, sourcePath, targetPath);
+            trash.remove(sourcePath, activeClient.getHomeDirectory());
+        }
+        fileNameIndex.removed(sourcePath);
+        catalog.removed(sourcePath);
+        addToIndex(targetPath);
+    }
+
+    private void copy(ChannelHandlerContext ctx, String source, Path sourcePath, Path targetPath) throws IOException {
+        long start = System.currentTimeMillis();
+        long copied;
+        try {
+            copied = new TreeCopier((bytes, total) -> writeCopyProgress(ctx, source, bytes, total))
+                    .copy(sourcePath, targetPath);
+        } catch (IOException e) {
+            // The partial copy is removed
+            if (Files.exists(targetPath)) {
+                trash.remove(targetPath, activeClient.getHomeDirectory());
+            }
+            throw e;
+        }
+        LOGGER.debug("Copied {} to {}: {} bytes, {} ms", sourcePath, targetPath, copied,
+                System.currentTimeMillis() - start);
+        addToIndex(targetPath);
+    }
+
+    private void addToIndex(Path path) throws IOException {
+        try (Stream<Path> walk = Files.walk(path)) {
+            walk.forEach(fileNameIndex::added);
+        }
+    }
+
+    /**
+     * @param filename - removed path sent by the client
+     * @param message - error message
+     * @return package RM_FAIL
+     */
+    private static NetworkPackage failRemovePackage(String filename, String message) {
+        PackageHeader reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.RM_FAIL)
+                .addParam(filename)
+                .addParam(message)
+                .build();
+        return new NetworkPackage(reqHeader, null);
+    }
+
+    /**
+     * Sends command COPY_FAIL, may be called from any thread
+     * @param ctx - context of the handler
+     * @param source - source path sent by the client
+     * @param message - error message
+     */
+    private void sendCopyFail(ChannelHandlerContext ctx, String source, String message) {
+        PackageHeader reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.COPY_FAIL)
+                .addParam(source)
+                .addParam(message)
+                .build();
+        ctx.writeAndFlush(new NetworkPackage(reqHeader, null));
+    }
+
+    private void writeCopyProgress(ChannelHandlerContext ctx, String source, long copied, long total) {
+        PackageHeader reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.COPY)
+                .addParam(source)
+                .addParam(String.valueOf(copied))
+                .addParam(String.valueOf(total))
+                .build();
+        ctx.writeAndFlush(new NetworkPackage(reqHeader, null));
+    }
+
     /**
      * Handles command MkDir and create new directory.
      * @param header - header of the inbound package
@@ -108,7 +475,7 @@ public class CommandServerHandler extends ChannelInboundHandlerAdapter {
      */
     private Optional<NetworkPackage> commandMkDir(PackageHeader header) {
         String directoryName = header.getParam(1);
-        Path currentPath = Paths.get(ServerConfig.ROOT_DIRECTORY).resolve(activeClient.getCurrentPath());
+        Path currentPath = root.resolve(activeClient.getCurrentPath());
         Path dirPath = currentPath.resolve(directoryName);
 
 
@@ -122,7 +489,12 @@ public class CommandServerHandler extends ChannelInboundHandlerAdapter {
         } catch (IOException e) {
             LOGGER.warn("Create directory error", e);
             return null;
+        } finally {
+            listingCache.invalidate(currentPath);
         }
+        fileNameIndex.added(dirPath);
+        sizeTree.added(dirPath);
+        catalog.added(dirPath);
 
         PackageHeader reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.LS)
                 .addParam(activeClient.getCurrentPath().toString())
@@ -134,19 +506,34 @@ public class CommandServerHandler extends ChannelInboundHandlerAdapter {
 
     /**
      * Handles command Search and finds files containing a substring (header.getParam(2)) in the name.
+     * The search in the home directory is served by the filename index, other directories are walked.
      * @param header - header of the inbound package
      * @return Optional<NetworkPackage> package LS
      */
     private Optional<NetworkPackage> commandSearch(PackageHeader header) {
         String directory = header.getParam(1);
         String search = header.getParam(2);
-        Path pathStart = Paths.get(ServerConfig.ROOT_DIRECTORY).resolve(directory);
+        Path pathStart = root.resolve(directory);
+        Path homePath = root.resolve(activeClient.getHomeDirectory());
 
         List<FileView> searchedFiles = new ArrayList<>();
-        try (Stream<Path> findList = Files.find(pathStart, Integer.MAX_VALUE, (path, basicFileAttributes) ->
-                path.getFileName().toString().toLowerCase().contains(search.toLowerCase())
-                        && !path.equals(pathStart))) {
-            searchedFiles = findList.map(FileView::new).collect(Collectors.toList());
+        try {
+            if (pathStart.normalize().startsWith(homePath.normalize())) {
+                for (Path path : fileNameIndex.search(homePath, pathStart, search)) {
+                    if (Files.exists(path)) {
+                        searchedFiles.add(new FileView(path));
+                    } else {
+                        // Removed outside the server
+                        fileNameIndex.removed(path);
+                    }
+                }
+            } else {
+                try (Stream<Path> findList = Files.find(pathStart, Integer.MAX_VALUE, (path, basicFileAttributes) ->
+                        path.getFileName().toString().toLowerCase().contains(search.toLowerCase())
+                                && !path.equals(pathStart))) {
+                    searchedFiles = findList.map(FileView::new).collect(Collectors.toList());
+                }
+            }
         } catch (IOException e) {
             LOGGER.warn("Search error", e);
         }
@@ -181,12 +568,13 @@ public class CommandServerHandler extends ChannelInboundHandlerAdapter {
             tempPath = Paths.get(filePath);
         }
 
-        Path targetPath = Paths.get(ServerConfig.ROOT_DIRECTORY).resolve(tempPath);
+        Path targetPath = root.resolve(tempPath);
 
         if (!Files.isDirectory(targetPath)) {
             return null;
         }
         activeClient.setCurrentPath(tempPath);
+        sessionTable.setCurrentPath(sessionToken, tempPath);
 
         PackageHeader reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.LS)
                 .addParam(tempPath.toString())
@@ -197,14 +585,14 @@ public class CommandServerHandler extends ChannelInboundHandlerAdapter {
     }
 
     /**
-     * Creates objects FileView for all files (and directories) to the current remote directory.
+     * Returns objects FileView for all files (and directories) to the current remote directory from ListingCache.
      * @param dir - current remote directory
      * @return array of the objects FileView
      */
     private Object[] getRemoteFileViews(Path dir) {
         Object[] files = null;
-        try (Stream<Path> walk = Files.list(dir)) {
-            files = walk.map(FileView::new).toArray();
+        try {
+            files = listingCache.list(dir);
         } catch (IOException e) {
             e.printStackTrace();
         }
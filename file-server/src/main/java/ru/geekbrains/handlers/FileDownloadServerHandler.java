@@ -1,34 +1,109 @@
 package ru.geekbrains.handlers;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.geekbrains.codecs.ChunkCompressor;
+import ru.geekbrains.codecs.NetworkPackageCodec;
 import ru.geekbrains.commands.NetworkCommand;
+import ru.geekbrains.commands.TransferMode;
 import ru.geekbrains.configs.ServerConfig;
 import ru.geekbrains.messages.NetworkPackage;
-import ru.geekbrains.messages.PackageBody;
 import ru.geekbrains.messages.PackageHeader;
+import ru.geekbrains.transfers.TransferJournal;
 
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 /**
  * Handles command "DOWNLOAD_START", "DOWNLOAD_READY", "DOWNLOAD_DONE" and "DOWNLOAD_FAIL".
- * "DOWNLOAD_START" - create new FileInputStream
- * "DOWNLOAD_READY" - read bytes into the buffer and send package "DOWNLOAD" or "DOWNLOAD_FINISH" if file read complete
- * "DOWNLOAD_DONE" - close FileInputStream
- * "DOWNLOAD_FAIL" - close FileInputStream and logging error message
+ * Downloads are identified by the stream ID of the package header, assigned by the client in "DOWNLOAD_START".
+ * "DOWNLOAD_START" - open FileChannel. In streaming mode push the whole file, otherwise send the first part
+ * "DOWNLOAD_READY" - send next part of the file in package "DOWNLOAD" or "DOWNLOAD_FINISH" with the number of sent
+ * bytes if file read complete
+ * "DOWNLOAD_DONE" - close FileChannel
+ * "DOWNLOAD_FAIL" - close FileChannel and logging error message
+ * Streaming downloads are written while the channel is writable and resumed by channelWritabilityChanged,
+ * so the write buffer water marks limit the memory used by the pushed parts. The parts sent by FileRegion
+ * are counted by their bytes (TransferSizeEstimator of the transport), not as empty messages.
+ * The fourth param of "DOWNLOAD_START" is TransferMode followed by its params, the whole file is sent without it.
+ * In the mode RANGE only the byte range of the file is sent.
+ * In the mode RESUME the checksum of the bytes the client has is verified and
+ * "DOWNLOAD_RESUME" with the offset the download continues from (zero if the files do not match) is sent first.
+ * The third param of "DOWNLOAD_START" offers the client to accept compressed parts, the server accepts
+ * it if ServerConfig.COMPRESSION is set. Parts are deflated while the ChunkCompressor of the download is enabled.
+ * If ServerConfig.ZERO_COPY_DOWNLOAD is set and the parts are not deflated, the part of the file is sent by FileRegion
+ * after the frame prefix, so the bytes go from the file to the socket without copying into the heap,
+ * otherwise it is read into the pooled direct buffer.
  */
 public class FileDownloadServerHandler extends ChannelInboundHandlerAdapter {
     private static final Logger LOGGER = LoggerFactory.getLogger(FileUploadServerHandler.class);
 
-    private Map<String, FileInputStream> downloadFiles = new HashMap<>();
-    private String lastDownload;
+    // Root directory (ServerConfig.ROOT_DIRECTORY), the download paths are relative to it
+    private Path root;
+    private IntObjectMap<DownloadFile> downloadFiles = new IntObjectHashMap<>();
+    // Streaming downloads with unsent parts, served in turn
+    private Deque<DownloadFile> streamingFiles = new ArrayDeque<>();
+    private int lastDownload;
+
+    /**
+     * Opened download file, position of the next part, end of the downloaded range and compressor of the parts
+     */
+    private static class DownloadFile {
+        private final int id;
+        private final FileChannel channel;
+        private final long end;
+        private final ChunkCompressor compressor;
+        private long position;
+        // Write of the last region of the file, the queued regions read the FileChannel until they are written
+        private ChannelFuture lastRegion;
+
+        DownloadFile(int id, FileChannel channel, long position, long end, String fileName, boolean compression) {
+            this.id = id;
+            this.channel = channel;
+            this.position = position;
+            this.end = end;
+            this.compressor = new ChunkCompressor(fileName, compression);
+        }
+
+        void close() throws IOException {
+            compressor.close();
+            if (lastRegion == null || lastRegion.isDone()) {
+                channel.close();
+            } else {
+                // Writes complete in order, so the FileChannel is closed after all queued regions
+                lastRegion.addListener(f -> channel.close());
+            }
+        }
+    }
+
+    /**
+     * File region sharing the FileChannel of the download: the channel is closed by the handler
+     * after the last region of the download is written, not when the region is released.
+     */
+    private static class SharedFileRegion extends DefaultFileRegion {
+        SharedFileRegion(FileChannel file, long position, long count) {
+            super(file, position, count);
+        }
+
+        @Override
+        protected void deallocate() {
+        }
+    }
+
+    public FileDownloadServerHandler(Path root) {
+        this.root = root;
+    }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
@@ -37,30 +112,63 @@ public class FileDownloadServerHandler extends ChannelInboundHandlerAdapter {
         NetworkCommand command = header.getCommand();
 
         if (NetworkCommand.DOWNLOAD_START.equals(command)) {
-            String downloadID = header.getParam(1);
+            int downloadID = header.getStreamId();
             lastDownload = downloadID;
-            Path targetPath = Paths.get(ServerConfig.ROOT_DIRECTORY, header.getParam(2));
+            Path targetPath = root.resolve(header.getParam(1));
+            boolean streaming = header.getParamCount() > 1 && Boolean.parseBoolean(header.getParam(2));
+            boolean compression = ServerConfig.COMPRESSION
+                    && header.getParamCount() > 2 && Boolean.parseBoolean(header.getParam(3));
+
+            TransferMode mode = header.getParamCount() > 3
+                    ? TransferMode.valueOf(header.getParam(4)) : TransferMode.WHOLE;
 
-            FileInputStream fis = new FileInputStream(targetPath.toFile());
-            downloadFiles.put(downloadID, fis);
+            FileChannel channel = FileChannel.open(targetPath, StandardOpenOption.READ);
+            DownloadFile file;
+            if (TransferMode.RESUME.equals(mode)) {
+                // Resume params: confirmed offset of the client and checksum of the bytes before the offset
+                long offset = Long.parseLong(header.getParam(5));
+                if (TransferJournal.checksum(channel, offset) != Long.parseLong(header.getParam(6))) {
+                    offset = 0;
+                }
+                LOGGER.info("Download {} resumed from offset {}", downloadID, offset);
+                writeResumeDownload(ctx, downloadID, offset);
+                file = new DownloadFile(downloadID, channel, offset, channel.size(), header.getParam(1), compression);
+            } else if (TransferMode.RANGE.equals(mode)) {
+                // Range params: offset and length of the range
+                long offset = Long.parseLong(header.getParam(5));
+                long length = Long.parseLong(header.getParam(6));
+                file = new DownloadFile(downloadID, channel, offset, Math.min(offset + length, channel.size()),
+                        header.getParam(1), compression);
+            } else {
+                file = new DownloadFile(downloadID, channel, 0, channel.size(), header.getParam(1), compression);
+            }
+            downloadFiles.put(downloadID, file);
 
-            downloadPartFile(ctx, downloadID);
+            if (streaming) {
+                streamingFiles.addLast(file);
+                writeStreamingParts(ctx);
+            } else {
+                downloadPartFile(ctx, file);
+            }
         } else if (NetworkCommand.DOWNLOAD_READY.equals(command)) {
-            String downloadID = header.getParam(1);
+            int downloadID = header.getStreamId();
             lastDownload = downloadID;
-            downloadPartFile(ctx, downloadID);
+            downloadPartFile(ctx, downloadFiles.get(downloadID));
         } else if (NetworkCommand.DOWNLOAD_DONE.equals(command)) {
-            String downloadID = header.getParam(1);
+            int downloadID = header.getStreamId();
             lastDownload = downloadID;
-            FileInputStream fis = downloadFiles.get(downloadID);
-            fis.close();
-            downloadFiles.remove(downloadID);
+            DownloadFile file = downloadFiles.remove(downloadID);
+            if (file != null) {
+                file.close();
+            }
         } else if (NetworkCommand.DOWNLOAD_FAIL.equals(command)) {
-            String downloadID = header.getParam(1);
-            String errMessage = header.getParam(2);
-            FileInputStream fis = downloadFiles.get(downloadID);
-            fis.close();
-            downloadFiles.remove(downloadID);
+            int downloadID = header.getStreamId();
+            String errMessage = header.getParam(1);
+            DownloadFile file = downloadFiles.remove(downloadID);
+            if (file != null) {
+                streamingFiles.remove(file);
+                file.close();
+            }
             LOGGER.warn(errMessage);
         } else {
             ctx.fireChannelRead(msg);
@@ -68,28 +176,88 @@ public class FileDownloadServerHandler extends ChannelInboundHandlerAdapter {
     }
 
     /**
-     * Reads bytes into the buffer and sends package "DOWNLOAD" or "DOWNLOAD_FINISH" if file read complete
+     * Sends command "DOWNLOAD_RESUME" with the offset the download continues from
+     * @param ctx - channel handler context
+     * @param downloadID - stream ID
+     * @param offset - offset of the first part
+     */
+    private void writeResumeDownload(ChannelHandlerContext ctx, int downloadID, long offset) {
+        PackageHeader reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.DOWNLOAD_RESUME)
+                .setStreamId(downloadID)
+                .addParam(String.valueOf(offset))
+                .build();
+        ctx.write(new NetworkPackage(reqHeader, null));
+    }
+
+    /**
+     * Writes parts of the streaming downloads in turn until the channel becomes not writable
      * @param ctx - channel handler context
-     * @param downloadID - session ID
      * @throws IOException if file reading error
      */
-    private void downloadPartFile(ChannelHandlerContext ctx, String downloadID) throws IOException {
-        FileInputStream fis = downloadFiles.get(downloadID);
-        byte[] buffer = new byte[ServerConfig.BUFFER_SIZE];
-        int read = fis.read(buffer);
-        PackageHeader reqHeader;
-        if (read != -1) {
-            reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.DOWNLOAD)
-                    .addParam(downloadID)
-                    .addParam(String.valueOf(read))         // read bytes
+    private void writeStreamingParts(ChannelHandlerContext ctx) throws IOException {
+        while (ctx.channel().isWritable() && !streamingFiles.isEmpty()) {
+            DownloadFile file = streamingFiles.pollFirst();
+            lastDownload = file.id;
+            if (downloadPartFile(ctx, file)) {
+                streamingFiles.addLast(file);
+            }
+        }
+        ctx.flush();
+    }
+
+    /**
+     * Writes next part of the file in package "DOWNLOAD" or package "DOWNLOAD_FINISH" if file read complete.
+     * Package "DOWNLOAD_FINISH" carries the number of bytes sent for the file parts.
+     * @param ctx - channel handler context
+     * @param file - download file
+     * @return true if the file has more parts to send
+     * @throws IOException if file reading error
+     */
+    private boolean downloadPartFile(ChannelHandlerContext ctx, DownloadFile file) throws IOException {
+        int read = (int) Math.min(ServerConfig.BUFFER_SIZE, file.end - file.position);
+
+        if (read <= 0) {
+            PackageHeader reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.DOWNLOAD_FINISH)
+                    .setStreamId(file.id)
+                    .addParam(String.valueOf(file.compressor.getWireBytes()))
                     .build();
+            ctx.write(new NetworkPackage(reqHeader, null));
+            return false;
+        }
+
+        PackageHeader reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.DOWNLOAD)
+                .setStreamId(file.id)
+                .build();
+
+        if (ServerConfig.ZERO_COPY_DOWNLOAD && !file.compressor.isEnabled()) {
+            ctx.write(NetworkPackageCodec.encodeBytesPrefix(ctx.alloc(), reqHeader, read));
+            file.lastRegion = ctx.write(new SharedFileRegion(file.channel, file.position, read));
+            file.compressor.countRaw(read);
         } else {
-            reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.DOWNLOAD_FINISH)
-                    .addParam(downloadID)
-                    .build();
+            ByteBuf buffer = ctx.alloc().ioBuffer(read);
+            try {
+                while (buffer.writerIndex() < read) {
+                    if (buffer.writeBytes(file.channel, file.position + buffer.writerIndex(),
+                            read - buffer.writerIndex()) < 0) {
+                        throw new IOException("Unexpected end of file");
+                    }
+                }
+            } catch (IOException e) {
+                buffer.release();
+                throw e;
+            }
+            ctx.write(new NetworkPackage(reqHeader, file.compressor.compress(ctx.alloc(), buffer)));
         }
-        NetworkPackage reqPack = new NetworkPackage(reqHeader, new PackageBody(buffer));
-        ctx.writeAndFlush(reqPack);
+        file.position += read;
+        return true;
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            writeStreamingParts(ctx);
+        }
+        ctx.fireChannelWritabilityChanged();
     }
 
     @Override
@@ -97,12 +265,22 @@ public class FileDownloadServerHandler extends ChannelInboundHandlerAdapter {
         ctx.flush();
     }
 
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        streamingFiles.clear();
+        for (DownloadFile file : downloadFiles.values()) {
+            file.close();
+        }
+        downloadFiles.clear();
+        ctx.fireChannelInactive();
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
         LOGGER.warn("Download error", cause);
 
         PackageHeader reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.DOWNLOAD_FAIL)
-                .addParam(lastDownload)
+                .setStreamId(lastDownload)
                 .addParam("Error reading remote file")
                 .build();
         NetworkPackage reqPack = new NetworkPackage(reqHeader, null);
@@ -1,32 +1,162 @@
 package ru.geekbrains.handlers;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.geekbrains.catalog.MetadataCatalog;
 import ru.geekbrains.commands.NetworkCommand;
 import ru.geekbrains.configs.ServerConfig;
+import ru.geekbrains.entities.FileServerClient;
+import ru.geekbrains.files.SizeTree;
+import ru.geekbrains.listings.ListingCache;
 import ru.geekbrains.messages.NetworkPackage;
+import ru.geekbrains.messages.PackageBody;
 import ru.geekbrains.messages.PackageHeader;
+import ru.geekbrains.search.FileNameIndex;
+import ru.geekbrains.transfers.ChunkHashes;
+import ru.geekbrains.transfers.ChunkStore;
+import ru.geekbrains.transfers.PartFiles;
+import ru.geekbrains.transfers.TransferJournal;
 
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.BitSet;
 
 /**
- * Handles command "UPLOAD_START", "UPLOAD", "UPLOAD_FINISH" and "UPLOAD_FAIL".
- * "UPLOAD_START" - create FileOutputStream
- * "UPLOAD" - write buffer into the FileOutputStream and send command "UPLOAD_READY"
- * "UPLOAD_FINISH" - close FileOutputStream and send command "UPLOAD_DONE"
- * "UPLOAD_FAIL" - close FileOutputStream and logging error message
+ * Handles command "UPLOAD_START", "UPLOAD_RESUME", "UPLOAD", "UPLOAD_FINISH" and "UPLOAD_FAIL".
+ * Uploads are identified by the stream ID of the package header, assigned by the client in "UPLOAD_START".
+ * "UPLOAD_START" - open FileChannel and send command "UPLOAD_READY" granting the upload window
+ * "UPLOAD_RESUME" - continue the resumable upload from the offset accepted by the client and grant the window
+ * "UPLOAD" - write buffer into the FileChannel, release it and send command "UPLOAD_READY" granting one more chunk
+ * "UPLOAD_FINISH" - close FileChannel, invalidate the listing of the target directory, add the file into
+ * the filename index and send command "UPLOAD_DONE"
+ * "UPLOAD_FAIL" - close FileChannel and logging error message
+ * If "UPLOAD_START" has the range params, the upload writes one byte range of the file into the part file
+ * shared with the ranges sent over the other connections of the client.
+ * If ServerConfig.RESUMABLE_TRANSFERS is set, the whole file upload writes the part file with the journal.
+ * The part file and journal kept by the interrupted upload are counted in SizeTree until the upload is resumed,
+ * PartFileSweeper deletes them after ServerConfig.PART_FILE_TTL.
+ * When the part file of the interrupted upload has the confirmed bytes, "UPLOAD_START" is answered
+ * by "UPLOAD_RESUME" with the confirmed offset and checksum, the client answers "UPLOAD_RESUME"
+ * with the offset it continues from (zero if its file does not match) and the window is granted.
+ * If ServerConfig.DEDUP_UPLOADS is set and "UPLOAD_START" has the chunk hash list in the body, the upload is
+ * deduplicated by ChunkStore: the chunks found in the store are copied by the server, "UPLOAD_READY" granting
+ * the window has the bitmap of them in the body and the client does not send them. The received chunks
+ * are verified by the hash list. The finished file is stored in ChunkStore.
+ * "UPLOAD_START" of the path outside the home directory of the client is answered by "UPLOAD_FAIL".
+ * The last param of "UPLOAD_START" is the number of bytes of the upload, they are reserved in SizeTree
+ * and "UPLOAD_START" is answered by "UPLOAD_FAIL" if the param is missing or the home directory of the client
+ * exceeds ServerConfig.USER_QUOTA with them. "UPLOAD" writing over the declared bytes fails the upload,
+ * "UPLOAD_FINISH" before all of them are written is answered by "UPLOAD_FAIL".
+ * The finished upload updates the size of the file in SizeTree and records the file in MetadataCatalog.
+ * The param after the number of bytes offers compressed chunks, "UPLOAD_READY" granting the window answers
+ * whether they are accepted (ServerConfig.COMPRESSION).
  */
 public class FileUploadServerHandler extends ChannelInboundHandlerAdapter {
     private static final Logger LOGGER = LoggerFactory.getLogger(FileUploadServerHandler.class);
 
-    private Map<String, FileOutputStream> uploadFiles = new HashMap<>();
-    private String lastUpload;
+    private PartFiles partFiles;
+    private ListingCache listingCache;
+    private FileNameIndex fileNameIndex;
+    private ChunkStore chunkStore;
+    private SizeTree sizeTree;
+    private MetadataCatalog catalog;
+    // Root directory (ServerConfig.ROOT_DIRECTORY), the upload paths are relative to it
+    private Path root;
+    // Home directory of the client, uploads are counted in its quota
+    private Path home;
+    private IntObjectMap<UploadFile> uploadFiles = new IntObjectHashMap<>();
+    private int lastUpload;
+
+    /**
+     * Opened upload file and position of the next part
+     */
+    private static class UploadFile {
+        private final FileChannel channel;
+        // Part file of the range upload, null if the whole file is uploaded
+        private final PartFiles.PartFile partFile;
+        // Journal of the resumable upload
+        private final TransferJournal journal;
+        private final int window;
+        // Compressed chunks accepted from the client
+        private boolean compression;
+        private long position;
+        // End of the upload declared by the client, the bytes after it are not written
+        private long end;
+        // Target file, its directory listing is invalidated and it is indexed when the upload is finished
+        private Path target;
+        // Bytes reserved in the quota and size of the replaced file, -1 if the file is new
+        private long reserved;
+        private long replacedBytes;
+        // Hash list of the deduplicated upload from the chunk at the offset hashesFrom, null if not deduplicated.
+        // The client hashes the whole file from zero and the range from its offset, also when the upload is resumed
+        private byte[] hashes;
+        private long hashesFrom;
+        // Chunks of the hash list copied from the store instead of received
+        private BitSet stored;
+        // All chunks are verified by the hash list, so the file can be stored
+        private boolean verified;
+        private long storedBytes;
+        private MessageDigest digest;
+        private ByteBuffer copyBuffer;
+
+        /**
+         * @return index of the chunk at the position in the hash list
+         */
+        int chunkIndex() {
+            return (int) ((position - hashesFrom) / ServerConfig.BUFFER_SIZE);
+        }
+
+        /**
+         * @return true if the chunk at the position is copied from the store, the last chunk of the file
+         * may be shorter, so the position after it is not at the chunk boundary
+         */
+        boolean atStoredChunk() {
+            return position < end && (position - hashesFrom) % ServerConfig.BUFFER_SIZE == 0
+                    && chunkIndex() < hashes.length / ChunkHashes.HASH_SIZE && stored.get(chunkIndex());
+        }
+
+        UploadFile(FileChannel channel, PartFiles.PartFile partFile, long position, int window) {
+            this.channel = channel;
+            this.partFile = partFile;
+            this.journal = null;
+            this.position = position;
+            this.window = window;
+        }
+
+        UploadFile(TransferJournal journal, int window) {
+            this.channel = journal.getChannel();
+            this.partFile = null;
+            this.journal = journal;
+            this.position = journal.getOffset();
+            this.window = window;
+        }
+    }
+
+    public FileUploadServerHandler(Path root, FileServerClient client, PartFiles partFiles,
+                                   ListingCache listingCache, FileNameIndex fileNameIndex, ChunkStore chunkStore,
+                                   SizeTree sizeTree, MetadataCatalog catalog) {
+        this.root = root;
+        this.partFiles = partFiles;
+        this.listingCache = listingCache;
+        this.fileNameIndex = fileNameIndex;
+        this.chunkStore = chunkStore;
+        this.sizeTree = sizeTree;
+        this.catalog = catalog;
+        this.home = root.resolve(client.getHomeDirectory()).normalize();
+    }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
@@ -35,73 +165,441 @@ public class FileUploadServerHandler extends ChannelInboundHandlerAdapter {
         NetworkCommand command = header.getCommand();
 
         if (NetworkCommand.UPLOAD_START.equals(command)) {
-            String uploadID = header.getParam(1);
+            int uploadID = header.getStreamId();
             lastUpload = uploadID;
-            Path targetPath = Paths.get(".", ServerConfig.ROOT_DIRECTORY, header.getParam(1));
+            Path targetPath = root.resolve(header.getParam(1)).normalize();
+            int window = header.getParamCount() > 1 ? Integer.parseInt(header.getParam(2)) : 1;
+            window = Math.max(1, Math.min(window, ServerConfig.MAX_UPLOAD_WINDOW));
 
-            FileOutputStream fos = new FileOutputStream(targetPath.toFile());
-            uploadFiles.put(uploadID, fos);
+            byte[] hashes = null;
+            if (pack.getBody() != null) {
+                hashes = ByteBufUtil.getBytes(pack.content());
+                pack.release();
+            }
 
-            writeReadyUpload(ctx, uploadID);
+            if (!targetPath.startsWith(home) || targetPath.equals(home)) {
+                LOGGER.warn("Upload error. Path {} is not in the home directory {}", targetPath, home);
+                writeFailUpload(ctx, uploadID, "Path can not be uploaded");
+                return;
+            }
+
+            // Range params: offset of the range and number of ranges of the file
+            boolean range = header.getParamCount() > 4;
+            int bytesParam = range ? 5 : 3;
+            long bytes = header.getParamCount() >= bytesParam ? Long.parseLong(header.getParam(bytesParam)) : -1;
+            if (bytes < 0) {
+                LOGGER.warn("Upload {} has no size", uploadID);
+                writeFailUpload(ctx, uploadID, "Upload size is missing");
+                return;
+            }
+            long replacedBytes = Files.isRegularFile(targetPath) ? Files.size(targetPath) : -1;
+            // The ranges replace the file when the last of them is finished
+            long reserved = range ? bytes : Math.max(0, bytes - Math.max(0, replacedBytes));
+            if (!sizeTree.reserve(home, reserved, ServerConfig.USER_QUOTA)) {
+                LOGGER.warn("Upload {} of {} bytes exceeds the quota of {}", uploadID, bytes, home);
+                writeFailUpload(ctx, uploadID, "Quota exceeded");
+                return;
+            }
+
+            boolean resumable = !range && ServerConfig.RESUMABLE_TRANSFERS;
+            if (resumable) {
+                // The kept part file is covered by the reservation while the upload is open
+                uncountPartFile(targetPath);
+            }
+            UploadFile file;
+            try {
+                if (range) {
+                    long offset = Long.parseLong(header.getParam(3));
+                    int ranges = Integer.parseInt(header.getParam(4));
+                    PartFiles.PartFile partFile = partFiles.open(targetPath, ranges);
+                    file = new UploadFile(partFile.getChannel(), partFile, offset, window);
+                } else if (resumable) {
+                    file = new UploadFile(TransferJournal.open(targetPath), window);
+                } else {
+                    if (ServerConfig.DEDUP_UPLOADS) {
+                        // The target can be the link of the stored blob, it must not be overwritten in place
+                        Files.deleteIfExists(targetPath);
+                    }
+                    FileChannel channel = FileChannel.open(targetPath, StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    file = new UploadFile(channel, null, 0, window);
+                }
+            } catch (IOException | RuntimeException e) {
+                sizeTree.release(home, reserved);
+                if (resumable) {
+                    countPartFile(targetPath);
+                }
+                throw e;
+            }
+            file.reserved = reserved;
+            file.end = range ? Long.parseLong(header.getParam(3)) + bytes : bytes;
+            file.replacedBytes = replacedBytes;
+            file.target = targetPath;
+            file.compression = ServerConfig.COMPRESSION && header.getParamCount() > bytesParam
+                    && Boolean.parseBoolean(header.getParam(bytesParam + 1));
+            uploadFiles.put(uploadID, file);
+
+            if (ServerConfig.DEDUP_UPLOADS && hashes != null) {
+                file.hashes = hashes;
+                file.hashesFrom = range ? file.position : 0;
+                file.digest = ChunkHashes.newDigest();
+                if (file.partFile != null) {
+                    file.partFile.addHashes(file.position, hashes);
+                }
+            }
+
+            if (file.journal != null && file.journal.getOffset() > 0) {
+                // The client verifies the confirmed bytes before the window is granted
+                writeResumeUpload(ctx, uploadID, file.journal);
+            } else {
+                LOGGER.debug("Upload {} started with window {}", uploadID, window);
+                startStoredChunks(file);
+                writeReadyUpload(ctx, uploadID, window, file.compression, file.stored);
+            }
+        } else if (NetworkCommand.UPLOAD_RESUME.equals(command)) {
+            int uploadID = header.getStreamId();
+            lastUpload = uploadID;
+            UploadFile file = uploadFiles.get(uploadID);
+            if (file == null) {
+                LOGGER.debug("Resume of unknown upload {} dropped", uploadID);
+                return;
+            }
+            if (file.journal == null) {
+                LOGGER.warn("Upload {} is not resumable", uploadID);
+                failUpload(ctx, uploadID, file, "Upload is not resumable");
+                return;
+            }
+            if (Long.parseLong(header.getParam(1)) != file.journal.getOffset()) {
+                file.journal.reset();
+            }
+            file.position = file.journal.getOffset();
+            LOGGER.info("Upload {} resumed from offset {}", uploadID, file.position);
+            startStoredChunks(file);
+            writeReadyUpload(ctx, uploadID, file.window, file.compression, file.stored);
         } else if (NetworkCommand.UPLOAD.equals(command)) {
-            String uploadID = header.getParam(1);
+            int uploadID = header.getStreamId();
             lastUpload = uploadID;
-            FileOutputStream fos = uploadFiles.get(uploadID);
-            byte[] buffer = pack.getBody().getByteBody();
-            int read = Integer.parseInt(header.getParam(2));
-            fos.write(buffer, 0, read);
-            fos.flush();
+            UploadFile file = uploadFiles.get(uploadID);
+            if (file == null) {
+                // Chunks sent in the window before the upload failed
+                pack.release();
+                return;
+            }
+            if (file.position + pack.content().readableBytes() > file.end) {
+                pack.release();
+                LOGGER.warn("Upload {} exceeds its size of {} bytes", uploadID, file.end);
+                failUpload(ctx, uploadID, file, "Upload exceeds its size");
+                return;
+            }
+            try {
+                ByteBuf buffer = pack.content();
+                ByteBuffer written = buffer.nioBuffer();
+                if (file.hashes != null
+                        && !ChunkHashes.matches(file.digest, written, file.hashes, file.chunkIndex())) {
+                    throw new IOException("Chunk does not match its hash");
+                }
+                while (buffer.isReadable()) {
+                    file.position += buffer.readBytes(file.channel, file.position, buffer.readableBytes());
+                }
+                if (file.journal != null) {
+                    file.journal.update(written);
+                }
+                copyStoredChunks(file);
+            } catch (IOException e) {
+                // The failed upload does not keep its file open and its bytes reserved until the channel closes
+                LOGGER.warn("Upload " + uploadID + " error", e);
+                failUpload(ctx, uploadID, file, "Error writing remote file");
+                return;
+            } finally {
+                pack.release();
+            }
             writeReadyUpload(ctx, uploadID);
         } else if (NetworkCommand.UPLOAD_FINISH.equals(command)) {
-            String uploadID = header.getParam(1);
+            int uploadID = header.getStreamId();
             lastUpload = uploadID;
-            FileOutputStream fos = uploadFiles.get(uploadID);
-            fos.close();
-            uploadFiles.remove(uploadID);
+            UploadFile file = uploadFiles.remove(uploadID);
+            if (file == null) {
+                LOGGER.debug("Finish of unknown upload {} dropped", uploadID);
+                return;
+            }
+            if (file.position != file.end) {
+                // The short upload is not committed, stored or counted as the finished file
+                failUpload(ctx, uploadID, file, "Upload is shorter than its size");
+                return;
+            }
+            try {
+                if (file.journal != null) {
+                    file.journal.complete();
+                    storeFile(file, file.hashes);
+                    sizeTree.replaced(file.target, file.replacedBytes);
+                    catalog.added(file.target);
+                } else if (file.partFile == null) {
+                    file.channel.close();
+                    storeFile(file, file.hashes);
+                    sizeTree.replaced(file.target, file.replacedBytes);
+                    catalog.added(file.target);
+                } else if (partFiles.rangeDone(file.partFile)) {
+                    LOGGER.debug("Upload {} finished the last range of the file", uploadID);
+                    storeFile(file, file.partFile.getHashes());
+                    sizeTree.replaced(file.target, file.replacedBytes);
+                    catalog.added(file.target);
+                }
+            } finally {
+                sizeTree.release(home, file.reserved);
+                listingCache.invalidate(file.target.getParent());
+            }
+            fileNameIndex.added(file.target);
             PackageHeader reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.UPLOAD_DONE)
-                    .addParam(uploadID)
+                    .setStreamId(uploadID)
                     .build();
             NetworkPackage reqPack = new NetworkPackage(reqHeader, null);
             ctx.writeAndFlush(reqPack);
         } else if (NetworkCommand.UPLOAD_FAIL.equals(command)) {
-            String uploadID = header.getParam(1);
-            String errMessage = header.getParam(2);
-            FileOutputStream fos = uploadFiles.get(uploadID);
-            fos.close();
-            uploadFiles.remove(uploadID);
+            int uploadID = header.getStreamId();
+            String errMessage = header.getParam(1);
+            UploadFile file = uploadFiles.remove(uploadID);
+            if (file != null) {
+                closeFailed(file);
+            }
             LOGGER.warn(errMessage);
         } else {
             ctx.fireChannelRead(msg);
         }
     }
 
+    /**
+     * Finds the chunks of the deduplicated upload in the store and copies the chunks from the position.
+     * The chunks which can not be copied are removed from the bitmap, so the client sends them.
+     * @param file - upload file
+     * @throws IOException if file writing error
+     */
+    private void startStoredChunks(UploadFile file) throws IOException {
+        if (file.hashes == null) {
+            return;
+        }
+        file.stored = chunkStore.find(file.hashes);
+        file.verified = file.position == file.hashesFrom || resumedPartMatches(file);
+        file.copyBuffer = ByteBuffer.allocate(ServerConfig.BUFFER_SIZE);
+        while (file.atStoredChunk()) {
+            if (!copyStoredChunk(file)) {
+                file.stored.clear(file.chunkIndex());
+            }
+        }
+    }
+
+    /**
+     * Verifies the bytes of the resumed upload written before the position by the hash list,
+     * so the resumed file can be stored in ChunkStore
+     * @param file - upload file
+     * @return true if the position is at the chunk boundary and the chunks before it match their hashes
+     * @throws IOException if file reading error
+     */
+    private static boolean resumedPartMatches(UploadFile file) throws IOException {
+        long length = file.position - file.hashesFrom;
+        int hashesLength = (int) ChunkHashes.count(length) * ChunkHashes.HASH_SIZE;
+        if (length % ServerConfig.BUFFER_SIZE != 0 || hashesLength > file.hashes.length) {
+            return false;
+        }
+        return Arrays.equals(ChunkHashes.hash(file.channel, file.hashesFrom, file.position),
+                Arrays.copyOf(file.hashes, hashesLength));
+    }
+
+    /**
+     * Copies the stored chunks following the position. The client does not send them, so the chunk
+     * which can not be copied fails the upload.
+     * @param file - upload file
+     * @throws IOException if the chunk is not available or file writing error
+     */
+    private void copyStoredChunks(UploadFile file) throws IOException {
+        if (file.hashes == null) {
+            return;
+        }
+        while (file.atStoredChunk()) {
+            if (!copyStoredChunk(file)) {
+                throw new IOException("Stored chunk is not available");
+            }
+        }
+    }
+
+    private boolean copyStoredChunk(UploadFile file) throws IOException {
+        int copied = chunkStore.copy(file.hashes, file.chunkIndex(), file.channel, file.position,
+                file.end - file.position, file.copyBuffer, file.digest);
+        if (copied < 0) {
+            return false;
+        }
+        file.position += copied;
+        file.storedBytes += copied;
+        if (file.journal != null) {
+            file.journal.update(file.copyBuffer);
+        }
+        return true;
+    }
+
+    /**
+     * Stores the file of the finished upload in ChunkStore if all its chunks are verified by the hash list
+     * @param file - upload file
+     * @param hashes - hash list of the whole file or null
+     */
+    private void storeFile(UploadFile file, byte[] hashes) {
+        if (hashes == null || !file.verified) {
+            return;
+        }
+        LOGGER.debug("Upload of {} copied {} bytes from the chunk store", file.target, file.storedBytes);
+        chunkStore.store(file.target, hashes);
+    }
+
+    /**
+     * Closes FileChannel of the failed upload. The part file of the range upload is deleted,
+     * the part file of the resumable upload is kept with the confirmed offset and counted in SizeTree.
+     * @param file - upload file
+     * @throws IOException if closing error
+     */
+    private void closeFailed(UploadFile file) throws IOException {
+        sizeTree.release(home, file.reserved);
+        if (file.journal != null) {
+            try {
+                file.journal.suspend();
+            } finally {
+                countPartFile(file.target);
+            }
+        } else if (file.partFile == null) {
+            file.channel.close();
+        } else {
+            partFiles.fail(file.partFile);
+        }
+    }
+
+    /**
+     * Adds the kept part file and journal of the resumable upload into SizeTree
+     * @param target - target file of the upload
+     */
+    private void countPartFile(Path target) {
+        for (Path path : new Path[]{TransferJournal.partPath(target), TransferJournal.journalPath(target)}) {
+            if (Files.exists(path)) {
+                sizeTree.added(path);
+            }
+        }
+    }
+
+    /**
+     * Subtracts the kept part file and journal of the resumable upload from SizeTree
+     * @param target - target file of the upload
+     */
+    private void uncountPartFile(Path target) {
+        for (Path path : new Path[]{TransferJournal.partPath(target), TransferJournal.journalPath(target)}) {
+            if (Files.exists(path)) {
+                sizeTree.removed(path);
+            }
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        for (UploadFile file : uploadFiles.values()) {
+            closeFailed(file);
+        }
+        uploadFiles.clear();
+        ctx.fireChannelInactive();
+    }
+
     @Override
     public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
         ctx.flush();
     }
 
     /**
-     * Sends command "UPLOAD_READY"
+     * Removes the failed upload, closes its file and sends command "UPLOAD_FAIL"
+     * @param ctx - channel handler context
+     * @param uploadID - stream ID
+     * @param file - upload file
+     * @param message - error message
+     * @throws IOException if closing error
+     */
+    private void failUpload(ChannelHandlerContext ctx, int uploadID, UploadFile file, String message)
+            throws IOException {
+        uploadFiles.remove(uploadID);
+        try {
+            closeFailed(file);
+        } finally {
+            writeFailUpload(ctx, uploadID, message);
+        }
+    }
+
+    /**
+     * Sends command "UPLOAD_FAIL" refusing the upload
      * @param ctx - channel handler context
-     * @param uploadID - session ID
+     * @param uploadID - stream ID
+     * @param message - error message
      */
-    private void writeReadyUpload(ChannelHandlerContext ctx, String uploadID) {
+    private void writeFailUpload(ChannelHandlerContext ctx, int uploadID, String message) {
+        PackageHeader reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.UPLOAD_FAIL)
+                .setStreamId(uploadID)
+                .addParam(message)
+                .build();
+        ctx.writeAndFlush(new NetworkPackage(reqHeader, null));
+    }
+
+    /**
+     * Sends command "UPLOAD_RESUME" with the confirmed offset and checksum of the interrupted upload
+     * @param ctx - channel handler context
+     * @param uploadID - stream ID
+     * @param journal - journal of the upload
+     */
+    private void writeResumeUpload(ChannelHandlerContext ctx, int uploadID, TransferJournal journal) {
+        PackageHeader reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.UPLOAD_RESUME)
+                .setStreamId(uploadID)
+                .addParam(String.valueOf(journal.getOffset()))
+                .addParam(String.valueOf(journal.getChecksum()))
+                .build();
+        NetworkPackage reqPack = new NetworkPackage(reqHeader, null);
+        ctx.write(reqPack);
+    }
+
+    /**
+     * Sends command "UPLOAD_READY" granting the upload window. The command is flushed by channelReadComplete.
+     * @param ctx - channel handler context
+     * @param uploadID - stream ID
+     * @param credits - number of chunks the client may send
+     * @param compression - true if the client may send compressed chunks
+     * @param stored - chunks of the deduplicated upload the client does not send, or null
+     */
+    private void writeReadyUpload(ChannelHandlerContext ctx, int uploadID, int credits, boolean compression,
+                                  BitSet stored) {
         PackageHeader reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.UPLOAD_READY)
-                .addParam(uploadID)
+                .setStreamId(uploadID)
+                .addParam(String.valueOf(credits))
+                .addParam(String.valueOf(compression))
+                .build();
+        PackageBody reqBody = stored != null && !stored.isEmpty()
+                ? new PackageBody(Unpooled.wrappedBuffer(stored.toByteArray()))
+                : null;
+        NetworkPackage reqPack = new NetworkPackage(reqHeader, reqBody);
+        ctx.write(reqPack);
+    }
+
+    /**
+     * Sends command "UPLOAD_READY" without params granting one more chunk.
+     * The command is flushed by channelReadComplete, so credits for all chunks of one read go to the client together.
+     * @param ctx - channel handler context
+     * @param uploadID - stream ID
+     */
+    private void writeReadyUpload(ChannelHandlerContext ctx, int uploadID) {
+        PackageHeader reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.UPLOAD_READY)
+                .setStreamId(uploadID)
                 .build();
         NetworkPackage reqPack = new NetworkPackage(reqHeader, null);
-        ctx.writeAndFlush(reqPack);
+        ctx.write(reqPack);
     }
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
         LOGGER.warn("Upload error", cause);
 
-        PackageHeader reqHeader = new PackageHeader.HeaderBuilder(NetworkCommand.UPLOAD_FAIL)
-                .addParam(lastUpload)
-                .addParam("Error writing remote file")
-                .build();
-        NetworkPackage reqPack = new NetworkPackage(reqHeader, null);
-        ctx.writeAndFlush(reqPack);
+        UploadFile file = uploadFiles.get(lastUpload);
+        if (file != null) {
+            failUpload(ctx, lastUpload, file, "Error writing remote file");
+        } else {
+            writeFailUpload(ctx, lastUpload, "Error writing remote file");
+        }
     }
 }
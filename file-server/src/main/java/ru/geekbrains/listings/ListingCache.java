@@ -0,0 +1,220 @@
+package ru.geekbrains.listings;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.geekbrains.catalog.MetadataCatalog;
+import ru.geekbrains.configs.ServerConfig;
+import ru.geekbrains.transfers.TransferJournal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Listings of the recently browsed directories shared by all connections.
+ * Listings are evicted in LRU order when the cache exceeds ServerConfig.LISTING_CACHE_DIRECTORIES directories
+ * or ServerConfig.LISTING_CACHE_ENTRIES entries in total.
+ * The server commands changing a directory invalidate its listing, changes made outside the server
+ * are reported by the WatchService the cached directories are registered in.
+ * Listings missing in the cache are read through MetadataCatalog, so the directories not changed
+ * since the server restart are not read from the disk.
+ * Cached listings are shared, they must not be modified.
+ */
+public class ListingCache implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ListingCache.class);
+
+    // Listings and watch keys by absolute directory path, in access order, guarded by this
+    private final Map<Path, Listing> listings = new LinkedHashMap<>(16, 0.75f, true);
+    private final WatchService watchService;
+    private final MetadataCatalog catalog;
+    private int entries;
+    // Incremented by every invalidation, a listing loaded before it is not cached
+    private long generation;
+    private long hits;
+    private long misses;
+
+    private static class Listing {
+        private final Object[] files;
+        private final WatchKey watchKey;
+
+        private Listing(Object[] files, WatchKey watchKey) {
+            this.files = files;
+            this.watchKey = watchKey;
+        }
+    }
+
+    public ListingCache(MetadataCatalog catalog) {
+        this.catalog = catalog;
+        WatchService service = null;
+        try {
+            service = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            LOGGER.warn("Directory watching is not available, listings are invalidated by the server commands only", e);
+        }
+        this.watchService = service;
+
+        if (watchService != null) {
+            Thread watcher = new Thread(this::watch, "listing-cache-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+    }
+
+    /**
+     * Returns FileView objects of all files (and directories) in the directory, from the cache if it is there.
+     * Part files and journals of the uploads are not listed.
+     * @param dir - directory
+     * @return array of the objects FileView
+     * @throws IOException if directory reading error
+     */
+    public Object[] list(Path dir) throws IOException {
+        Path key = dir.toAbsolutePath().normalize();
+        long loadGeneration;
+        synchronized (this) {
+            Listing listing = listings.get(key);
+            if (listing != null) {
+                hits++;
+                return listing.files;
+            }
+            misses++;
+            loadGeneration = generation;
+        }
+
+        // Registered before reading, so the changes made while the directory is read invalidate the listing
+        WatchKey watchKey = register(key);
+        // Listed by the given path, FileView keeps the directory relative to the server root
+        Object[] files = catalog.list(dir).stream()
+                .filter(file -> !TransferJournal.isTransferFile(file.getFilename()))
+                .toArray();
+
+        synchronized (this) {
+            if (generation == loadGeneration && (watchService == null || watchKey.isValid())) {
+                put(key, new Listing(files, watchKey));
+            }
+        }
+        return files;
+    }
+
+    private WatchKey register(Path dir) throws IOException {
+        if (watchService == null) {
+            return null;
+        }
+        return dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    private void put(Path dir, Listing listing) {
+        Listing replaced = listings.put(dir, listing);
+        if (replaced != null) {
+            entries -= replaced.files.length;
+        }
+        entries += listing.files.length;
+
+        Iterator<Map.Entry<Path, Listing>> eldest = listings.entrySet().iterator();
+        while (listings.size() > 1 && (listings.size() > ServerConfig.LISTING_CACHE_DIRECTORIES
+                || entries > ServerConfig.LISTING_CACHE_ENTRIES)) {
+            Listing evicted = eldest.next().getValue();
+            eldest.remove();
+            release(evicted);
+        }
+    }
+
+    private void release(Listing listing) {
+        entries -= listing.files.length;
+        if (listing.watchKey != null) {
+            listing.watchKey.cancel();
+        }
+    }
+
+    /**
+     * Invalidates listing of the directory whose entries are created, deleted or changed
+     * @param dir - directory
+     */
+    public synchronized void invalidate(Path dir) {
+        generation++;
+        Listing listing = listings.remove(dir.toAbsolutePath().normalize());
+        if (listing != null) {
+            release(listing);
+        }
+    }
+
+    /**
+     * Invalidates listings of the deleted or moved file or directory: its parent, the directory itself
+     * and all its subdirectories
+     * @param path - file or directory
+     */
+    public synchronized void invalidateTree(Path path) {
+        Path root = path.toAbsolutePath().normalize();
+        if (root.getParent() != null) {
+            invalidate(root.getParent());
+        }
+        generation++;
+        Iterator<Map.Entry<Path, Listing>> it = listings.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, Listing> entry = it.next();
+            if (entry.getKey().startsWith(root)) {
+                it.remove();
+                release(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Invalidates listings of the directories changed outside the server
+     */
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        invalidateTree(dir.resolve((Path) event.context()));
+                    }
+                }
+                invalidate(dir);
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            LOGGER.debug("Directory watching stopped");
+        }
+    }
+
+    /**
+     * @return number of the listings served from the cache
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of the listings read from the disk
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Stops directory watching
+     */
+    @Override
+    public void close() {
+        if (watchService == null) {
+            return;
+        }
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            LOGGER.warn("Directory watching closing error", e);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package ru.geekbrains.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Count, average and maximum of the recorded durations. The maximum is reset when it is read,
+ * so every report shows the maximum since the previous one.
+ */
+public class LatencyRecorder {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return average duration since the start, microseconds
+     */
+    public long getAverageMicros() {
+        long n = count.sum();
+        return n == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalNanos.sum() / n);
+    }
+
+    /**
+     * @return maximum duration since the previous call, microseconds
+     */
+    public long getAndResetMaxMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxNanos.getAndSet(0));
+    }
+}
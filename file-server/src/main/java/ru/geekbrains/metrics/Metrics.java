@@ -0,0 +1,47 @@
+package ru.geekbrains.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Named gauges of the server components, logged together by report()
+ */
+public class Metrics {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Metrics.class);
+
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+
+    /**
+     * Registers the gauge
+     * @param name - name of the gauge, dot-separated by the component
+     * @param value - current value of the gauge
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * @return current values of the gauges in the format "name=value, ..."
+     */
+    public String snapshot() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(gauge.getKey()).append('=').append(gauge.getValue().getAsLong());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Logs current values of the gauges
+     */
+    public void report() {
+        LOGGER.info("Metrics: {}", snapshot());
+    }
+}
@@ -0,0 +1,375 @@
+package ru.geekbrains.search;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.geekbrains.catalog.MetadataCatalog;
+import ru.geekbrains.configs.ServerConfig;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Registry of the filename indexes of the home directories.
+ * The index of the home directory is built by the first search in it, from MetadataCatalog if all its directories
+ * are recorded there, and updated by the server commands
+ * adding and removing files. Changes made outside the server are caught by the background rebuild of the index
+ * started by the search when the index is older than ServerConfig.SEARCH_INDEX_REBUILD_INTERVAL,
+ * the search is served by the old index until the new one is built.
+ * Paths are kept relative to the working directory, as the server commands resolve them.
+ */
+public class FileNameIndex {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileNameIndex.class);
+
+    private final Map<Path, HomeIndex> indexes = new ConcurrentHashMap<>();
+    private final MetadataCatalog catalog;
+    private final ExecutorService rebuildExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "file-name-index-rebuild");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Trigram index of the lowercase file names of one home directory.
+     * Files get increasing IDs, so the posting lists of the trigrams are sorted and intersected by merging.
+     * Removed files leave null in the path table until the index is rebuilt.
+     */
+    static class HomeIndex {
+        private final Path home;
+        private final long buildTime = System.currentTimeMillis();
+        private final List<Path> paths = new ArrayList<>();
+        private final List<String> names = new ArrayList<>();
+        private final Map<Path, Integer> ids = new HashMap<>();
+        private final Map<Long, IntList> postings = new HashMap<>();
+        // Changes made while the index is rebuilt, replayed on the new index
+        private List<Path[]> journal;
+        private HomeIndex replacement;
+        private boolean rebuilding;
+
+        HomeIndex(Path home) {
+            this.home = home;
+        }
+
+        /**
+         * Adds all files and directories of the home directory recorded in the catalog
+         * @param catalog - metadata catalog
+         * @return false if some directory is not recorded
+         */
+        boolean build(MetadataCatalog catalog) {
+            List<Path> recorded = catalog.tree(home);
+            if (recorded == null) {
+                return false;
+            }
+            recorded.forEach(this::add);
+            return true;
+        }
+
+        /**
+         * Walks the home directory and adds all files and directories
+         * @throws IOException if directory reading error
+         */
+        void build() throws IOException {
+            Files.walkFileTree(home, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (!dir.equals(home)) {
+                        add(dir);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    add(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    LOGGER.warn("Index error of {}: {}", file, e.getMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+
+        synchronized void add(Path path) {
+            if (replacement != null) {
+                replacement.add(path);
+                return;
+            }
+            if (journal != null) {
+                journal.add(new Path[]{path, null});
+            }
+            if (ids.containsKey(path)) {
+                return;
+            }
+            int id = paths.size();
+            String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+            paths.add(path);
+            names.add(name);
+            ids.put(path, id);
+            for (long trigram : trigrams(name)) {
+                postings.computeIfAbsent(trigram, t -> new IntList()).add(id);
+            }
+        }
+
+        /**
+         * Removes the file or directory with all its subdirectories and files
+         * @param path - removed path
+         */
+        synchronized void removeTree(Path path) {
+            if (replacement != null) {
+                replacement.removeTree(path);
+                return;
+            }
+            if (journal != null) {
+                journal.add(new Path[]{null, path});
+            }
+            ids.entrySet().removeIf(entry -> {
+                if (entry.getKey().startsWith(path)) {
+                    paths.set(entry.getValue(), null);
+                    return true;
+                }
+                return false;
+            });
+        }
+
+        /**
+         * Finds files and directories below the start directory whose names contain the lowercase query
+         * @param start - start directory
+         * @param query - lowercase substring of the name
+         * @return found paths
+         */
+        synchronized List<Path> search(Path start, String query) {
+            List<Path> found = new ArrayList<>();
+            if (query.length() < 3) {
+                for (int id = 0; id < paths.size(); id++) {
+                    collect(found, id, start, query);
+                }
+                return found;
+            }
+
+            Set<Long> queryTrigrams = trigrams(query);
+            IntList[] lists = new IntList[queryTrigrams.size()];
+            int i = 0;
+            for (long trigram : queryTrigrams) {
+                IntList list = postings.get(trigram);
+                if (list == null) {
+                    return found;
+                }
+                lists[i++] = list;
+            }
+            Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+
+            // Every candidate of the shortest list must be in the other lists, they are searched by bisection
+            IntList shortest = lists[0];
+            candidates:
+            for (int k = 0; k < shortest.size; k++) {
+                int id = shortest.values[k];
+                for (int l = 1; l < lists.length; l++) {
+                    if (Arrays.binarySearch(lists[l].values, 0, lists[l].size, id) < 0) {
+                        continue candidates;
+                    }
+                }
+                collect(found, id, start, query);
+            }
+            return found;
+        }
+
+        private void collect(List<Path> found, int id, Path start, String query) {
+            Path path = paths.get(id);
+            if (path != null && names.get(id).contains(query) && path.startsWith(start) && !path.equals(start)) {
+                found.add(path);
+            }
+        }
+
+        synchronized int size() {
+            return ids.size();
+        }
+
+        boolean isStale() {
+            return System.currentTimeMillis() - buildTime > ServerConfig.SEARCH_INDEX_REBUILD_INTERVAL;
+        }
+
+        /**
+         * Starts journaling the changes for the new index
+         * @return false if the index is already being rebuilt
+         */
+        synchronized boolean startRebuild() {
+            if (rebuilding) {
+                return false;
+            }
+            rebuilding = true;
+            journal = new ArrayList<>();
+            return true;
+        }
+
+        /**
+         * Replays the journaled changes on the new index and forwards the next changes to it
+         * @param index - rebuilt index
+         * @return number of the files added and removed outside the server
+         */
+        synchronized int replaceBy(HomeIndex index) {
+            for (Path[] change : journal) {
+                if (change[0] != null) {
+                    index.add(change[0]);
+                } else {
+                    index.removeTree(change[1]);
+                }
+            }
+            journal = null;
+            replacement = index;
+
+            Set<Path> before = new HashSet<>(ids.keySet());
+            Set<Path> after;
+            synchronized (index) {
+                after = new HashSet<>(index.ids.keySet());
+            }
+            int changed = 0;
+            for (Path path : after) {
+                if (!before.remove(path)) {
+                    changed++;
+                }
+            }
+            return changed + before.size();
+        }
+
+        synchronized void cancelRebuild() {
+            rebuilding = false;
+            journal = null;
+        }
+    }
+
+    /**
+     * Growable array of the increasing file IDs
+     */
+    private static class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    public FileNameIndex(MetadataCatalog catalog) {
+        this.catalog = catalog;
+    }
+
+    /**
+     * Packs every three consecutive chars of the name into long
+     * @param name - lowercase name
+     * @return trigrams of the name
+     */
+    static Set<Long> trigrams(String name) {
+        Set<Long> trigrams = new HashSet<>();
+        for (int i = 0; i + 3 <= name.length(); i++) {
+            trigrams.add(((long) name.charAt(i) << 32) | ((long) name.charAt(i + 1) << 16) | name.charAt(i + 2));
+        }
+        return trigrams;
+    }
+
+    /**
+     * Finds files and directories below the start directory whose names contain the substring, ignoring case.
+     * Builds the index of the home directory if it is not built yet.
+     * @param home - home directory of the client
+     * @param start - start directory of the search inside the home directory
+     * @param search - substring of the name
+     * @return found paths
+     * @throws IOException if index building error
+     */
+    public List<Path> search(Path home, Path start, String search) throws IOException {
+        Path root = home.normalize();
+        HomeIndex index = indexes.get(root);
+        if (index == null) {
+            index = build(root);
+        } else if (index.isStale()) {
+            rebuild(index);
+        }
+        return index.search(start.normalize(), search.toLowerCase(Locale.ROOT));
+    }
+
+    private synchronized HomeIndex build(Path home) throws IOException {
+        HomeIndex index = indexes.get(home);
+        if (index == null) {
+            long start = System.currentTimeMillis();
+            index = new HomeIndex(home);
+            if (!index.build(catalog)) {
+                index.build();
+            }
+            indexes.put(home, index);
+            LOGGER.info("Index of {} built: {} files, {} ms", home, index.size(), System.currentTimeMillis() - start);
+        }
+        return index;
+    }
+
+    private void rebuild(HomeIndex index) {
+        if (!index.startRebuild()) {
+            return;
+        }
+        rebuildExecutor.execute(() -> {
+            HomeIndex rebuilt = new HomeIndex(index.home);
+            try {
+                rebuilt.build();
+            } catch (IOException e) {
+                LOGGER.warn("Index rebuild error of " + index.home, e);
+                index.cancelRebuild();
+                return;
+            }
+            int changed = index.replaceBy(rebuilt);
+            indexes.put(index.home, rebuilt);
+            LOGGER.info("Index of {} rebuilt: {} files, {} changed outside the server",
+                    index.home, rebuilt.size(), changed);
+        });
+    }
+
+    /**
+     * Adds the created file or directory into the built index of its home directory
+     * @param path - created path
+     */
+    public void added(Path path) {
+        Path normalized = path.normalize();
+        for (HomeIndex index : indexes.values()) {
+            if (normalized.startsWith(index.home) && !normalized.equals(index.home)) {
+                index.add(normalized);
+            }
+        }
+    }
+
+    /**
+     * Removes the deleted file or directory with its content from the built index of its home directory
+     * @param path - deleted path
+     */
+    public void removed(Path path) {
+        Path normalized = path.normalize();
+        for (HomeIndex index : indexes.values()) {
+            if (normalized.startsWith(index.home)) {
+                index.removeTree(normalized);
+            }
+        }
+    }
+
+    /**
+     * Stops the background rebuild
+     */
+    public void close() {
+        rebuildExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,247 @@
+package ru.geekbrains.transfers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.geekbrains.configs.ServerConfig;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Content addressed store of the uploaded files in the store directory (ServerConfig.CHUNK_STORE_DIRECTORY).
+ * The uploaded file is stored as the blob named by SHA-256 of its chunk hash list, the hash list is kept
+ * in the file "blob.chunks". Files of the users are hard links of the blobs, so identical files are stored once
+ * and the number of links is the reference count of the blob. Blobs without the files are removed by collectGarbage.
+ * The index maps the chunk hash to the blob and offset of the chunk, the uploads copy the indexed chunks
+ * instead of receiving them. The copied chunk is verified by its hash, so the changed blob is never copied.
+ */
+public class ChunkStore implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChunkStore.class);
+    private static final String CHUNKS_SUFFIX = ".chunks";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+    // Blob and offset by the chunk hash, the chunks of the removed blobs are removed by collectGarbage
+    private final Map<ByteBuffer, Location> chunks = new ConcurrentHashMap<>();
+    // Garbage collection walks the store directory, it does not run on the executors of the channels
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "chunk-store");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static class Location {
+        private final Path blob;
+        private final long offset;
+
+        private Location(Path blob, long offset) {
+            this.blob = blob;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Loads the chunk index of the blobs stored in the directory
+     * @param directory - store directory, it must be on the file system of the files linked to the blobs
+     */
+    public ChunkStore(Path directory) {
+        this.directory = directory;
+        try {
+            Files.createDirectories(directory);
+            load();
+        } catch (IOException e) {
+            throw new RuntimeException("Chunk store loading error", e);
+        }
+    }
+
+    private void load() throws IOException {
+        try (DirectoryStream<Path> lists = Files.newDirectoryStream(directory, "*" + CHUNKS_SUFFIX)) {
+            for (Path list : lists) {
+                Path blob = blobOf(list);
+                if (Files.exists(blob)) {
+                    index(blob, Files.readAllBytes(list));
+                } else {
+                    Files.delete(list);
+                }
+            }
+        }
+        LOGGER.info("Chunk store loaded: {} chunks", chunks.size());
+    }
+
+    private void index(Path blob, byte[] hashes) {
+        for (int i = 0; i * ChunkHashes.HASH_SIZE < hashes.length; i++) {
+            chunks.putIfAbsent(key(hashes, i), new Location(blob, (long) i * ServerConfig.BUFFER_SIZE));
+        }
+    }
+
+    private static ByteBuffer key(byte[] hashes, int index) {
+        return ByteBuffer.wrap(hashes, index * ChunkHashes.HASH_SIZE, ChunkHashes.HASH_SIZE);
+    }
+
+    private static Path blobOf(Path list) {
+        String name = list.getFileName().toString();
+        return list.resolveSibling(name.substring(0, name.length() - CHUNKS_SUFFIX.length()));
+    }
+
+    /**
+     * Finds the stored chunks of the hash list
+     * @param hashes - hash list
+     * @return indexes of the stored chunks
+     */
+    public BitSet find(byte[] hashes) {
+        BitSet stored = new BitSet();
+        for (int i = 0; i * ChunkHashes.HASH_SIZE < hashes.length; i++) {
+            if (chunks.containsKey(key(hashes, i))) {
+                stored.set(i);
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Copies the stored chunk into the file. The chunk is read into the buffer and verified by its hash.
+     * @param hashes - hash list
+     * @param index - index of the chunk in the list
+     * @param target - target file
+     * @param position - position of the chunk in the target file
+     * @param limit - number of bytes which can be written at the position, the longer chunk is not copied
+     * @param buffer - buffer of ServerConfig.BUFFER_SIZE bytes, holds the copied bytes after the call
+     * @param digest - SHA-256 digest
+     * @return number of the copied bytes or -1 if the chunk is not stored or longer than the limit
+     * @throws IOException if target file writing error
+     */
+    public int copy(byte[] hashes, int index, FileChannel target, long position, long limit, ByteBuffer buffer,
+                    MessageDigest digest) throws IOException {
+        ByteBuffer key = key(hashes, index);
+        Location location = chunks.get(key);
+        if (location == null) {
+            return -1;
+        }
+
+        buffer.clear();
+        try (FileChannel blob = FileChannel.open(location.blob, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (blob.read(buffer, location.offset + buffer.position()) < 0) {
+                    // The last chunk of the blob ends with the file
+                    break;
+                }
+            }
+        } catch (NoSuchFileException e) {
+            chunks.remove(key, location);
+            return -1;
+        }
+        buffer.flip();
+        if (!ChunkHashes.matches(digest, buffer, hashes, index)) {
+            LOGGER.warn("Chunk {} of the blob {} is changed", index, location.blob);
+            chunks.remove(key, location);
+            return -1;
+        }
+        if (buffer.remaining() > limit) {
+            return -1;
+        }
+
+        ByteBuffer written = buffer.duplicate();
+        while (written.hasRemaining()) {
+            target.write(written, position + written.position());
+        }
+        return buffer.remaining();
+    }
+
+    /**
+     * Stores the uploaded file. If the identical file is stored, the uploaded file is replaced by the link
+     * of its blob, otherwise the file becomes the new blob. Files which can not be linked are not stored.
+     * @param file - uploaded file, all its chunks are verified by the hash list
+     * @param hashes - hash list of the file
+     */
+    public void store(Path file, byte[] hashes) {
+        try {
+            if (ChunkHashes.count(Files.size(file)) * ChunkHashes.HASH_SIZE != hashes.length) {
+                LOGGER.warn("File {} does not match its hash list", file);
+                return;
+            }
+            Path blob = directory.resolve(toHex(ChunkHashes.newDigest().digest(hashes)));
+            synchronized (this) {
+                if (Files.exists(blob)) {
+                    // The identical file is stored, the uploaded copy is replaced by the link
+                    Path temp = Paths.get(file.toString() + TEMP_SUFFIX);
+                    Files.deleteIfExists(temp);
+                    Files.createLink(temp, blob);
+                    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    LOGGER.debug("File {} is linked to the blob {}", file, blob);
+                    return;
+                }
+                Files.createLink(blob, file);
+                Path list = directory.resolve(blob.getFileName() + CHUNKS_SUFFIX);
+                Path temp = Paths.get(list.toString() + TEMP_SUFFIX);
+                Files.write(temp, hashes);
+                Files.move(temp, list, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            index(blob, hashes);
+        } catch (IOException | UnsupportedOperationException e) {
+            LOGGER.warn("File " + file + " is not stored in the chunk store", e);
+        }
+    }
+
+    /**
+     * Starts the background garbage collection every ServerConfig.CHUNK_STORE_GC_INTERVAL seconds
+     */
+    public void start() {
+        executor.scheduleWithFixedDelay(this::collectGarbage,
+                0, ServerConfig.CHUNK_STORE_GC_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Removes the blobs without the files of the users and their chunks from the index
+     */
+    public void collectGarbage() {
+        Set<Path> removed = new HashSet<>();
+        synchronized (this) {
+            try (DirectoryStream<Path> lists = Files.newDirectoryStream(directory, "*" + CHUNKS_SUFFIX)) {
+                for (Path list : lists) {
+                    Path blob = blobOf(list);
+                    if (!Files.exists(blob) || (Integer) Files.getAttribute(blob, "unix:nlink") <= 1) {
+                        Files.deleteIfExists(blob);
+                        Files.delete(list);
+                        removed.add(blob);
+                    }
+                }
+            } catch (IOException | UnsupportedOperationException e) {
+                LOGGER.warn("Chunk store garbage collection error", e);
+            }
+        }
+        if (!removed.isEmpty()) {
+            chunks.values().removeIf(location -> removed.contains(location.blob));
+            LOGGER.info("Chunk store removed {} blobs", removed.size());
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
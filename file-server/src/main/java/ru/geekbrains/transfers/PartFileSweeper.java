@@ -0,0 +1,103 @@
+package ru.geekbrains.transfers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.geekbrains.configs.ServerConfig;
+import ru.geekbrains.files.SizeTree;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes the part files and journals left by the interrupted uploads.
+ * The files not modified for ServerConfig.PART_FILE_TTL seconds are subtracted from SizeTree and deleted,
+ * the open uploads write their files, the part files of the range uploads in progress are skipped.
+ */
+public class PartFileSweeper implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PartFileSweeper.class);
+
+    private final Path root;
+    private final PartFiles partFiles;
+    private final SizeTree sizeTree;
+    // Sweeping walks ROOT_DIRECTORY, it does not run on the executors of the channels
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "part-file-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public PartFileSweeper(Path root, PartFiles partFiles, SizeTree sizeTree) {
+        this.root = root;
+        this.partFiles = partFiles;
+        this.sizeTree = sizeTree;
+    }
+
+    /**
+     * Starts the background sweeping every ServerConfig.PART_FILE_SWEEP_INTERVAL seconds
+     */
+    public void start() {
+        executor.scheduleWithFixedDelay(this::sweep,
+                0, ServerConfig.PART_FILE_SWEEP_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Deletes the expired part files and journals below the root
+     * @return number of the deleted files
+     */
+    public int sweep() {
+        long expired = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(ServerConfig.PART_FILE_TTL);
+        List<Path> files = new ArrayList<>();
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && attrs.lastModifiedTime().toMillis() < expired
+                            && TransferJournal.isTransferFile(file.getFileName().toString())) {
+                        files.add(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            LOGGER.warn("Part file sweeping error", e);
+        }
+
+        int deleted = 0;
+        for (Path file : files) {
+            if (partFiles.isOpen(TransferJournal.targetOf(file).normalize())) {
+                continue;
+            }
+            try {
+                sizeTree.removed(file);
+                Files.deleteIfExists(file);
+                deleted++;
+            } catch (IOException e) {
+                LOGGER.warn("Part file " + file + " is not deleted", e);
+                sizeTree.added(file);
+            }
+        }
+        if (deleted > 0) {
+            LOGGER.info("Part file sweeper deleted {} files", deleted);
+        }
+        return deleted;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,129 @@
+package ru.geekbrains.transfers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Registry of the files uploaded by byte ranges over several connections.
+ * All ranges of the file write into the shared FileChannel of the part file "target.part" by positional writes.
+ * The part file is moved to the target when the last range is finished and deleted if any range fails.
+ * The deduplicated ranges add their chunk hash lists, they are joined into the hash list of the file.
+ */
+public class PartFiles {
+    private final Map<Path, PartFile> files = new ConcurrentHashMap<>();
+
+    /**
+     * Part file shared by the ranges of one upload
+     */
+    public static class PartFile {
+        private final Path target;
+        private final Path part;
+        private final FileChannel channel;
+        private final AtomicInteger ranges;
+        private final int rangeCount;
+        // Hash lists of the ranges by the offset of the range
+        private final Map<Long, byte[]> hashes = new TreeMap<>();
+
+        private PartFile(Path target, int ranges) throws IOException {
+            this.target = target;
+            this.part = TransferJournal.partPath(target);
+            this.channel = FileChannel.open(part,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            this.ranges = new AtomicInteger(ranges);
+            this.rangeCount = ranges;
+        }
+
+        public FileChannel getChannel() {
+            return channel;
+        }
+
+        /**
+         * Adds the hash list of the deduplicated range
+         * @param offset - start of the range
+         * @param rangeHashes - hash list of the range
+         */
+        public synchronized void addHashes(long offset, byte[] rangeHashes) {
+            hashes.put(offset, rangeHashes);
+        }
+
+        /**
+         * @return hash list of the file or null if some range is not deduplicated
+         */
+        public synchronized byte[] getHashes() {
+            if (hashes.size() != rangeCount) {
+                return null;
+            }
+            ByteArrayOutputStream file = new ByteArrayOutputStream();
+            for (byte[] rangeHashes : hashes.values()) {
+                file.write(rangeHashes, 0, rangeHashes.length);
+            }
+            return file.toByteArray();
+        }
+    }
+
+    /**
+     * Returns the part file of the target, the first range of the upload creates it
+     * @param target - target file
+     * @param ranges - number of ranges of the upload
+     * @return part file
+     * @throws IOException if part file creating error
+     */
+    public PartFile open(Path target, int ranges) throws IOException {
+        try {
+            return files.computeIfAbsent(target, t -> {
+                try {
+                    return new PartFile(t, ranges);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @param target - target file
+     * @return true if the ranges of the target are uploaded now
+     */
+    public boolean isOpen(Path target) {
+        return files.containsKey(target);
+    }
+
+    /**
+     * Counts finished range. The last range closes the part file and moves it to the target.
+     * @param file - part file
+     * @return true if the upload is complete
+     * @throws IOException if moving error
+     */
+    public boolean rangeDone(PartFile file) throws IOException {
+        if (file.ranges.decrementAndGet() > 0 || !files.remove(file.target, file)) {
+            return false;
+        }
+        file.channel.close();
+        Files.move(file.part, file.target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return true;
+    }
+
+    /**
+     * Closes and deletes the part file, the other ranges of the upload fail on writing
+     * @param file - part file
+     * @throws IOException if deleting error
+     */
+    public void fail(PartFile file) throws IOException {
+        if (files.remove(file.target, file)) {
+            file.channel.close();
+            Files.deleteIfExists(file.part);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package ru.geekbrains.auth;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.geekbrains.configs.ServerConfig;
+
+public class LoginLimiterTest {
+    private static final String ADDRESS = "10.0.0.1";
+
+    private long now = 1_000_000L;
+    private final LoginLimiter loginLimiter = new LoginLimiter(() -> now);
+
+    private void fail(String login, int times) {
+        for (int i = 0; i < times; i++) {
+            // Every attempt has the new password, so it is not answered from the failed credentials
+            String password = "password" + now;
+            Assert.assertEquals(LoginLimiter.Decision.ALLOW, loginLimiter.check(login, password, ADDRESS));
+            loginLimiter.failed(login, password, ADDRESS);
+            now++;
+        }
+    }
+
+    @Test
+    public void loginIsBlockedUntilTheWindowPasses() {
+        fail("login", ServerConfig.AUTH_LIMIT_FAILURES);
+        Assert.assertEquals(LoginLimiter.Decision.BLOCK, loginLimiter.check("login", "correct", ADDRESS));
+
+        // The oldest failure leaves the window, the login has one more attempt
+        now += ServerConfig.AUTH_LIMIT_WINDOW - ServerConfig.AUTH_LIMIT_FAILURES;
+        Assert.assertEquals(LoginLimiter.Decision.ALLOW, loginLimiter.check("login", "correct", ADDRESS));
+        loginLimiter.failed("login", "wrong", ADDRESS);
+        Assert.assertEquals(LoginLimiter.Decision.BLOCK, loginLimiter.check("login", "correct", ADDRESS));
+
+        now += ServerConfig.AUTH_LIMIT_WINDOW;
+        Assert.assertEquals(LoginLimiter.Decision.ALLOW, loginLimiter.check("login", "correct", ADDRESS));
+    }
+
+    @Test
+    public void successfulLoginForgetsTheFailures() {
+        fail("login", ServerConfig.AUTH_LIMIT_FAILURES - 1);
+        loginLimiter.succeeded("login");
+
+        fail("login", ServerConfig.AUTH_LIMIT_FAILURES - 1);
+        Assert.assertEquals(LoginLimiter.Decision.ALLOW, loginLimiter.check("login", "correct", ADDRESS));
+    }
+
+    @Test
+    public void addressIsBlockedForAllLogins() {
+        for (int i = 0; i < ServerConfig.AUTH_LIMIT_ADDRESS_FAILURES; i++) {
+            fail("login" + i, 1);
+        }
+        Assert.assertEquals(LoginLimiter.Decision.BLOCK, loginLimiter.check("other", "password", ADDRESS));
+        Assert.assertEquals(LoginLimiter.Decision.ALLOW, loginLimiter.check("other", "password", "10.0.0.2"));
+    }
+
+    @Test
+    public void failedCredentialsFailUntilTheyExpire() {
+        loginLimiter.failed("login", "wrong", ADDRESS);
+
+        Assert.assertEquals(LoginLimiter.Decision.FAILED, loginLimiter.check("login", "wrong", ADDRESS));
+        Assert.assertEquals(LoginLimiter.Decision.ALLOW, loginLimiter.check("login", "correct", ADDRESS));
+
+        now += ServerConfig.AUTH_FAILURE_CACHE_TTL;
+        Assert.assertEquals(LoginLimiter.Decision.ALLOW, loginLimiter.check("login", "wrong", ADDRESS));
+    }
+}
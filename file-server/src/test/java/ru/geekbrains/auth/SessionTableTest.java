@@ -0,0 +1,51 @@
+package ru.geekbrains.auth;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.geekbrains.entities.FileServerClient;
+
+import java.nio.file.Paths;
+import java.util.Optional;
+
+public class SessionTableTest {
+    private final SessionTable sessionTable = new SessionTable();
+
+    @Test
+    public void resumedConnectionsHaveTheirOwnClients() {
+        String token = sessionTable.open(new FileServerClient("login", "nick", "home"));
+        sessionTable.setCurrentPath(token, Paths.get("home", "dir"));
+
+        FileServerClient first = sessionTable.resume(token).get();
+        FileServerClient second = sessionTable.resume(token).get();
+
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(Paths.get("home", "dir"), first.getCurrentPath());
+        // The directory changed by one connection is recorded in the session, not in the client of the other one
+        first.setCurrentPath(Paths.get("home", "other"));
+        Assert.assertEquals(Paths.get("home", "dir"), second.getCurrentPath());
+    }
+
+    @Test
+    public void closedSessionIsNotResumed() {
+        String token = sessionTable.open(new FileServerClient("login", "nick", "home"));
+
+        sessionTable.close(token);
+
+        Assert.assertFalse(sessionTable.resume(token).isPresent());
+        Assert.assertEquals(0, sessionTable.size());
+    }
+
+    @Test
+    public void invalidTokenIsNotResumed() {
+        String token = sessionTable.open(new FileServerClient("login", "nick", "home"));
+        // The first character of the signature, all its bits are decoded unlike the bits of the last one
+        int signature = token.indexOf('.') + 1;
+        char first = token.charAt(signature);
+        String forged = token.substring(0, signature) + (first == 'A' ? 'B' : 'A') + token.substring(signature + 1);
+
+        Assert.assertEquals(Optional.empty(), sessionTable.resume(null));
+        Assert.assertEquals(Optional.empty(), sessionTable.resume(""));
+        Assert.assertEquals(Optional.empty(), sessionTable.resume("token"));
+        Assert.assertEquals(Optional.empty(), sessionTable.resume(forged));
+    }
+}
@@ -0,0 +1,118 @@
+package ru.geekbrains.catalog;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class MetadataCatalogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final String directoryName = "catalog-test";
+    private Path root;
+    private Path first;
+    private Path second;
+    private Path catalogFile;
+    // Size of the catalog file with the record of the first directory only
+    private long firstRecordEnd;
+
+    @Before
+    public void before() throws IOException {
+        root = folder.newFolder("share").toPath();
+        first = root.resolve(directoryName).resolve("first");
+        second = root.resolve(directoryName).resolve("second");
+        for (Path dir : new Path[]{first, second}) {
+            Files.createDirectories(dir);
+            Files.write(dir.resolve("file.txt"), new byte[10]);
+        }
+        catalogFile = folder.getRoot().toPath().resolve("catalog");
+
+        MetadataCatalog catalog = new MetadataCatalog(catalogFile, root);
+        catalog.list(first);
+        catalog.close();
+        firstRecordEnd = Files.size(catalogFile);
+        catalog = new MetadataCatalog(catalogFile, root);
+        catalog.list(second);
+        catalog.close();
+    }
+
+    /**
+     * Opens the catalog and checks the first directory is replayed and the second one is dropped
+     */
+    private void assertSecondRecordDropped() throws IOException {
+        MetadataCatalog catalog = new MetadataCatalog(catalogFile, root);
+        Assert.assertEquals(1, catalog.getDirectories());
+        Assert.assertEquals(1, catalog.list(first).size());
+        Assert.assertEquals(1, catalog.getHits());
+        Assert.assertEquals(1, catalog.list(second).size());
+        Assert.assertEquals(1, catalog.getMisses());
+        catalog.close();
+
+        // The damaged tail is dropped by the compaction, the second directory is recorded again after it
+        MetadataCatalog reloaded = new MetadataCatalog(catalogFile, root);
+        Assert.assertEquals(2, reloaded.getDirectories());
+        Assert.assertEquals(2, reloaded.getRecords());
+        reloaded.close();
+    }
+
+    @Test
+    public void bothDirectoriesAreReplayed() throws IOException {
+        MetadataCatalog catalog = new MetadataCatalog(catalogFile, root);
+        Assert.assertEquals(2, catalog.getDirectories());
+        catalog.list(first);
+        catalog.list(second);
+        Assert.assertEquals(2, catalog.getHits());
+        catalog.close();
+    }
+
+    @Test
+    public void truncatedRecordIsDropped() throws IOException {
+        try (FileChannel channel = FileChannel.open(catalogFile, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 5);
+        }
+
+        assertSecondRecordDropped();
+    }
+
+    @Test
+    public void damagedEntryCountIsDropped() throws IOException {
+        // Type, directory, modification time, then the number of the entries
+        String key = directoryName + "/second";
+        long countOffset = firstRecordEnd + 1 + 2 + key.getBytes(StandardCharsets.UTF_8).length + Long.BYTES;
+        try (FileChannel channel = FileChannel.open(catalogFile, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, Integer.MAX_VALUE), countOffset);
+        }
+
+        assertSecondRecordDropped();
+    }
+
+    @Test
+    public void malformedDirectoryNameIsDropped() throws IOException {
+        try (FileChannel channel = FileChannel.open(catalogFile, StandardOpenOption.WRITE)) {
+            channel.truncate(firstRecordEnd);
+            // Directory record with the invalid modified UTF-8 of the directory name
+            channel.write(ByteBuffer.wrap(new byte[]{1, 0, 2, (byte) 0xC0, 0x20}), firstRecordEnd);
+        }
+
+        assertSecondRecordDropped();
+    }
+
+    @Test
+    public void unknownRecordIsDropped() throws IOException {
+        try (FileChannel channel = FileChannel.open(catalogFile, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{42}), firstRecordEnd);
+        }
+
+        assertSecondRecordDropped();
+    }
+}
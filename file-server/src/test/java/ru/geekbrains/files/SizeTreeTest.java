@@ -0,0 +1,31 @@
+package ru.geekbrains.files;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class SizeTreeTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final SizeTree sizeTree = new SizeTree();
+
+    @Test
+    public void missingHomeDirectoryIsEmpty() throws IOException {
+        Path home = folder.getRoot().toPath().resolve("home");
+
+        Assert.assertArrayEquals(new long[]{0, 0}, sizeTree.used(home));
+        Assert.assertTrue(sizeTree.reserve(home, 100, 1000));
+        Assert.assertFalse(sizeTree.reserve(home, 1000, 1000));
+
+        // The files uploaded into the created home directory are counted
+        Files.createDirectories(home);
+        sizeTree.added(Files.write(home.resolve("file.bin"), new byte[10]));
+        Assert.assertArrayEquals(new long[]{10, 1}, sizeTree.used(home));
+    }
+}
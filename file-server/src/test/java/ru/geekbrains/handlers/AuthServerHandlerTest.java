@@ -0,0 +1,171 @@
+package ru.geekbrains.handlers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.geekbrains.auth.LoginLimiter;
+import ru.geekbrains.auth.PasswordHasher;
+import ru.geekbrains.auth.SessionTable;
+import ru.geekbrains.catalog.MetadataCatalog;
+import ru.geekbrains.commands.NetworkCommand;
+import ru.geekbrains.configs.ServerConfig;
+import ru.geekbrains.db.DBConnection;
+import ru.geekbrains.entities.FileServerClient;
+import ru.geekbrains.executors.LongTaskExecutor;
+import ru.geekbrains.files.SizeTree;
+import ru.geekbrains.listings.ListingCache;
+import ru.geekbrains.messages.NetworkPackage;
+import ru.geekbrains.messages.PackageBody;
+import ru.geekbrains.messages.PackageHeader;
+import ru.geekbrains.search.FileNameIndex;
+import ru.geekbrains.transfers.ChunkStore;
+import ru.geekbrains.transfers.PartFiles;
+import ru.geekbrains.trash.Trash;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+public class AuthServerHandlerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final DBConnection db = new DBConnection() {
+        @Override
+        public Optional<FileServerClient> login(String login, String passwordHash) {
+            return Optional.of(new FileServerClient(login, login, login));
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+    private Path root;
+    private PasswordHasher passwordHasher;
+    private MetadataCatalog catalog;
+    private ListingCache listingCache;
+    private FileNameIndex fileNameIndex;
+    private Trash trash;
+    private LongTaskExecutor longTasks;
+
+    @Before
+    public void before() throws IOException {
+        passwordHasher = new PasswordHasher();
+        root = folder.newFolder("share").toPath();
+        catalog = new MetadataCatalog(folder.getRoot().toPath().resolve("catalog"), root);
+        listingCache = new ListingCache(catalog);
+        fileNameIndex = new FileNameIndex(catalog);
+        trash = new Trash(folder.newFolder("trash").toPath(), (entry, files, failed, done) -> {
+        });
+        longTasks = new LongTaskExecutor();
+    }
+
+    @After
+    public void after() {
+        passwordHasher.close();
+        listingCache.close();
+        fileNameIndex.close();
+        trash.close();
+        longTasks.close();
+        catalog.close();
+    }
+
+    private EmbeddedChannel newChannel() throws IOException {
+        return newChannel(passwordHasher);
+    }
+
+    private EmbeddedChannel newChannel(PasswordHasher passwordHasher) throws IOException {
+        // The authenticated handler adds the command handlers after its name
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.pipeline().addLast("AuthHandler", new AuthServerHandler(root, db, passwordHasher, new LoginLimiter(),
+                new SessionTable(), new PartFiles(), listingCache, fileNameIndex,
+                new ChunkStore(folder.newFolder().toPath()), trash, new SizeTree(), catalog, longTasks));
+        return channel;
+    }
+
+    private static NetworkPackage pack(NetworkCommand command, ByteBuf body, String... params) {
+        PackageHeader.HeaderBuilder header = new PackageHeader.HeaderBuilder(command);
+        for (String param : params) {
+            header.addParam(param);
+        }
+        return new NetworkPackage(header.build(), body == null ? null : new PackageBody(body));
+    }
+
+    @Test
+    public void packagesBeforeTheAuthenticationAreReleased() throws IOException {
+        EmbeddedChannel channel = newChannel();
+        ByteBuf command = Unpooled.wrappedBuffer(new byte[16]);
+        ByteBuf resume = Unpooled.wrappedBuffer(new byte[16]);
+
+        channel.writeInbound(pack(NetworkCommand.UPLOAD, command));
+        channel.writeInbound(pack(NetworkCommand.AUTH_RESUME, resume, "token"));
+
+        Assert.assertEquals(0, command.refCnt());
+        Assert.assertEquals(0, resume.refCnt());
+        Assert.assertNull(channel.readInbound());
+        NetworkPackage fail = channel.readOutbound();
+        Assert.assertEquals(NetworkCommand.AUTH_FAIL, fail.getHeader().getCommand());
+        Assert.assertNull(channel.readOutbound());
+        channel.finishAndReleaseAll();
+    }
+
+    private static void assertRetry(EmbeddedChannel channel) {
+        NetworkPackage retry = channel.readOutbound();
+        Assert.assertNotNull(retry);
+        Assert.assertEquals(NetworkCommand.AUTH_RETRY, retry.getHeader().getCommand());
+        Assert.assertEquals(String.valueOf(ServerConfig.AUTH_RETRY_DELAY), retry.getHeader().getParam(2));
+    }
+
+    @Test
+    public void loginRefusedByTheFullHasherQueueIsRetried() throws IOException {
+        PasswordHasher full = new PasswordHasher() {
+            @Override
+            public CompletableFuture<String> hash(String password) {
+                throw new RejectedExecutionException("Queue is full");
+            }
+        };
+        EmbeddedChannel channel = newChannel(full);
+
+        channel.writeInbound(pack(NetworkCommand.AUTH, null, "login", "password"));
+
+        assertRetry(channel);
+        Assert.assertNull(channel.readOutbound());
+        Assert.assertNotNull(channel.pipeline().get(AuthServerHandler.class));
+        channel.finishAndReleaseAll();
+        full.close();
+    }
+
+    @Test
+    public void loginWhileThePasswordIsHashedIsRetried() throws IOException {
+        CompletableFuture<String> hash = new CompletableFuture<>();
+        PasswordHasher waiting = new PasswordHasher() {
+            @Override
+            public CompletableFuture<String> hash(String password) {
+                return hash;
+            }
+        };
+        EmbeddedChannel channel = newChannel(waiting);
+
+        channel.writeInbound(pack(NetworkCommand.AUTH, null, "login", "password"));
+        Assert.assertNull(channel.readOutbound());
+        channel.writeInbound(pack(NetworkCommand.AUTH, null, "login", "password"));
+        assertRetry(channel);
+
+        // The first login is answered when its password is hashed
+        hash.complete("hash");
+        channel.runPendingTasks();
+        NetworkPackage ok = channel.readOutbound();
+        Assert.assertEquals(NetworkCommand.AUTH_OK, ok.getHeader().getCommand());
+        Assert.assertNull(channel.pipeline().get(AuthServerHandler.class));
+        channel.finishAndReleaseAll();
+        waiting.close();
+    }
+}
@@ -0,0 +1,296 @@
+package ru.geekbrains.handlers;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.geekbrains.auth.SessionTable;
+import ru.geekbrains.catalog.MetadataCatalog;
+import ru.geekbrains.commands.NetworkCommand;
+import ru.geekbrains.configs.ServerConfig;
+import ru.geekbrains.entities.FileServerClient;
+import ru.geekbrains.executors.LongTaskExecutor;
+import ru.geekbrains.files.SizeTree;
+import ru.geekbrains.listings.ListingCache;
+import ru.geekbrains.messages.FileView;
+import ru.geekbrains.messages.NetworkPackage;
+import ru.geekbrains.messages.PackageHeader;
+import ru.geekbrains.search.FileNameIndex;
+import ru.geekbrains.trash.Trash;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
+
+public class CommandServerHandlerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final String homeDirectory = "home";
+    private Path root;
+    private Path home;
+    private MetadataCatalog catalog;
+    private ListingCache listingCache;
+    private FileNameIndex fileNameIndex;
+    private Trash trash;
+    private SessionTable sessionTable;
+
+    /**
+     * Runs the tasks on the calling thread, so their listings are sent by the pending tasks of the channel
+     */
+    private static class DirectTaskExecutor extends LongTaskExecutor {
+        @Override
+        public <T> CompletableFuture<T> submit(Callable<T> task) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            try {
+                future.complete(task.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+            return future;
+        }
+    }
+
+    /**
+     * Refuses the tasks as the full queue does
+     */
+    private static class FullTaskExecutor extends LongTaskExecutor {
+        @Override
+        public <T> CompletableFuture<T> submit(Callable<T> task) {
+            throw new RejectedExecutionException("Queue is full");
+        }
+    }
+
+    @Before
+    public void before() throws IOException {
+        root = folder.newFolder("share").toPath();
+        home = Files.createDirectories(root.resolve(homeDirectory));
+        Files.write(home.resolve("file.txt"), new byte[10]);
+        catalog = new MetadataCatalog(folder.getRoot().toPath().resolve("catalog"), root);
+        listingCache = new ListingCache(catalog);
+        fileNameIndex = new FileNameIndex(catalog);
+        trash = new Trash(folder.newFolder("trash").toPath(), (entry, files, failed, done) -> {
+        });
+        sessionTable = new SessionTable();
+    }
+
+    @After
+    public void after() {
+        listingCache.close();
+        fileNameIndex.close();
+        trash.close();
+        catalog.close();
+    }
+
+    private EmbeddedChannel newChannel(LongTaskExecutor longTasks) {
+        FileServerClient client = new FileServerClient("test", "test", homeDirectory);
+        return new EmbeddedChannel(new CommandServerHandler(root, client, listingCache, fileNameIndex, trash,
+                new SizeTree(), catalog, longTasks, sessionTable, sessionTable.open(client)));
+    }
+
+    private static NetworkPackage pack(NetworkCommand command, String... params) {
+        PackageHeader.HeaderBuilder header = new PackageHeader.HeaderBuilder(command);
+        for (String param : params) {
+            header.addParam(param);
+        }
+        return new NetworkPackage(header.build(), null);
+    }
+
+    private static NetworkPackage readOutbound(EmbeddedChannel channel, NetworkCommand command) {
+        NetworkPackage pack = channel.readOutbound();
+        Assert.assertNotNull(pack);
+        Assert.assertEquals(command, pack.getHeader().getCommand());
+        return pack;
+    }
+
+    /**
+     * @return names of the files of the listing page sent to the channel, the copy progress before it is skipped
+     */
+    private static List<String> readListing(EmbeddedChannel channel) {
+        NetworkPackage pack = channel.readOutbound();
+        while (pack != null && NetworkCommand.COPY.equals(pack.getHeader().getCommand())) {
+            pack = channel.readOutbound();
+        }
+        Assert.assertNotNull(pack);
+        Assert.assertEquals(NetworkCommand.LS, pack.getHeader().getCommand());
+        return Arrays.stream(pack.getBody().getObjectBody())
+                .map(file -> ((FileView) file).getFilename())
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Creates the directory with the files for 2.5 pages of the listing
+     * @return number of the files
+     */
+    private int writeManyFiles() throws IOException {
+        Path many = Files.createDirectories(home.resolve("many"));
+        int files = 2 * ServerConfig.LS_PAGE_SIZE + ServerConfig.LS_PAGE_SIZE / 2;
+        for (int i = 0; i < files; i++) {
+            Files.createFile(many.resolve("file" + i));
+        }
+        return files;
+    }
+
+    @Test
+    public void changedDirectoryIsListedAgain() throws IOException {
+        EmbeddedChannel channel = newChannel(new DirectTaskExecutor());
+
+        channel.writeInbound(pack(NetworkCommand.CD, homeDirectory));
+        Assert.assertEquals(Arrays.asList("file.txt"), readListing(channel));
+        channel.writeInbound(pack(NetworkCommand.CD, homeDirectory));
+        Assert.assertEquals(Arrays.asList("file.txt"), readListing(channel));
+        Assert.assertEquals(1, listingCache.getHits());
+
+        channel.writeInbound(pack(NetworkCommand.MKDIR, "dir"));
+        Assert.assertEquals(Arrays.asList("dir", "file.txt"), readListing(channel));
+        channel.writeInbound(pack(NetworkCommand.RM, homeDirectory + "/file.txt"));
+        Assert.assertEquals(Arrays.asList("dir"), readListing(channel));
+        Assert.assertNull(channel.readOutbound());
+        channel.checkException();
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void searchFindsTheAddedFilesAndNotTheRemovedOnes() throws IOException {
+        Files.write(home.resolve("found.txt"), new byte[10]);
+        EmbeddedChannel channel = newChannel(new DirectTaskExecutor());
+        channel.writeInbound(pack(NetworkCommand.CD, homeDirectory));
+        readListing(channel);
+
+        channel.writeInbound(pack(NetworkCommand.SEARCH, homeDirectory, "found"));
+        Assert.assertEquals(Arrays.asList("found.txt"), readListing(channel));
+
+        channel.writeInbound(pack(NetworkCommand.MKDIR, "found-dir"));
+        readListing(channel);
+        channel.writeInbound(pack(NetworkCommand.SEARCH, homeDirectory, "FOUND"));
+        Assert.assertEquals(Arrays.asList("found-dir", "found.txt"), readListing(channel));
+
+        channel.writeInbound(pack(NetworkCommand.RM, homeDirectory + "/found.txt"));
+        readListing(channel);
+        channel.writeInbound(pack(NetworkCommand.SEARCH, homeDirectory, "found"));
+        Assert.assertEquals(Arrays.asList("found-dir"), readListing(channel));
+        Assert.assertNull(channel.readOutbound());
+        channel.checkException();
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void listingIsSentByPages() throws IOException {
+        int files = writeManyFiles();
+        EmbeddedChannel channel = newChannel(new DirectTaskExecutor());
+
+        channel.writeInbound(pack(NetworkCommand.CD, homeDirectory + "/many"));
+
+        int streamId = 0;
+        for (int from = 0; from < files; from += ServerConfig.LS_PAGE_SIZE) {
+            NetworkPackage page = readOutbound(channel, NetworkCommand.LS);
+            PackageHeader header = page.getHeader();
+            if (from == 0) {
+                streamId = header.getStreamId();
+            }
+            Assert.assertEquals(streamId, header.getStreamId());
+            Assert.assertEquals(String.valueOf(from), header.getParam(2));
+            Assert.assertEquals(String.valueOf(files), header.getParam(3));
+            Assert.assertEquals(Math.min(ServerConfig.LS_PAGE_SIZE, files - from),
+                    page.getBody().getObjectBody().length);
+        }
+        Assert.assertNull(channel.readOutbound());
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void cancelledListingStopsAfterTheSentPage() throws IOException {
+        writeManyFiles();
+        EmbeddedChannel channel = newChannel(new DirectTaskExecutor());
+
+        // The next page waits in the pending tasks of the channel until the cancel is read
+        channel.pipeline().fireChannelRead(pack(NetworkCommand.CD, homeDirectory + "/many"));
+        channel.writeInbound(pack(NetworkCommand.LS_CANCEL));
+        Assert.assertEquals("0", readOutbound(channel, NetworkCommand.LS).getHeader().getParam(2));
+        Assert.assertNull(channel.readOutbound());
+
+        // The next listing replaces the current one
+        channel.pipeline().fireChannelRead(pack(NetworkCommand.CD, homeDirectory + "/many"));
+        channel.writeInbound(pack(NetworkCommand.CD, homeDirectory));
+        Assert.assertEquals(ServerConfig.LS_PAGE_SIZE,
+                readOutbound(channel, NetworkCommand.LS).getBody().getObjectBody().length);
+        Assert.assertEquals(Arrays.asList("file.txt", "many"), readListing(channel));
+        Assert.assertNull(channel.readOutbound());
+        channel.checkException();
+        channel.finishAndReleaseAll();
+    }
+
+    /**
+     * Checks the command is answered by COPY_FAIL with the source and the message
+     */
+    private static void assertCopyFail(EmbeddedChannel channel, String source, String message) {
+        PackageHeader header = readOutbound(channel, NetworkCommand.COPY_FAIL).getHeader();
+        Assert.assertEquals(source, header.getParam(1));
+        Assert.assertEquals(message, header.getParam(2));
+    }
+
+    @Test
+    public void copyAndMoveOutsideTheHomeDirectoryFail() throws IOException {
+        Files.createDirectories(home.resolve("dir"));
+        EmbeddedChannel channel = newChannel(new DirectTaskExecutor());
+        String file = homeDirectory + "/file.txt";
+
+        channel.writeInbound(pack(NetworkCommand.COPY, file, "other/file.txt"));
+        assertCopyFail(channel, file, "Path can not be copied");
+        channel.writeInbound(pack(NetworkCommand.MOVE, file, homeDirectory + "/../file.txt"));
+        assertCopyFail(channel, file, "Path can not be copied");
+        channel.writeInbound(pack(NetworkCommand.COPY, homeDirectory, homeDirectory + "/copy"));
+        assertCopyFail(channel, homeDirectory, "Path can not be copied");
+        channel.writeInbound(pack(NetworkCommand.COPY, homeDirectory + "/dir", homeDirectory + "/dir/copy"));
+        assertCopyFail(channel, homeDirectory + "/dir", "Path can not be copied");
+        channel.writeInbound(pack(NetworkCommand.COPY, homeDirectory + "/dir", file));
+        assertCopyFail(channel, homeDirectory + "/dir", "File not exist or target already exist");
+
+        Assert.assertNull(channel.readOutbound());
+        Assert.assertFalse(Files.exists(root.resolve("other")));
+        Assert.assertFalse(Files.exists(root.resolve("file.txt")));
+        Assert.assertTrue(Files.exists(home.resolve("file.txt")));
+        channel.checkException();
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void copyAndMoveInTheHomeDirectory() throws IOException {
+        EmbeddedChannel channel = newChannel(new DirectTaskExecutor());
+        channel.writeInbound(pack(NetworkCommand.CD, homeDirectory));
+        readListing(channel);
+
+        channel.writeInbound(pack(NetworkCommand.COPY, homeDirectory + "/file.txt", homeDirectory + "/copy.txt"));
+        Assert.assertEquals(Arrays.asList("copy.txt", "file.txt"), readListing(channel));
+        channel.writeInbound(pack(NetworkCommand.MOVE, homeDirectory + "/copy.txt", homeDirectory + "/moved.txt"));
+        Assert.assertEquals(Arrays.asList("file.txt", "moved.txt"), readListing(channel));
+
+        Assert.assertNull(channel.readOutbound());
+        Assert.assertEquals(10, Files.size(home.resolve("moved.txt")));
+        channel.checkException();
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void copyRefusedByTheFullQueueFails() {
+        EmbeddedChannel channel = newChannel(new FullTaskExecutor());
+        String file = homeDirectory + "/file.txt";
+
+        channel.writeInbound(pack(NetworkCommand.COPY, file, homeDirectory + "/copy.txt"));
+
+        assertCopyFail(channel, file, "Server is busy");
+        Assert.assertNull(channel.readOutbound());
+        Assert.assertFalse(Files.exists(home.resolve("copy.txt")));
+        channel.finishAndReleaseAll();
+    }
+}
@@ -0,0 +1,196 @@
+package ru.geekbrains.handlers;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.geekbrains.commands.NetworkCommand;
+import ru.geekbrains.commands.TransferMode;
+import ru.geekbrains.configs.ServerConfig;
+import ru.geekbrains.messages.NetworkPackage;
+import ru.geekbrains.messages.PackageHeader;
+import ru.geekbrains.transport.TransferSizeEstimator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+public class FileDownloadServerHandlerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path root;
+    private byte[] bytes;
+
+    /**
+     * Writes the file regions into the sink when they are flushed, as the socket does
+     */
+    private static class RegionSink extends ChannelOutboundHandlerAdapter {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final WritableByteChannel sink = Channels.newChannel(out);
+        private final List<Object> messages = new ArrayList<>();
+        private final List<ChannelPromise> promises = new ArrayList<>();
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+            messages.add(msg);
+            promises.add(promise);
+        }
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) throws IOException {
+            for (int i = 0; i < messages.size(); i++) {
+                Object msg = messages.get(i);
+                if (msg instanceof FileRegion) {
+                    FileRegion region = (FileRegion) msg;
+                    while (region.transferred() < region.count()) {
+                        region.transferTo(sink, region.transferred());
+                    }
+                    ReferenceCountUtil.release(msg);
+                    promises.get(i).setSuccess();
+                } else {
+                    ctx.write(msg, promises.get(i));
+                }
+            }
+            messages.clear();
+            promises.clear();
+            ctx.flush();
+        }
+    }
+
+    /**
+     * Records the largest number of the bytes waiting in the outbound buffer of the channel
+     */
+    private static class PendingBytes extends ChannelOutboundHandlerAdapter {
+        private long max;
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+            ctx.write(msg, promise);
+            max = Math.max(max, ctx.channel().unsafe().outboundBuffer().totalPendingWriteBytes());
+        }
+    }
+
+    @Before
+    public void before() throws IOException {
+        root = folder.getRoot().toPath();
+        bytes = new byte[2 * ServerConfig.BUFFER_SIZE];
+        new Random(21).nextBytes(bytes);
+        Files.write(root.resolve("file.bin"), bytes);
+    }
+
+    private static NetworkPackage pack(NetworkCommand command, int streamId, String... params) {
+        PackageHeader.HeaderBuilder header = new PackageHeader.HeaderBuilder(command).setStreamId(streamId);
+        for (String param : params) {
+            header.addParam(param);
+        }
+        return new NetworkPackage(header.build(), null);
+    }
+
+    @Test
+    public void failedDownloadClosesTheFileAfterTheQueuedRegions() {
+        RegionSink sink = new RegionSink();
+        EmbeddedChannel channel = new EmbeddedChannel(sink, new FileDownloadServerHandler(root));
+
+        // The packages are read without the read complete, so the first part is not flushed yet
+        channel.pipeline().fireChannelRead(pack(NetworkCommand.DOWNLOAD_START, 1, "file.bin", "false", "false"));
+        channel.pipeline().fireChannelRead(pack(NetworkCommand.DOWNLOAD_FAIL, 1, "Download cancelled"));
+        channel.flush();
+
+        channel.checkException();
+        Assert.assertEquals(ServerConfig.BUFFER_SIZE, sink.out.size());
+        channel.finishAndReleaseAll();
+    }
+
+    /**
+     * Returns the first package of the command written into the channel, the other packages are released
+     */
+    private static NetworkPackage readOutbound(EmbeddedChannel channel, NetworkCommand command) {
+        for (Object msg = channel.readOutbound(); msg != null; msg = channel.readOutbound()) {
+            if (msg instanceof NetworkPackage && ((NetworkPackage) msg).getHeader().getCommand().equals(command)) {
+                return (NetworkPackage) msg;
+            }
+            ReferenceCountUtil.release(msg);
+        }
+        Assert.fail("No package " + command);
+        return null;
+    }
+
+    @Test
+    public void rangeModeSendsTheRange() {
+        RegionSink sink = new RegionSink();
+        EmbeddedChannel channel = new EmbeddedChannel(sink, new FileDownloadServerHandler(root));
+
+        channel.writeInbound(pack(NetworkCommand.DOWNLOAD_START, 1, "file.bin", "true", "false",
+                TransferMode.RANGE.name(), String.valueOf(ServerConfig.BUFFER_SIZE), "100"));
+        channel.flush();
+
+        channel.checkException();
+        Assert.assertArrayEquals(Arrays.copyOfRange(bytes, ServerConfig.BUFFER_SIZE, ServerConfig.BUFFER_SIZE + 100),
+                sink.out.toByteArray());
+        readOutbound(channel, NetworkCommand.DOWNLOAD_FINISH);
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void resumeModeContinuesFromTheMatchingOffset() {
+        RegionSink sink = new RegionSink();
+        EmbeddedChannel channel = new EmbeddedChannel(sink, new FileDownloadServerHandler(root));
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, ServerConfig.BUFFER_SIZE);
+
+        channel.writeInbound(pack(NetworkCommand.DOWNLOAD_START, 1, "file.bin", "true", "false",
+                TransferMode.RESUME.name(), String.valueOf(ServerConfig.BUFFER_SIZE), String.valueOf(crc.getValue())));
+        channel.flush();
+
+        channel.checkException();
+        NetworkPackage resume = readOutbound(channel, NetworkCommand.DOWNLOAD_RESUME);
+        Assert.assertEquals(String.valueOf(ServerConfig.BUFFER_SIZE), resume.getHeader().getParam(1));
+        Assert.assertArrayEquals(Arrays.copyOfRange(bytes, ServerConfig.BUFFER_SIZE, bytes.length),
+                sink.out.toByteArray());
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void streamingDownloadStopsWhileTheChannelIsNotWritable() throws IOException {
+        byte[] large = new byte[8 * ServerConfig.BUFFER_SIZE];
+        Files.write(root.resolve("large.bin"), large);
+        PendingBytes pending = new PendingBytes();
+        EmbeddedChannel channel = new EmbeddedChannel(pending, new FileDownloadServerHandler(root));
+        channel.config().setMessageSizeEstimator(TransferSizeEstimator.DEFAULT);
+        channel.config().setWriteBufferWaterMark(
+                new WriteBufferWaterMark(ServerConfig.BUFFER_SIZE, 2 * ServerConfig.BUFFER_SIZE));
+
+        channel.writeInbound(pack(NetworkCommand.DOWNLOAD_START, 1, "large.bin", "true", "false"));
+        channel.runPendingTasks();
+
+        channel.checkException();
+        // The parts over the high water mark wait until the written ones leave the buffer
+        Assert.assertTrue(pending.max <= 3 * ServerConfig.BUFFER_SIZE);
+        long sent = 0;
+        for (Object msg = channel.readOutbound(); msg != null; msg = channel.readOutbound()) {
+            if (msg instanceof FileRegion) {
+                sent += ((FileRegion) msg).count();
+            }
+            ReferenceCountUtil.release(msg);
+        }
+        Assert.assertEquals(large.length, sent);
+        channel.finishAndReleaseAll();
+    }
+}
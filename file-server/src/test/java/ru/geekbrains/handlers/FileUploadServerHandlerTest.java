@@ -0,0 +1,332 @@
+package ru.geekbrains.handlers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.geekbrains.catalog.MetadataCatalog;
+import ru.geekbrains.commands.NetworkCommand;
+import ru.geekbrains.configs.ServerConfig;
+import ru.geekbrains.entities.FileServerClient;
+import ru.geekbrains.files.SizeTree;
+import ru.geekbrains.listings.ListingCache;
+import ru.geekbrains.messages.NetworkPackage;
+import ru.geekbrains.messages.PackageBody;
+import ru.geekbrains.messages.PackageHeader;
+import ru.geekbrains.search.FileNameIndex;
+import ru.geekbrains.transfers.ChunkHashes;
+import ru.geekbrains.transfers.ChunkStore;
+import ru.geekbrains.transfers.PartFiles;
+import ru.geekbrains.transfers.TransferJournal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Random;
+
+public class FileUploadServerHandlerTest {
+    private static final int CHUNKS = 40;
+    // Chunks of the file already stored in ChunkStore by other file
+    private static final int STORED_FROM = 20;
+    private static final int STORED_TO = 30;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final String homeDirectory = "home";
+    private Path root;
+    private Path home;
+    private MetadataCatalog catalog;
+    private ListingCache listingCache;
+    private FileNameIndex fileNameIndex;
+    private ChunkStore chunkStore;
+    private SizeTree sizeTree;
+
+    @Before
+    public void before() throws IOException {
+        root = folder.newFolder("share").toPath();
+        home = Files.createDirectories(root.resolve(homeDirectory));
+        catalog = new MetadataCatalog(folder.getRoot().toPath().resolve("catalog"), root);
+        listingCache = new ListingCache(catalog);
+        fileNameIndex = new FileNameIndex(catalog);
+        chunkStore = new ChunkStore(folder.newFolder("chunks").toPath());
+        sizeTree = new SizeTree();
+    }
+
+    @After
+    public void after() {
+        listingCache.close();
+        fileNameIndex.close();
+        catalog.close();
+    }
+
+    private EmbeddedChannel newChannel() {
+        FileServerClient client = new FileServerClient("test", "test", homeDirectory);
+        return new EmbeddedChannel(new FileUploadServerHandler(root, client, new PartFiles(), listingCache,
+                fileNameIndex, chunkStore, sizeTree, catalog));
+    }
+
+    private static byte[] chunks(byte[] bytes, int from, int to) {
+        byte[] part = new byte[(to - from) * ServerConfig.BUFFER_SIZE];
+        System.arraycopy(bytes, from * ServerConfig.BUFFER_SIZE, part, 0, part.length);
+        return part;
+    }
+
+    private static byte[] hashes(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return ChunkHashes.hash(channel, 0, channel.size());
+        }
+    }
+
+    private static NetworkPackage pack(NetworkCommand command, int streamId, PackageBody body, String... params) {
+        PackageHeader.HeaderBuilder header = new PackageHeader.HeaderBuilder(command).setStreamId(streamId);
+        for (String param : params) {
+            header.addParam(param);
+        }
+        return new NetworkPackage(header.build(), body);
+    }
+
+    private static NetworkPackage readOutbound(EmbeddedChannel channel, NetworkCommand command) {
+        NetworkPackage pack = channel.readOutbound();
+        Assert.assertNotNull(pack);
+        Assert.assertEquals(command, pack.getHeader().getCommand());
+        return pack;
+    }
+
+    @Test
+    public void resumedUploadIsDeduplicatedFromTheStartOfTheFile() throws IOException {
+        byte[] bytes = new byte[CHUNKS * ServerConfig.BUFFER_SIZE];
+        new Random(17).nextBytes(bytes);
+        Path seed = home.resolve("seed.bin");
+        Files.write(seed, chunks(bytes, STORED_FROM, STORED_TO));
+        chunkStore.store(seed, hashes(seed));
+
+        // Interrupted upload confirmed the first chunks
+        Path target = home.resolve("file.bin");
+        TransferJournal journal = TransferJournal.open(target);
+        for (int i = 0; i < ServerConfig.JOURNAL_INTERVAL; i++) {
+            ByteBuffer chunk = ByteBuffer.wrap(chunks(bytes, i, i + 1));
+            journal.getChannel().write(chunk, journal.getOffset());
+            chunk.flip();
+            journal.update(chunk);
+        }
+        journal.suspend();
+        long offset = (long) ServerConfig.JOURNAL_INTERVAL * ServerConfig.BUFFER_SIZE;
+
+        Path source = folder.newFile("source.bin").toPath();
+        Files.write(source, bytes);
+        byte[] hashes = hashes(source);
+        String path = homeDirectory + "/file.bin";
+        EmbeddedChannel channel = newChannel();
+
+        channel.writeInbound(pack(NetworkCommand.UPLOAD_START, 1, new PackageBody(Unpooled.wrappedBuffer(hashes)),
+                path, String.valueOf(CHUNKS), String.valueOf(bytes.length)));
+        NetworkPackage resume = readOutbound(channel, NetworkCommand.UPLOAD_RESUME);
+        Assert.assertEquals(offset, Long.parseLong(resume.getHeader().getParam(1)));
+
+        channel.writeInbound(pack(NetworkCommand.UPLOAD_RESUME, 1, null, String.valueOf(offset)));
+        NetworkPackage ready = readOutbound(channel, NetworkCommand.UPLOAD_READY);
+        // The bitmap of the stored chunks is indexed from the start of the file, as the client hashed it
+        BitSet stored = BitSet.valueOf(ByteBufUtil.getBytes(ready.content()));
+        ready.release();
+        Assert.assertEquals(STORED_FROM, stored.nextSetBit(0));
+        Assert.assertEquals(STORED_TO, stored.nextClearBit(STORED_FROM));
+
+        for (int i = ServerConfig.JOURNAL_INTERVAL; i < CHUNKS; i++) {
+            if (!stored.get(i)) {
+                channel.writeInbound(pack(NetworkCommand.UPLOAD, 1,
+                        new PackageBody(Unpooled.wrappedBuffer(chunks(bytes, i, i + 1)))));
+                readOutbound(channel, NetworkCommand.UPLOAD_READY);
+            }
+        }
+        channel.writeInbound(pack(NetworkCommand.UPLOAD_FINISH, 1, null));
+        readOutbound(channel, NetworkCommand.UPLOAD_DONE);
+        channel.finishAndReleaseAll();
+
+        Assert.assertArrayEquals(bytes, Files.readAllBytes(target));
+        // The resumed part is verified by the hash list, so the file is stored and linked to its blob
+        Assert.assertEquals(2, Files.getAttribute(target, "unix:nlink"));
+    }
+
+    @Test
+    public void windowIsGrantedFirstThenOneChunkPerUpload() {
+        byte[] bytes = new byte[ServerConfig.BUFFER_SIZE];
+        EmbeddedChannel channel = newChannel();
+
+        channel.writeInbound(pack(NetworkCommand.UPLOAD_START, 1, null, homeDirectory + "/file.bin",
+                "4", String.valueOf(2 * bytes.length)));
+        channel.writeInbound(pack(NetworkCommand.UPLOAD_START, 2, null, homeDirectory + "/large.bin",
+                String.valueOf(ServerConfig.MAX_UPLOAD_WINDOW + 1), "100"));
+        channel.writeInbound(pack(NetworkCommand.UPLOAD_START, 3, null, homeDirectory + "/small.bin", "0", "100"));
+
+        Assert.assertEquals("4", readOutbound(channel, NetworkCommand.UPLOAD_READY).getHeader().getParam(1));
+        // The window is limited by ServerConfig.MAX_UPLOAD_WINDOW and is at least one chunk
+        Assert.assertEquals(String.valueOf(ServerConfig.MAX_UPLOAD_WINDOW),
+                readOutbound(channel, NetworkCommand.UPLOAD_READY).getHeader().getParam(1));
+        Assert.assertEquals("1", readOutbound(channel, NetworkCommand.UPLOAD_READY).getHeader().getParam(1));
+
+        channel.writeInbound(pack(NetworkCommand.UPLOAD, 1, new PackageBody(Unpooled.wrappedBuffer(bytes))));
+        channel.writeInbound(pack(NetworkCommand.UPLOAD, 1, new PackageBody(Unpooled.wrappedBuffer(bytes))));
+        for (int i = 0; i < 2; i++) {
+            NetworkPackage ready = readOutbound(channel, NetworkCommand.UPLOAD_READY);
+            Assert.assertEquals(1, ready.getHeader().getStreamId());
+            // Credit of one chunk has no params
+            Assert.assertEquals(0, ready.getHeader().getParamCount());
+        }
+        Assert.assertNull(channel.readOutbound());
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void uploadWithoutSizeFails() {
+        EmbeddedChannel channel = newChannel();
+
+        channel.writeInbound(pack(NetworkCommand.UPLOAD_START, 1, null, homeDirectory + "/file.bin", "4"));
+
+        NetworkPackage fail = readOutbound(channel, NetworkCommand.UPLOAD_FAIL);
+        Assert.assertEquals(1, fail.getHeader().getStreamId());
+        Assert.assertFalse(Files.exists(home.resolve("file.bin")));
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void uploadOutsideTheHomeDirectoryFails() {
+        EmbeddedChannel channel = newChannel();
+
+        channel.writeInbound(pack(NetworkCommand.UPLOAD_START, 1, null, homeDirectory + "/../file.bin", "4", "100"));
+        channel.writeInbound(pack(NetworkCommand.UPLOAD_START, 2, null, "other/file.bin", "4", "100"));
+
+        Assert.assertEquals(1, readOutbound(channel, NetworkCommand.UPLOAD_FAIL).getHeader().getStreamId());
+        Assert.assertEquals(2, readOutbound(channel, NetworkCommand.UPLOAD_FAIL).getHeader().getStreamId());
+        Assert.assertFalse(Files.exists(root.resolve("file.bin.part")));
+        Assert.assertFalse(Files.exists(root.resolve("other")));
+        channel.checkException();
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void chunkOverDeclaredSizeFailsTheUpload() throws IOException {
+        byte[] bytes = new byte[ServerConfig.BUFFER_SIZE];
+        new Random(18).nextBytes(bytes);
+        EmbeddedChannel channel = newChannel();
+
+        channel.writeInbound(pack(NetworkCommand.UPLOAD_START, 1, null, homeDirectory + "/file.bin", "4", "100"));
+        readOutbound(channel, NetworkCommand.UPLOAD_READY);
+        channel.writeInbound(pack(NetworkCommand.UPLOAD, 1, new PackageBody(Unpooled.wrappedBuffer(bytes))));
+
+        readOutbound(channel, NetworkCommand.UPLOAD_FAIL);
+        Assert.assertNull(channel.readOutbound());
+
+        // Chunks of the window sent before the failure are released and dropped quietly
+        ByteBuf stray = Unpooled.wrappedBuffer(new byte[100]);
+        channel.writeInbound(pack(NetworkCommand.UPLOAD, 1, new PackageBody(stray)));
+        channel.writeInbound(pack(NetworkCommand.UPLOAD_FINISH, 1, null));
+        Assert.assertEquals(0, stray.refCnt());
+        Assert.assertNull(channel.readOutbound());
+        channel.checkException();
+        channel.finishAndReleaseAll();
+        // The resumable upload keeps its journal, no bytes of the chunk are written
+        Assert.assertEquals(0, Files.size(home.resolve("file.bin.part")));
+    }
+
+    @Test
+    public void chunkNotMatchingItsHashClosesTheUpload() throws IOException {
+        byte[] bytes = new byte[2 * ServerConfig.BUFFER_SIZE];
+        new Random(19).nextBytes(bytes);
+        Path source = folder.newFile("source.bin").toPath();
+        Files.write(source, bytes);
+        byte[] hashes = hashes(source);
+        EmbeddedChannel channel = newChannel();
+
+        channel.writeInbound(pack(NetworkCommand.UPLOAD_START, 1, new PackageBody(Unpooled.wrappedBuffer(hashes)),
+                homeDirectory + "/file.bin", "2", String.valueOf(bytes.length)));
+        readOutbound(channel, NetworkCommand.UPLOAD_READY).release();
+        byte[] damaged = chunks(bytes, 0, 1);
+        damaged[0]++;
+        channel.writeInbound(pack(NetworkCommand.UPLOAD, 1, new PackageBody(Unpooled.wrappedBuffer(damaged))));
+        readOutbound(channel, NetworkCommand.UPLOAD_FAIL);
+
+        // The upload is closed, so the next chunk is not written and the file is not committed
+        ByteBuf stray = Unpooled.wrappedBuffer(chunks(bytes, 1, 2));
+        channel.writeInbound(pack(NetworkCommand.UPLOAD, 1, new PackageBody(stray)));
+        channel.writeInbound(pack(NetworkCommand.UPLOAD_FINISH, 1, null));
+        Assert.assertEquals(0, stray.refCnt());
+        Assert.assertNull(channel.readOutbound());
+        channel.checkException();
+        channel.finishAndReleaseAll();
+        Assert.assertFalse(Files.exists(home.resolve("file.bin")));
+    }
+
+    @Test
+    public void finishBeforeTheDeclaredSizeFailsTheUpload() throws IOException {
+        byte[] bytes = new byte[ServerConfig.BUFFER_SIZE];
+        new Random(20).nextBytes(bytes);
+        EmbeddedChannel channel = newChannel();
+
+        channel.writeInbound(pack(NetworkCommand.UPLOAD_START, 1, null,
+                homeDirectory + "/file.bin", "4", String.valueOf(2 * bytes.length)));
+        readOutbound(channel, NetworkCommand.UPLOAD_READY);
+        channel.writeInbound(pack(NetworkCommand.UPLOAD, 1, new PackageBody(Unpooled.wrappedBuffer(bytes))));
+        readOutbound(channel, NetworkCommand.UPLOAD_READY);
+        channel.writeInbound(pack(NetworkCommand.UPLOAD_FINISH, 1, null));
+
+        readOutbound(channel, NetworkCommand.UPLOAD_FAIL);
+        Assert.assertNull(channel.readOutbound());
+        channel.checkException();
+        channel.finishAndReleaseAll();
+        Assert.assertFalse(Files.exists(home.resolve("file.bin")));
+    }
+
+    @Test
+    public void offeredCompressionIsAnsweredByTheWindowGrant() {
+        EmbeddedChannel channel = newChannel();
+
+        channel.writeInbound(pack(NetworkCommand.UPLOAD_START, 1, null, homeDirectory + "/offered.txt",
+                "4", "100", "true"));
+        channel.writeInbound(pack(NetworkCommand.UPLOAD_START, 2, null, homeDirectory + "/plain.txt", "4", "100"));
+
+        NetworkPackage offered = readOutbound(channel, NetworkCommand.UPLOAD_READY);
+        Assert.assertEquals(String.valueOf(ServerConfig.COMPRESSION), offered.getHeader().getParam(2));
+        NetworkPackage plain = readOutbound(channel, NetworkCommand.UPLOAD_READY);
+        Assert.assertEquals("false", plain.getHeader().getParam(2));
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void suspendedUploadIsCountedInTheSizeTree() throws IOException {
+        byte[] bytes = new byte[ServerConfig.BUFFER_SIZE];
+        new Random(22).nextBytes(bytes);
+        String path = homeDirectory + "/file.bin";
+        String size = String.valueOf(2 * bytes.length);
+        EmbeddedChannel channel = newChannel();
+
+        channel.writeInbound(pack(NetworkCommand.UPLOAD_START, 1, null, path, "4", size));
+        readOutbound(channel, NetworkCommand.UPLOAD_READY);
+        channel.writeInbound(pack(NetworkCommand.UPLOAD, 1, new PackageBody(Unpooled.wrappedBuffer(bytes))));
+        readOutbound(channel, NetworkCommand.UPLOAD_READY);
+        channel.finishAndReleaseAll();
+
+        // The part file and the journal are kept for the resume
+        long kept = Files.size(home.resolve("file.bin.part")) + Files.size(home.resolve("file.bin.part.journal"));
+        Assert.assertEquals(bytes.length + 2 * Long.BYTES, kept);
+        Assert.assertEquals(kept, sizeTree.used(home)[0]);
+
+        // The resumed upload covers them by its reservation
+        channel = newChannel();
+        channel.writeInbound(pack(NetworkCommand.UPLOAD_START, 1, null, path, "4", size));
+        readOutbound(channel, NetworkCommand.UPLOAD_RESUME);
+        Assert.assertEquals(0, sizeTree.used(home)[0]);
+        channel.finishAndReleaseAll();
+        Assert.assertEquals(kept, sizeTree.used(home)[0]);
+    }
+}
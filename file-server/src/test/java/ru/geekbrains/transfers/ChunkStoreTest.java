@@ -0,0 +1,127 @@
+package ru.geekbrains.transfers;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.geekbrains.configs.ServerConfig;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.BitSet;
+import java.util.Random;
+
+public class ChunkStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+    private ChunkStore chunkStore;
+
+    @Before
+    public void before() throws IOException {
+        directory = folder.newFolder("files").toPath();
+        chunkStore = new ChunkStore(folder.newFolder("chunks").toPath());
+    }
+
+    private Path write(String name, byte[] bytes) throws IOException {
+        return Files.write(directory.resolve(name), bytes);
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] hashes(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return ChunkHashes.hash(channel, 0, channel.size());
+        }
+    }
+
+    @Test
+    public void identicalFilesShareTheBlob() throws IOException {
+        byte[] bytes = randomBytes(3 * ServerConfig.BUFFER_SIZE + 100, 1);
+        Path first = write("first.bin", bytes);
+        Path second = write("second.bin", bytes);
+
+        chunkStore.store(first, hashes(first));
+        chunkStore.store(second, hashes(second));
+
+        // The blob, the first file and the second file
+        Assert.assertEquals(3, Files.getAttribute(second, "unix:nlink"));
+        Assert.assertArrayEquals(bytes, Files.readAllBytes(second));
+    }
+
+    @Test
+    public void storedChunksAreFoundAndCopied() throws IOException {
+        byte[] bytes = randomBytes(3 * ServerConfig.BUFFER_SIZE + 100, 2);
+        Path stored = write("stored.bin", bytes);
+        byte[] hashes = hashes(stored);
+        chunkStore.store(stored, hashes);
+
+        byte[] other = randomBytes(ServerConfig.BUFFER_SIZE, 3);
+        byte[] uploadHashes = new byte[3 * ChunkHashes.HASH_SIZE];
+        System.arraycopy(hashes(write("other.bin", other)), 0, uploadHashes, 0, ChunkHashes.HASH_SIZE);
+        // The last chunk of the stored file is shorter than the others
+        System.arraycopy(hashes, 3 * ChunkHashes.HASH_SIZE, uploadHashes, ChunkHashes.HASH_SIZE, ChunkHashes.HASH_SIZE);
+        System.arraycopy(hashes, ChunkHashes.HASH_SIZE, uploadHashes, 2 * ChunkHashes.HASH_SIZE, ChunkHashes.HASH_SIZE);
+
+        BitSet found = chunkStore.find(uploadHashes);
+        Assert.assertFalse(found.get(0));
+        Assert.assertTrue(found.get(1));
+        Assert.assertTrue(found.get(2));
+
+        ByteBuffer buffer = ByteBuffer.allocate(ServerConfig.BUFFER_SIZE);
+        MessageDigest digest = ChunkHashes.newDigest();
+        try (FileChannel target = FileChannel.open(directory.resolve("target.bin"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+            Assert.assertEquals(100, chunkStore.copy(uploadHashes, 1, target, 0, 100, buffer, digest));
+            // The chunk longer than the declared rest of the upload is not copied
+            Assert.assertEquals(-1, chunkStore.copy(uploadHashes, 2, target, 100, 100, buffer, digest));
+            Assert.assertEquals(100, target.size());
+            Assert.assertEquals(ServerConfig.BUFFER_SIZE,
+                    chunkStore.copy(uploadHashes, 2, target, 100, Long.MAX_VALUE, buffer, digest));
+            Assert.assertEquals(-1, chunkStore.copy(uploadHashes, 0, target, 0, Long.MAX_VALUE, buffer, digest));
+        }
+        byte[] copied = Files.readAllBytes(directory.resolve("target.bin"));
+        Assert.assertEquals(100 + ServerConfig.BUFFER_SIZE, copied.length);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(bytes[3 * ServerConfig.BUFFER_SIZE + i], copied[i]);
+        }
+        for (int i = 0; i < ServerConfig.BUFFER_SIZE; i++) {
+            Assert.assertEquals(bytes[ServerConfig.BUFFER_SIZE + i], copied[100 + i]);
+        }
+    }
+
+    @Test
+    public void changedBlobIsNotCopied() throws IOException {
+        byte[] bytes = randomBytes(2 * ServerConfig.BUFFER_SIZE, 4);
+        Path stored = write("stored.bin", bytes);
+        byte[] hashes = hashes(stored);
+        chunkStore.store(stored, hashes);
+        // The file of the user is the link of the blob, writing it in place changes the blob
+        try (FileChannel channel = FileChannel.open(stored, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{(byte) (bytes[10] + 1)}), 10);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(ServerConfig.BUFFER_SIZE);
+        try (FileChannel target = FileChannel.open(directory.resolve("target.bin"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            Assert.assertEquals(-1,
+                    chunkStore.copy(hashes, 0, target, 0, Long.MAX_VALUE, buffer, ChunkHashes.newDigest()));
+            Assert.assertEquals(0, target.size());
+        }
+        // The changed chunk is removed from the index, the other chunk is still found
+        BitSet found = chunkStore.find(hashes);
+        Assert.assertFalse(found.get(0));
+        Assert.assertTrue(found.get(1));
+    }
+}
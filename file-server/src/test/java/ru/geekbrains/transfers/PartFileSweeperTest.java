@@ -0,0 +1,72 @@
+package ru.geekbrains.transfers;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.geekbrains.configs.ServerConfig;
+import ru.geekbrains.files.SizeTree;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+
+public class PartFileSweeperTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path home;
+    private PartFiles partFiles;
+    private SizeTree sizeTree;
+    private PartFileSweeper sweeper;
+
+    @Before
+    public void before() throws IOException {
+        Path root = folder.newFolder("share").toPath();
+        home = Files.createDirectories(root.resolve("home"));
+        partFiles = new PartFiles();
+        sizeTree = new SizeTree();
+        sweeper = new PartFileSweeper(root, partFiles, sizeTree);
+    }
+
+    private Path write(String name, int size, boolean expired) throws IOException {
+        Path file = Files.write(home.resolve(name), new byte[size]);
+        if (expired) {
+            long modified = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(ServerConfig.PART_FILE_TTL) - 1000;
+            Files.setLastModifiedTime(file, FileTime.fromMillis(modified));
+        }
+        return file;
+    }
+
+    @Test
+    public void expiredPartFilesAreDeleted() throws IOException {
+        Path target = write("file.bin", 10, true);
+        Path part = write("file.bin.part", 100, true);
+        Path journal = write("file.bin.part.journal", 16, true);
+        Path fresh = write("fresh.bin.part", 1000, false);
+        Assert.assertEquals(1126, sizeTree.used(home)[0]);
+
+        Assert.assertEquals(2, sweeper.sweep());
+
+        Assert.assertTrue(Files.exists(target));
+        Assert.assertFalse(Files.exists(part));
+        Assert.assertFalse(Files.exists(journal));
+        Assert.assertTrue(Files.exists(fresh));
+        Assert.assertEquals(1010, sizeTree.used(home)[0]);
+    }
+
+    @Test
+    public void partFileOfTheOpenRangesIsKept() throws IOException {
+        PartFiles.PartFile partFile = partFiles.open(home.resolve("file.bin"), 2);
+        Path part = home.resolve("file.bin.part");
+        Files.setLastModifiedTime(part, FileTime.fromMillis(0));
+
+        Assert.assertEquals(0, sweeper.sweep());
+        Assert.assertTrue(Files.exists(part));
+
+        partFiles.fail(partFile);
+    }
+}